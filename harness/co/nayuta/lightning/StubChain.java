@@ -0,0 +1,285 @@
+package co.nayuta.lightning;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BlockLocator;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.SegwitAddress;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/** stub peerが配信するregtest chain
+ *
+ *  regtest genesisから続くblockを生成する。
+ *  各blockは coinbase + mempoolのtx + 埋め草tx で txPerBlock 個になる。
+ *  埋め草txは乱数のoutpointを1つ消費し、P2WSH outputを outputsPerTx 個持つ(block sizeの調整用)。
+ *  SPVはinputを検証しないので、存在しないoutpointを消費しても受け付けられる。
+ *
+ *  reorgで外れたblockも保持し、getBlock()で取得できる。
+ */
+class StubChain {
+    private static final long BLOCK_INTERVAL = 600;     //sec
+    private static final long OUTPUT_VALUE = 100000;    //satoshis
+    //
+    final NetworkParameters params = RegTestParams.get();
+    private final Context context = new Context(params);
+    private final int txPerBlock;
+    private final int outputsPerTx;
+    private final Random random;
+    private final Address miner;
+    private final List<Block> active = new ArrayList<>();                     //[height]
+    private final Map<Sha256Hash, Integer> activeHeights = new HashMap<>();
+    private final Map<Sha256Hash, Block> blocks = new HashMap<>();            //stale blockを含む
+    private final LinkedHashMap<Sha256Hash, Transaction> mempool = new LinkedHashMap<>();
+    private final Set<Sha256Hash> minedFromMempool = new HashSet<>();       //埋め草以外のtx
+    private final Logger logger;
+    //
+    //
+    /**
+     * @param txPerBlock    1 blockのtx数(coinbase以外)
+     * @param outputsPerTx  埋め草txのoutput数
+     * @param seed          乱数seed
+     */
+    StubChain(int txPerBlock, int outputsPerTx, long seed) {
+        this.logger = LoggerFactory.getLogger(this.getClass());
+        this.txPerBlock = txPerBlock;
+        this.outputsPerTx = outputsPerTx;
+        this.random = new Random(seed);
+        Context.propagate(context);
+        this.miner = SegwitAddress.fromKey(params, ECKey.fromPrivate(BigInteger.valueOf(seed + 1)));
+        Block genesis = params.getGenesisBlock();
+        active.add(genesis);
+        activeHeights.put(genesis.getHash(), 0);
+        blocks.put(genesis.getHash(), genesis);
+    }
+    //
+    /** blockを生成
+     *
+     *  最後のblockが endTime になるよう、BLOCK_INTERVAL間隔でさかのぼった時刻を使う(tipより前にはしない)。
+     *  wallet作成時刻より古いblockはheaderのみでdownloadされる。
+     *
+     * @param count     block数
+     * @param endTime   最後のblockの時刻(epoch sec)
+     * @return  生成したblock
+     */
+    synchronized List<Block> generate(int count, long endTime) {
+        long time = endTime - count * BLOCK_INTERVAL;
+        List<Block> result = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            time = Math.max(time + BLOCK_INTERVAL, tip().getTimeSeconds() + 1);
+            result.add(connect(createBlock(tip(), time, true)));
+        }
+        logger.info("StubChain: generate {}: tip={}", count, tipHeight());
+        return result;
+    }
+    //
+    /** mempoolのtxを含むblockを1つ生成
+     *
+     * @return  生成したblock
+     */
+    synchronized Block mine() {
+        long time = Math.max(tip().getTimeSeconds() + 1, System.currentTimeMillis() / 1000);
+        return connect(createBlock(tip(), time, true));
+    }
+    //
+    /** chainを付け替える
+     *
+     *  tipから depth 個のblockを外し、分岐点から length 個の新しいblockをつなぐ。
+     *  外れたblockのtxはmempoolに戻し、新しいblockには含めない。
+     *
+     * @param depth     外すblock数
+     * @param length    新しいblock数(depth以上)
+     * @return  新しいblock
+     */
+    synchronized List<Block> reorg(int depth, int length) {
+        if ((depth <= 0) || (depth >= active.size()) || (length < depth)) {
+            throw new IllegalArgumentException("reorg: depth=" + depth + ", length=" + length);
+        }
+        int forkHeight = active.size() - 1 - depth;
+        List<Transaction> displaced = new ArrayList<>();
+        for (int height = active.size() - 1; height > forkHeight; height--) {
+            Block block = active.remove(height);
+            activeHeights.remove(block.getHash());
+            List<Transaction> txs = block.getTransactions();
+            displaced.addAll(0, txs.subList(1, txs.size()));
+        }
+        List<Block> result = new ArrayList<>();
+        long time = active.get(forkHeight).getTimeSeconds();
+        for (int i = 0; i < length; i++) {
+            time += 1;
+            result.add(connect(createBlock(tip(), time, false)));
+        }
+        for (Transaction tx : displaced) {
+            if (minedFromMempool.remove(tx.getTxId())) {
+                mempool.put(tx.getTxId(), tx);
+            }
+        }
+        logger.info("StubChain: reorg depth={}, length={}: tip={}", depth, length, tipHeight());
+        return result;
+    }
+    //
+    private Block createBlock(Block prev, long time, boolean withMempool) {
+        int height = active.size();
+        Block block = prev.createNextBlock(miner, Block.BLOCK_VERSION_BIP34, time, height);
+        int count = 0;
+        if (withMempool) {
+            Iterator<Transaction> it = mempool.values().iterator();
+            while (it.hasNext() && (count < txPerBlock)) {
+                Transaction tx = it.next();
+                block.addTransaction(tx);
+                minedFromMempool.add(tx.getTxId());
+                it.remove();
+                count++;
+            }
+        }
+        for (; count < txPerBlock; count++) {
+            block.addTransaction(createFiller());
+        }
+        block.solve();
+        //peerから受信したblockと同じ状態にする
+        return params.getDefaultSerializer().makeBlock(block.bitcoinSerialize());
+    }
+    //
+    private Block connect(Block block) {
+        activeHeights.put(block.getHash(), active.size());
+        active.add(block);
+        blocks.put(block.getHash(), block);
+        return block;
+    }
+    //
+    private Transaction createFiller() {
+        Transaction tx = new Transaction(params);
+        tx.addInput(randomHash(), 0, new Script(new byte[0]));
+        for (int i = 0; i < outputsPerTx; i++) {
+            tx.addOutput(Coin.valueOf(OUTPUT_VALUE), ScriptBuilder.createP2WSHOutputScript(randomBytes(32)));
+        }
+        return tx;
+    }
+    //
+    /** scriptHashへ支払うtx(mempoolへ追加する)
+     *
+     * @param scriptHash    P2WSH script hash(32byte)
+     * @param amount        satoshis
+     * @return  transaction(output index 0)
+     */
+    synchronized Transaction createFunding(byte[] scriptHash, long amount) {
+        Transaction tx = new Transaction(params);
+        tx.addInput(randomHash(), 0, new Script(new byte[0]));
+        tx.addOutput(Coin.valueOf(amount), ScriptBuilder.createP2WSHOutputScript(scriptHash));
+        mempool.put(tx.getTxId(), tx);
+        return tx;
+    }
+    //
+    /** outpointを消費するtx(mempoolへは追加しない: peer経由でbroadcastする)
+     *
+     * @param outPoint  消費するoutpoint
+     * @return  transaction
+     */
+    synchronized Transaction createSpend(TransactionOutPoint outPoint) {
+        Transaction tx = new Transaction(params);
+        tx.addInput(outPoint.getHash(), outPoint.getIndex(), new Script(new byte[0]));
+        tx.addOutput(Coin.valueOf(OUTPUT_VALUE), ScriptBuilder.createP2WSHOutputScript(randomBytes(32)));
+        return tx;
+    }
+    //
+    private Sha256Hash randomHash() {
+        return Sha256Hash.wrap(randomBytes(Sha256Hash.LENGTH));
+    }
+    //
+    private byte[] randomBytes(int len) {
+        byte[] bytes = new byte[len];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+    //
+    /** peerから受信したtxをmempoolへ追加
+     *
+     * @param tx    transaction
+     * @return  true:新規
+     */
+    synchronized boolean addTransaction(Transaction tx) {
+        return mempool.putIfAbsent(tx.getTxId(), tx) == null;
+    }
+    //
+    synchronized Transaction getTransaction(Sha256Hash txid) {
+        return mempool.get(txid);
+    }
+    //
+    synchronized List<Transaction> getMempool() {
+        return new ArrayList<>(mempool.values());
+    }
+    //
+    /**
+     * @param blockHash block hash
+     * @return  block(stale blockを含む, 未知:null)
+     */
+    synchronized Block getBlock(Sha256Hash blockHash) {
+        return blocks.get(blockHash);
+    }
+    //
+    /**
+     * @param blockHash block hash
+     * @return  height(active chainにない:-1)
+     */
+    synchronized int getHeight(Sha256Hash blockHash) {
+        Integer height = activeHeights.get(blockHash);
+        return (height != null) ? height : -1;
+    }
+    //
+    synchronized Block tip() {
+        return active.get(active.size() - 1);
+    }
+    //
+    synchronized int tipHeight() {
+        return active.size() - 1;
+    }
+    //
+    /** getheaders / getblocks の応答対象
+     *
+     *  locatorのうちactive chainにある最初のhashの次から、stopHashまたは max 個まで。
+     *
+     * @param locator   block locator
+     * @param stopHash  終端(ZERO_HASH:指定なし)
+     * @param max       最大数
+     * @return  blocks
+     */
+    synchronized List<Block> getBlocksAfter(BlockLocator locator, Sha256Hash stopHash, int max) {
+        int start = 0;
+        for (Sha256Hash hash : locator.getHashes()) {
+            Integer height = activeHeights.get(hash);
+            if (height != null) {
+                start = height;
+                break;
+            }
+        }
+        List<Block> result = new ArrayList<>();
+        for (int height = start + 1; (height < active.size()) && (result.size() < max); height++) {
+            Block block = active.get(height);
+            result.add(block);
+            if (block.getHash().equals(stopHash)) {
+                break;
+            }
+        }
+        return result;
+    }
+}
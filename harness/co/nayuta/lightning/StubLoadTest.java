@@ -0,0 +1,259 @@
+package co.nayuta.lightning;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.Utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/** stub peerを使ったSPV層の負荷試験
+ *
+ *  StubNetworkを起動してPtarmigan.spv_start("regtest")を接続し、
+ *  channelを登録(lastConfirm=0)してからfunding_txをmineする。
+ *  その後、funding_txを消費するtxをPtarmigan経由でbroadcastしながら、
+ *  blockごとに checkUnspentBatch / getTxConfirmationBatch を計測する。
+ *  walletやchain fileはcurrent directoryに作られるので、空のdirectoryで実行する(gradle stubLoadTest)。
+ *
+ *  設定(system property):
+ *      stub.blocks         chain長(1000)
+ *      stub.txPerBlock     1 blockのtx数(200)
+ *      stub.outputs        埋め草txのoutput数(2)
+ *      stub.peers          peer数(4)
+ *      stub.port           最初のpeerのport(18444)
+ *      stub.latency        応答遅延msec(0)
+ *      stub.jitter         応答遅延の揺らぎmsec(0)
+ *      stub.rejectRate     txをrejectする確率(0)
+ *      stub.failRate       getdataで切断する確率(0)
+ *      stub.channels       channel数(10000)
+ *      stub.rounds         計測回数(1回ごとにblockを1つ追加)(10)
+ *      stub.spend          1回ごとにbroadcastするfunding_tx消費tx数(10)
+ *      stub.reorgEvery     reorgする間隔(0:しない)
+ *      stub.reorgDepth     reorgで外すblock数(2)
+ *      stub.stallRound     peer[0]が応答しなくなる回(-1:しない)
+ *      stub.seed           乱数seed(1)
+ *      stub.staged         spv_start_staged()で起動する(false)
+ */
+public class StubLoadTest {
+    private static final long FUNDING_AMOUNT = 1000000;
+    private static final long TIMEOUT_SYNC = 60000;     //msec
+    private static final long TIMEOUT_BROADCAST = 30000;    //msec
+    private static final int PEERID_LEN = 33;
+    private static final int OUTPOINT_LEN = Sha256Hash.LENGTH + 4;
+    private static final int WITNESSPROGRAM_LEN = 34;
+    //
+    private static class Channel {
+        final byte[] peerId = new byte[PEERID_LEN];
+        final byte[] scriptHash = new byte[32];
+        Transaction funding;
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        int blocks = Integer.getInteger("stub.blocks", 1000);
+        int txPerBlock = Integer.getInteger("stub.txPerBlock", 200);
+        int outputs = Integer.getInteger("stub.outputs", 2);
+        int peers = Integer.getInteger("stub.peers", 4);
+        int port = Integer.getInteger("stub.port", 18444);
+        long latency = Long.getLong("stub.latency", 0);
+        long jitter = Long.getLong("stub.jitter", 0);
+        double rejectRate = Double.parseDouble(System.getProperty("stub.rejectRate", "0"));
+        double failRate = Double.parseDouble(System.getProperty("stub.failRate", "0"));
+        int channelCount = Integer.getInteger("stub.channels", 10000);
+        int rounds = Integer.getInteger("stub.rounds", 10);
+        int spendPerRound = Integer.getInteger("stub.spend", 10);
+        int reorgEvery = Integer.getInteger("stub.reorgEvery", 0);
+        int reorgDepth = Integer.getInteger("stub.reorgDepth", 2);
+        int stallRound = Integer.getInteger("stub.stallRound", -1);
+        long seed = Long.getLong("stub.seed", 1);
+        boolean staged = Boolean.getBoolean("stub.staged");
+
+        //chain
+        Random random = new Random(seed);
+        StubChain chain = new StubChain(txPerBlock, outputs, seed);
+        chain.generate(blocks, System.currentTimeMillis() / 1000);
+        System.out.println("chain: height=" + chain.tipHeight());
+
+        //peers
+        StubNetwork network = new StubNetwork(chain, port, peers);
+        network.start();
+        network.setLatency(latency, jitter);
+        network.setRejectRate(rejectRate);
+        network.setFailRate(failRate);
+        if ((peers != 1) || (port != chain.params.getPort())) {
+            System.setProperty("ptarmigan.peers", network.getPeerNodes());
+        }
+
+        //Ptarmigan
+        Ptarmigan ptarm = new Ptarmigan();
+        long start = System.currentTimeMillis();
+        int ret = staged ? ptarm.spv_start_staged("regtest") : ptarm.spv_start("regtest");
+        System.out.println("spv_start: " + ret + " (" + (System.currentTimeMillis() - start) + " msec, " + ptarm.getSyncProgress() + ")");
+        if (ret != Ptarmigan.SPV_START_OK) {
+            network.stop();
+            System.exit(1);
+        }
+        if (staged) {
+            System.out.println("sync: " + waitSyncDone(ptarm) + " msec (" + ptarm.getSyncProgress() + ")");
+        }
+
+        //channels(funding_txはまだmineしない)
+        List<Channel> channels = new ArrayList<>();
+        List<SetChannelParam> params = new ArrayList<>();
+        byte[] peerIds = new byte[channelCount * PEERID_LEN];
+        byte[] outPoints = new byte[channelCount * OUTPOINT_LEN];
+        byte[] txids = new byte[channelCount * Sha256Hash.LENGTH];
+        int[] vIndexes = new int[channelCount];
+        byte[] witnessPrograms = new byte[channelCount * WITNESSPROGRAM_LEN];
+        long[] amounts = new long[channelCount];
+        byte[] startHash = chain.tip().getHash().getReversedBytes();
+        for (int i = 0; i < channelCount; i++) {
+            Channel ch = new Channel();
+            random.nextBytes(ch.peerId);
+            ch.peerId[0] = 0x02;
+            random.nextBytes(ch.scriptHash);
+            ch.funding = chain.createFunding(ch.scriptHash, FUNDING_AMOUNT);
+            channels.add(ch);
+            byte[] txid = ch.funding.getTxId().getReversedBytes();
+            params.add(new SetChannelParam(ch.peerId, 0, txid, 0, ch.scriptHash, startHash, 0));
+            System.arraycopy(ch.peerId, 0, peerIds, i * PEERID_LEN, PEERID_LEN);
+            System.arraycopy(txid, 0, outPoints, i * OUTPOINT_LEN, Sha256Hash.LENGTH);
+            Utils.uint32ToByteArrayLE(0, outPoints, i * OUTPOINT_LEN + Sha256Hash.LENGTH);
+            System.arraycopy(txid, 0, txids, i * Sha256Hash.LENGTH, Sha256Hash.LENGTH);
+            witnessPrograms[i * WITNESSPROGRAM_LEN] = 0x00;
+            witnessPrograms[i * WITNESSPROGRAM_LEN + 1] = 0x20;
+            System.arraycopy(ch.scriptHash, 0, witnessPrograms, i * WITNESSPROGRAM_LEN + 2, ch.scriptHash.length);
+            amounts[i] = FUNDING_AMOUNT;
+        }
+        start = System.currentTimeMillis();
+        boolean[] results = ptarm.setChannels(params);
+        int ok = 0;
+        for (boolean result : results) {
+            ok += result ? 1 : 0;
+        }
+        System.out.println("setChannels: " + ok + "/" + channelCount + " (" + (System.currentTimeMillis() - start) + " msec)");
+
+        //funding_txをmine
+        int fundingBlocks = (channelCount + txPerBlock - 1) / txPerBlock;
+        network.mine(fundingBlocks);
+        System.out.println("funding: " + fundingBlocks + " blocks, sync=" + waitSync(ptarm, chain.tipHeight()) + " msec");
+
+        //rounds
+        int spentCount = 0;
+        for (int round = 0; round < rounds; round++) {
+            if (round == stallRound) {
+                System.out.println("peer[0] stalled");
+                network.getPeer(0).stalled = true;
+            }
+            List<byte[]> spends = new ArrayList<>();
+            for (int i = 0; (i < spendPerRound) && (spentCount < channelCount); i++, spentCount++) {
+                Channel ch = channels.get(spentCount);
+                spends.add(chain.createSpend(new TransactionOutPoint(chain.params, 0, ch.funding.getTxId())).bitcoinSerialize());
+            }
+            start = System.currentTimeMillis();
+            List<byte[]> sent = ptarm.sendRawTxAsync(spends);
+            long broadcastMsec = waitBroadcast(ptarm, sent);
+            int[] status = new int[Ptarmigan.SENDTX_CONFIRMED + 1];
+            for (byte[] txid : sent) {
+                int st = (txid != null) ? ptarm.getSendRawTxStatus(txid) : Ptarmigan.SENDTX_FAIL;
+                if (st >= 0) {
+                    status[st]++;
+                }
+            }
+
+            if ((reorgEvery > 0) && (round > 0) && (round % reorgEvery == 0)) {
+                System.out.println("reorg: depth=" + reorgDepth);
+                network.reorg(reorgDepth, reorgDepth + 1);
+            } else {
+                network.mine(1);
+            }
+            long syncMsec = waitSync(ptarm, chain.tipHeight());
+
+            start = System.currentTimeMillis();
+            int[] unspent = ptarm.checkUnspentBatch(peerIds, outPoints);
+            long unspentMsec = System.currentTimeMillis() - start;
+            start = System.currentTimeMillis();
+            int[] confirm = ptarm.getTxConfirmationBatch(txids, vIndexes, witnessPrograms, amounts);
+            long confirmMsec = System.currentTimeMillis() - start;
+
+            int spent = 0;
+            int fail = 0;
+            for (int result : unspent) {
+                spent += (result == Ptarmigan.CHECKUNSPENT_SPENT) ? 1 : 0;
+                fail += (result == Ptarmigan.CHECKUNSPENT_FAIL) ? 1 : 0;
+            }
+            int unconfirmed = 0;
+            for (int result : confirm) {
+                unconfirmed += (result <= 0) ? 1 : 0;
+            }
+            System.out.println("round " + round + ": height=" + chain.tipHeight() +
+                    ", broadcast=" + broadcastMsec + " msec(ok=" + status[Ptarmigan.SENDTX_OK] +
+                            ", reject=" + status[Ptarmigan.SENDTX_REJECT] + ", fail=" + status[Ptarmigan.SENDTX_FAIL] + ")" +
+                    ", sync=" + syncMsec + " msec" +
+                    ", checkUnspentBatch=" + unspentMsec + " msec(spent=" + spent + "/" + spentCount + ", fail=" + fail + ")" +
+                    ", getTxConfirmationBatch=" + confirmMsec + " msec(unconfirmed=" + unconfirmed + ")");
+        }
+
+        System.out.println(ptarm.getMetrics());
+        network.stop();
+        System.exit(0);
+    }
+    //
+    /** broadcast結果が出るまで待つ
+     *
+     * @return  待ち時間(msec, timeout:-1)
+     */
+    private static long waitBroadcast(Ptarmigan ptarm, List<byte[]> txids) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < TIMEOUT_BROADCAST) {
+            boolean pending = false;
+            for (byte[] txid : txids) {
+                if ((txid != null) && (ptarm.getSendRawTxStatus(txid) == Ptarmigan.SENDTX_PENDING)) {
+                    pending = true;
+                    break;
+                }
+            }
+            if (!pending) {
+                return System.currentTimeMillis() - start;
+            }
+            Thread.sleep(10);
+        }
+        return -1;
+    }
+    //
+    /** staged startのblock download完了を待つ
+     *
+     * @return  待ち時間(msec, timeout:-1)
+     */
+    private static long waitSyncDone(Ptarmigan ptarm) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < TIMEOUT_SYNC) {
+            if (ptarm.getSyncProgress().state == Ptarmigan.SYNC_DONE) {
+                return System.currentTimeMillis() - start;
+            }
+            Thread.sleep(10);
+        }
+        return -1;
+    }
+    //
+    /** Ptarmiganのblock heightがheightに達するまで待つ
+     *
+     * @return  待ち時間(msec, timeout:-1)
+     */
+    private static long waitSync(Ptarmigan ptarm, int height) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < TIMEOUT_SYNC) {
+            try {
+                if (ptarm.getBlockCount((byte[])null) >= height) {
+                    return System.currentTimeMillis() - start;
+                }
+            } catch (Ptarmigan.PtarmException e) {
+                //retry
+            }
+            Thread.sleep(10);
+        }
+        return -1;
+    }
+}
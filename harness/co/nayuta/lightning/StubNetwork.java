@@ -0,0 +1,159 @@
+package co.nayuta.lightning;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/** stub peerの集合
+ *
+ *  全peerが同じStubChainを配信する。
+ *  mine()/reorg()はchainを更新し、全peerから通知する。
+ *  peerが受け付けたtxは RELAY_DELAY 後に他のpeerからinvで通知される(broadcast完了の判定に必要)。
+ *  bitcoinjはtx送信後にconfidence listenerを登録するため、即座に通知すると取りこぼして
+ *  broadcastがtimeoutする。Bitcoin Coreのinv trickleと同様に遅らせて通知する。
+ *
+ *  Ptarmiganからの接続:
+ *      peer数が1でportがregtestのdefault(18444)なら spv_start("regtest") がそのまま接続する。
+ *      それ以外は -Dptarmigan.peers=getPeerNodes() を指定する。
+ */
+class StubNetwork {
+    private static final long RELAY_DELAY = 200;        //msec
+    //
+    final StubChain chain;
+    private final List<StubPeer> peers = new ArrayList<>();
+    private final ScheduledExecutorService relayer;
+    private final Logger logger;
+    //
+    //
+    /**
+     * @param chain     配信するchain
+     * @param basePort  最初のpeerのport(以降+1ずつ)
+     * @param peerCount peer数
+     */
+    StubNetwork(StubChain chain, int basePort, int peerCount) {
+        this.logger = LoggerFactory.getLogger(this.getClass());
+        this.chain = chain;
+        this.relayer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread th = new Thread(r, "stub-relay");
+            th.setDaemon(true);
+            return th;
+        });
+        for (int i = 0; i < peerCount; i++) {
+            peers.add(new StubPeer(this, basePort + i));
+        }
+    }
+    //
+    void start() throws IOException {
+        for (StubPeer peer : peers) {
+            peer.start();
+        }
+    }
+    //
+    void stop() {
+        relayer.shutdownNow();
+        for (StubPeer peer : peers) {
+            peer.stop();
+        }
+    }
+    //
+    StubPeer getPeer(int index) {
+        return peers.get(index);
+    }
+    //
+    /** ptarmigan.peers に指定する文字列
+     *
+     * @return  "127.0.0.1:port,..."
+     */
+    String getPeerNodes() {
+        StringBuilder sb = new StringBuilder();
+        for (StubPeer peer : peers) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append("127.0.0.1:").append(peer.getPort());
+        }
+        return sb.toString();
+    }
+    //
+    /** 全peerの応答遅延 */
+    void setLatency(long latencyMsec, long jitterMsec) {
+        for (StubPeer peer : peers) {
+            peer.latencyMsec = latencyMsec;
+            peer.jitterMsec = jitterMsec;
+        }
+    }
+    //
+    /** 全peerのreject率 */
+    void setRejectRate(double rate) {
+        for (StubPeer peer : peers) {
+            peer.rejectRate = rate;
+        }
+    }
+    //
+    /** 全peerの切断率 */
+    void setFailRate(double rate) {
+        for (StubPeer peer : peers) {
+            peer.failRate = rate;
+        }
+    }
+    //
+    /** blockを生成して通知
+     *
+     * @param count block数
+     * @return  生成したblock
+     */
+    List<Block> mine(int count) {
+        List<Block> blocks = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            blocks.add(chain.mine());
+        }
+        announce(blocks);
+        return blocks;
+    }
+    //
+    /** reorgを起こして通知
+     *
+     * @param depth     外すblock数
+     * @param length    新しいblock数
+     * @return  新しいblock
+     */
+    List<Block> reorg(int depth, int length) {
+        List<Block> blocks = chain.reorg(depth, length);
+        announce(blocks);
+        return blocks;
+    }
+    //
+    private void announce(List<Block> blocks) {
+        logger.debug("StubNetwork: announce {} blocks: tip={}", blocks.size(), chain.tipHeight());
+        for (StubPeer peer : peers) {
+            peer.announce(blocks);
+        }
+    }
+    //
+    /** peerが受信したtxをmempoolへ入れ、他のpeerから通知する
+     *
+     * @param tx    transaction
+     * @param from  受信したpeer
+     */
+    void relay(Transaction tx, StubPeer from) {
+        if (!chain.addTransaction(tx)) {
+            return;
+        }
+        logger.debug("StubNetwork: relay {}", tx.getTxId());
+        relayer.schedule(() -> {
+            for (StubPeer peer : peers) {
+                if (peer != from) {
+                    peer.announce(tx);
+                }
+            }
+        }, RELAY_DELAY, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,422 @@
+package co.nayuta.lightning;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.FilteredBlock;
+import org.bitcoinj.core.GetBlocksMessage;
+import org.bitcoinj.core.GetDataMessage;
+import org.bitcoinj.core.GetHeadersMessage;
+import org.bitcoinj.core.HeadersMessage;
+import org.bitcoinj.core.InventoryItem;
+import org.bitcoinj.core.InventoryMessage;
+import org.bitcoinj.core.MemoryPoolMessage;
+import org.bitcoinj.core.Message;
+import org.bitcoinj.core.MessageSerializer;
+import org.bitcoinj.core.NotFoundMessage;
+import org.bitcoinj.core.PartialMerkleTree;
+import org.bitcoinj.core.Ping;
+import org.bitcoinj.core.Pong;
+import org.bitcoinj.core.RejectMessage;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.core.VersionAck;
+import org.bitcoinj.core.VersionMessage;
+import org.bitcoinj.script.ScriptChunk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+
+/** Bitcoin P2P stub peer
+ *
+ *  localhostの1 portで待ち受け、StubChainを配信する。
+ *  接続ごとにthreadを1つ使い、受信順に応答する(blocking socket)。
+ *
+ *  応答するmessage:
+ *      version, ping, getheaders, getblocks, getdata(block/filtered block/tx),
+ *      filterload, mempool, tx
+ *
+ *  fault injection(実行中に変更できる):
+ *      latencyMsec     応答前の待ち時間(+0～jitterMsec)
+ *      rejectRate      受信txにrejectを返す確率
+ *      failRate        getdata受信時に切断する確率
+ *      stalled         trueの間getdataに応答しない
+ */
+class StubPeer {
+    private static final int MAX_HEADERS = 2000;
+    private static final int MAX_INV = 500;
+    private static final int MAX_PAYLOAD = 32 * 1024 * 1024;
+    private static final int HEADER_LEN = 24;           //magic(4) + command(12) + length(4) + checksum(4)
+    private static final long SERVICES = VersionMessage.NODE_NETWORK | VersionMessage.NODE_BLOOM | VersionMessage.NODE_WITNESS;
+    //
+    private final StubNetwork network;
+    private final StubChain chain;
+    private final int port;
+    private final MessageSerializer serializer;
+    private final List<Connection> connections = new CopyOnWriteArrayList<>();
+    private ServerSocket server;
+    volatile long latencyMsec = 0;
+    volatile long jitterMsec = 0;
+    volatile double rejectRate = 0.0;
+    volatile double failRate = 0.0;
+    volatile boolean stalled = false;
+    private final Logger logger;
+    //
+    //
+    /**
+     * @param network   所属するnetwork(tx relay先)
+     * @param port      待ち受けport
+     */
+    StubPeer(StubNetwork network, int port) {
+        this.logger = LoggerFactory.getLogger(this.getClass());
+        this.network = network;
+        this.chain = network.chain;
+        this.port = port;
+        this.serializer = chain.params.getDefaultSerializer();
+    }
+    //
+    int getPort() {
+        return port;
+    }
+    //
+    synchronized void start() throws IOException {
+        if (server != null) {
+            return;
+        }
+        server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        ServerSocket listen = server;
+        Thread th = new Thread(() -> accept(listen), "stub-peer-" + port);
+        th.setDaemon(true);
+        th.start();
+        logger.info("StubPeer: listen {}", port);
+    }
+    //
+    /** 待ち受けを止め、全接続を切断する */
+    synchronized void stop() {
+        if (server == null) {
+            return;
+        }
+        try {
+            server.close();
+        } catch (IOException e) {
+            logger.error("StubPeer: close: " + e.getMessage());
+        }
+        server = null;
+        disconnectAll();
+        logger.info("StubPeer: stop {}", port);
+    }
+    //
+    /** 全接続を切断する(待ち受けは続ける) */
+    void disconnectAll() {
+        for (Connection conn : connections) {
+            conn.close();
+        }
+    }
+    //
+    private void accept(ServerSocket listen) {
+        while (!listen.isClosed()) {
+            try {
+                Socket socket = listen.accept();
+                socket.setTcpNoDelay(true);
+                Connection conn = new Connection(socket);
+                connections.add(conn);
+                Thread th = new Thread(conn::run, "stub-peer-" + port + "-" + socket.getPort());
+                th.setDaemon(true);
+                th.start();
+            } catch (IOException e) {
+                if (!listen.isClosed()) {
+                    logger.error("StubPeer: accept: " + e.getMessage());
+                }
+            }
+        }
+    }
+    //
+    /** 新しいblockを全接続へinvで通知 */
+    void announce(List<Block> blocks) {
+        InventoryMessage inv = new InventoryMessage(chain.params);
+        for (Block block : blocks) {
+            inv.addBlock(block);
+        }
+        for (Connection conn : connections) {
+            conn.sendQuietly(inv);
+        }
+    }
+    //
+    /** txを全接続へinvで通知 */
+    void announce(Transaction tx) {
+        for (Connection conn : connections) {
+            conn.sendQuietly(InventoryMessage.with(tx));
+        }
+    }
+    //
+    private void delay() {
+        long msec = latencyMsec;
+        if (jitterMsec > 0) {
+            msec += ThreadLocalRandom.current().nextLong(jitterMsec + 1);
+        }
+        if (msec > 0) {
+            try {
+                Thread.sleep(msec);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    //
+    private static boolean chance(double rate) {
+        return (rate > 0.0) && (ThreadLocalRandom.current().nextDouble() < rate);
+    }
+
+
+    /**************************************************************************
+     * connection
+     **************************************************************************/
+
+    private class Connection {
+        private final Socket socket;
+        private final OutputStream out;
+        private BloomFilter filter;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        void run() {
+            Context.propagate(new Context(chain.params));
+            logger.debug("StubPeer: connected {}", socket.getRemoteSocketAddress());
+            try {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                while (!socket.isClosed()) {
+                    handle(read(in));
+                }
+            } catch (Exception e) {
+                if (!socket.isClosed()) {
+                    logger.debug("StubPeer: disconnect: {}", e.toString(), e);
+                }
+            } finally {
+                close();
+            }
+        }
+
+        private Message read(DataInputStream in) throws IOException {
+            byte[] header = new byte[HEADER_LEN];
+            in.readFully(header);
+            int length = ByteBuffer.wrap(header, 16, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+            if ((length < 0) || (length > MAX_PAYLOAD)) {
+                throw new IOException("payload too large: " + length);
+            }
+            byte[] packet = new byte[HEADER_LEN + length];
+            System.arraycopy(header, 0, packet, 0, HEADER_LEN);
+            in.readFully(packet, HEADER_LEN, length);
+            return serializer.deserialize(ByteBuffer.wrap(packet));
+        }
+
+        private void handle(Message m) throws IOException {
+            if (m instanceof VersionMessage) {
+                VersionMessage ver = new VersionMessage(chain.params, chain.tipHeight());
+                ver.localServices = SERVICES;
+                ver.subVer = "/ptarm-stub:0.1/";
+                send(ver);
+                send(new VersionAck());
+                return;
+            }
+            if ((m instanceof VersionAck) || (m instanceof Pong)) {
+                return;
+            }
+            delay();
+            if (m instanceof Ping) {
+                Ping ping = (Ping)m;
+                if (ping.hasNonce()) {
+                    send(new Pong(ping.getNonce()));
+                }
+            } else if (m instanceof GetHeadersMessage) {
+                GetHeadersMessage req = (GetHeadersMessage)m;
+                send(new HeadersMessage(chain.params,
+                        chain.getBlocksAfter(req.getLocator(), req.getStopHash(), MAX_HEADERS)));
+            } else if (m instanceof GetBlocksMessage) {
+                GetBlocksMessage req = (GetBlocksMessage)m;
+                List<Block> blocks = chain.getBlocksAfter(req.getLocator(), req.getStopHash(), MAX_INV);
+                if (!blocks.isEmpty()) {
+                    InventoryMessage inv = new InventoryMessage(chain.params);
+                    for (Block block : blocks) {
+                        inv.addBlock(block);
+                    }
+                    send(inv);
+                }
+            } else if (m instanceof GetDataMessage) {
+                getData((GetDataMessage)m);
+            } else if (m instanceof BloomFilter) {
+                filter = (BloomFilter)m;
+            } else if (m instanceof MemoryPoolMessage) {
+                InventoryMessage inv = new InventoryMessage(chain.params);
+                for (Transaction tx : chain.getMempool()) {
+                    if ((filter == null) || matches(tx)) {
+                        inv.addTransaction(tx);
+                    }
+                }
+                if (!inv.getItems().isEmpty()) {
+                    send(inv);
+                }
+            } else if (m instanceof Transaction) {
+                receiveTx((Transaction)m);
+            } else {
+                logger.debug("StubPeer: ignore {}", m.getClass().getSimpleName());
+            }
+        }
+
+        private void getData(GetDataMessage req) throws IOException {
+            if (stalled) {
+                logger.debug("StubPeer: stalled: drop getdata");
+                return;
+            }
+            if (chance(failRate)) {
+                logger.info("StubPeer: inject failure {}", port);
+                close();
+                return;
+            }
+            List<InventoryItem> notFound = new ArrayList<>();
+            for (InventoryItem item : req.getItems()) {
+                switch (item.type) {
+                case BLOCK:
+                case WITNESS_BLOCK:
+                case FILTERED_BLOCK:
+                case WITNESS_FILTERED_BLOCK: {
+                    Block block = chain.getBlock(item.hash);
+                    if (block == null) {
+                        notFound.add(item);
+                    } else if ((filter != null) &&
+                            ((item.type == InventoryItem.Type.FILTERED_BLOCK) ||
+                             (item.type == InventoryItem.Type.WITNESS_FILTERED_BLOCK))) {
+                        sendFiltered(block);
+                    } else {
+                        send(block);
+                    }
+                    break;
+                }
+                case TRANSACTION:
+                case WITNESS_TRANSACTION: {
+                    Transaction tx = chain.getTransaction(item.hash);
+                    if (tx != null) {
+                        send(tx);
+                    } else {
+                        notFound.add(item);
+                    }
+                    break;
+                }
+                default:
+                    notFound.add(item);
+                    break;
+                }
+            }
+            if (!notFound.isEmpty()) {
+                send(new NotFoundMessage(chain.params, notFound));
+            }
+        }
+
+        /** merkleblock + 一致したtx
+         *
+         *  BloomFilter.applyAndUpdate(Block)はpush dataのないchunk(P2WSHのOP_0等)でNPEになるため、
+         *  同じ判定をここで行う。
+         */
+        private void sendFiltered(Block block) throws IOException {
+            List<Transaction> txs = block.getTransactions();
+            List<Sha256Hash> txids = new ArrayList<>(txs.size());
+            List<Transaction> matched = new ArrayList<>();
+            byte[] bits = new byte[(txs.size() + 7) / 8];
+            for (int i = 0; i < txs.size(); i++) {
+                Transaction tx = txs.get(i);
+                txids.add(tx.getTxId());
+                if (matches(tx)) {
+                    Utils.setBitLE(bits, i);
+                    matched.add(tx);
+                }
+            }
+            PartialMerkleTree pmt = PartialMerkleTree.buildFromLeaves(chain.params, bits, txids);
+            send(new FilteredBlock(chain.params, block.cloneAsHeader(), pmt));
+            for (Transaction tx : matched) {
+                send(tx);
+            }
+        }
+
+        private boolean matches(Transaction tx) {
+            if (filter.matchesAll() || filter.contains(tx.getTxId().getBytes())) {
+                return true;
+            }
+            boolean found = false;
+            for (TransactionOutput output : tx.getOutputs()) {
+                for (ScriptChunk chunk : output.getScriptPubKey().getChunks()) {
+                    if ((chunk.data != null) && (chunk.data.length > 0) && filter.contains(chunk.data)) {
+                        if (filter.getUpdateFlag() == BloomFilter.BloomUpdate.UPDATE_ALL) {
+                            filter.insert(output.getOutPointFor());
+                        }
+                        found = true;
+                        break;
+                    }
+                }
+            }
+            if (found) {
+                return true;
+            }
+            for (TransactionInput input : tx.getInputs()) {
+                if (filter.contains(input.getOutpoint().unsafeBitcoinSerialize())) {
+                    return true;
+                }
+                for (ScriptChunk chunk : input.getScriptSig().getChunks()) {
+                    if ((chunk.data != null) && (chunk.data.length > 0) && filter.contains(chunk.data)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private void receiveTx(Transaction tx) throws IOException {
+            if (chance(rejectRate)) {
+                logger.info("StubPeer: inject reject {}", tx.getTxId());
+                send(new RejectMessage(chain.params, RejectMessage.RejectCode.INVALID, tx.getTxId(),
+                        "tx", "stub-reject"));
+                return;
+            }
+            network.relay(tx, StubPeer.this);
+        }
+
+        synchronized void send(Message m) throws IOException {
+            serializer.serialize(m, out);
+            out.flush();
+        }
+
+        void sendQuietly(Message m) {
+            try {
+                send(m);
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void close() {
+            connections.remove(this);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package co.nayuta.lightning;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+/** block単位の小さな処理
+ *
+ *  getHeightFromCoinbase(), ShortChannelParam の encode/decode,
+ *  findRegisteredTx() が行う ChannelRegistry の検索。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlockParseBenchmark {
+    private static final int CHANNELS = 10000;
+    //
+    private ChainFixture chain;
+    private Block block;
+    private byte[] coinbaseScript;
+    private ChannelRegistry channels;
+    private Transaction otherTx;
+    private long shortChannelId;
+    //
+    //
+    @Setup(Level.Trial)
+    public void setup() {
+        chain = new ChainFixture(2, 1000, 1, 2);
+        block = chain.tip();
+        coinbaseScript = block.getTransactions().get(0).getInput(0).getScriptBytes();
+        channels = new ChannelRegistry();
+        Transaction[] txs = chain.blocks.get(0).getTransactions().toArray(new Transaction[0]);
+        for (int i = 0; i < CHANNELS; i++) {
+            byte[] peerId = new byte[33];
+            peerId[0] = 0x02;
+            peerId[1] = (byte)(i >> 8);
+            peerId[2] = (byte)i;
+            ShortChannelParam param = new ShortChannelParam();
+            PtarmiganChannel ch = new PtarmiganChannel(peerId, param);
+            Transaction funding = txs[1 + i % (txs.length - 1)];
+            ch.initialize(0, new TransactionOutPoint(chain.params, i, funding.getTxId()), Ptarmigan.CHECKUNSPENT_UNSPENT);
+            channels.put(ch);
+        }
+        otherTx = block.getTransactions().get(block.getTransactions().size() - 1);
+        shortChannelId = new ShortChannelParam(600000, 1234, 1).toShortChannelId();
+    }
+    //
+    /** getHeightFromCoinbase()のparse部分 */
+    @Benchmark
+    public long coinbaseHeightParse() {
+        return Ptarmigan.parseCoinbaseHeight(coinbaseScript, true);
+    }
+    //
+    /** getHeightFromCoinbase(): parse + BIP34検証 */
+    @Benchmark
+    public long coinbaseHeightVerify() throws Exception {
+        long height = Ptarmigan.parseCoinbaseHeight(coinbaseScript, true);
+        block.verify((int)height, EnumSet.of(Block.VerifyFlag.HEIGHT_IN_COINBASE));
+        return height;
+    }
+    //
+    @Benchmark
+    public void shortChannelIdDecodeEncode(Blackhole bh) {
+        ShortChannelParam param = new ShortChannelParam(shortChannelId);
+        bh.consume(param.toShortChannelId());
+    }
+    //
+    /** findRegisteredTx(): 登録channelと無関係なtx(通常のcase) */
+    @Benchmark
+    public PtarmiganChannel findRegisteredTxMiss() {
+        PtarmiganChannel ch = channels.getByFundingOutpoint(otherTx.getInput(0).getOutpoint());
+        if (ch == null) {
+            ch = channels.getByCommitTxid(otherTx.getTxId());
+        }
+        return ch;
+    }
+}
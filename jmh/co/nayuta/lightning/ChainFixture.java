@@ -0,0 +1,119 @@
+package co.nayuta.lightning;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.SegwitAddress;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/** regtest形式の合成chain
+ *
+ *  genesisから blockCount 個のblockを作る。各blockは coinbase + txPerBlock 個のtx。
+ *  tx は乱数のoutpointを1つ消費し、P2WSH outputを1つ持つ。
+ *  heightは BASE_HEIGHT から始まる(coinbaseは3byte pushになる)。
+ *
+ *  benchmark用の目印:
+ *      fundingTx   最も古いblockに含まれるtx(outpoint: fundingOutPoint)
+ *      spendTx     fundingOutPointを消費するtx(spendDepth番目のblock)
+ *      unspent     どのblockでも消費されないoutpoint
+ */
+class ChainFixture {
+    static final int BASE_HEIGHT = 100000;
+    //
+    final NetworkParameters params = RegTestParams.get();
+    final List<Block> blocks = new ArrayList<>();      //[0]:最古, [size-1]:tip
+    final Transaction fundingTx;
+    final TransactionOutPoint fundingOutPoint;
+    final Transaction spendTx;
+    final TransactionOutPoint unspent;
+    //
+    //
+    /**
+     * @param blockCount    block数
+     * @param txPerBlock    coinbase以外のtx数
+     * @param spendDepth    tipから数えてspendTxを入れるblock(1:tip)
+     * @param seed          乱数seed
+     */
+    ChainFixture(int blockCount, int txPerBlock, int spendDepth, long seed) {
+        Context.propagate(new Context(params));
+        Random random = new Random(seed);
+        Address miner = SegwitAddress.fromKey(params, ECKey.fromPrivate(BigInteger.valueOf(seed + 1)));
+        Block prev = params.getGenesisBlock();
+        Transaction funding = null;
+        Transaction spend = null;
+        for (int i = 0; i < blockCount; i++) {
+            int height = BASE_HEIGHT + i;
+            Block block = prev.createNextBlock(miner, Block.BLOCK_VERSION_BIP34, prev.getTimeSeconds() + 600, height);
+            for (int j = 0; j < txPerBlock; j++) {
+                boolean mark = (j == txPerBlock / 2);
+                TransactionOutPoint input;
+                if (mark && (i > 0) && (i == blockCount - spendDepth)) {
+                    input = new TransactionOutPoint(params, 0, funding.getTxId());
+                } else {
+                    input = new TransactionOutPoint(params, 0, randomHash(random));
+                }
+                Transaction tx = createTx(input, random);
+                if (mark && (i == 0)) {
+                    funding = tx;
+                } else if (mark && (i == blockCount - spendDepth)) {
+                    spend = tx;
+                }
+                block.addTransaction(tx);
+            }
+            block.solve();
+            //peerから受信したblockと同じ状態にする
+            block = params.getDefaultSerializer().makeBlock(block.bitcoinSerialize());
+            blocks.add(block);
+            prev = block;
+        }
+        this.fundingTx = funding;
+        this.fundingOutPoint = new TransactionOutPoint(params, 0, funding.getTxId());
+        this.spendTx = spend;
+        this.unspent = new TransactionOutPoint(params, 1, randomHash(random));
+    }
+    //
+    private Transaction createTx(TransactionOutPoint input, Random random) {
+        Transaction tx = new Transaction(params);
+        tx.addInput(input.getHash(), input.getIndex(), new Script(new byte[0]));
+        byte[] scriptHash = new byte[32];
+        random.nextBytes(scriptHash);
+        tx.addOutput(Coin.valueOf(100000), ScriptBuilder.createP2WSHOutputScript(scriptHash));
+        return tx;
+    }
+    //
+    private static Sha256Hash randomHash(Random random) {
+        byte[] hash = new byte[Sha256Hash.LENGTH];
+        random.nextBytes(hash);
+        return Sha256Hash.wrap(hash);
+    }
+    //
+    Block tip() {
+        return blocks.get(blocks.size() - 1);
+    }
+    //
+    int tipHeight() {
+        return BASE_HEIGHT + blocks.size() - 1;
+    }
+    //
+    /** 全blockを登録したcache */
+    BlockCache newBlockCache() {
+        BlockCache cache = new BlockCache(Long.MAX_VALUE);
+        for (Block block : blocks) {
+            cache.put(block.getHash(), block);
+        }
+        return cache;
+    }
+}
@@ -0,0 +1,133 @@
+package co.nayuta.lightning;
+
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** chain walk benchmark
+ *
+ *  StubNetwork(regtest)に接続したPtarmiganで、実際の
+ *  checkUnspentFromBlock / getTxConfirmationFromBlock / searchOutPoint / searchVout を depth 段分呼び出す。
+ *  block取得、index(spent index, tx index)、prev hashの解決も本体と同じ経路を通る。
+ *
+ *  chain(tipから数えて):
+ *      depth番目       funding tx, unspent tx
+ *      depth/2番目     funding txを消費するspend tx
+ *
+ *  Ptarmiganはcurrent directoryに walletregtest/ と logs/ を作る(setupで walletregtest/ を作り直す)。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=off")
+public class ChainWalkBenchmark {
+    @Param({"144"})
+    int depth;
+    @Param({"500", "2000"})
+    int txPerBlock;
+    //
+    private static final long AMOUNT = 100000;
+    private static final long TIMEOUT_SYNC = 60000;
+    private static final long BLOCK_INTERVAL = 600;     //StubChainと同じ(sec)
+    //
+    private StubChain chain;
+    private StubNetwork network;
+    private Ptarmigan ptarm;
+    private Transaction fundingTx;
+    private TransactionOutPoint fundingOutPoint;
+    private TransactionOutPoint unspent;
+    private List<byte[]> spendScript;
+    //
+    //
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        chain = new StubChain(txPerBlock, 1, 1);
+        long now = System.currentTimeMillis() / 1000;
+        chain.generate(8, now - depth * BLOCK_INTERVAL);
+        fundingTx = chain.createFunding(new byte[32], AMOUNT);
+        fundingOutPoint = new TransactionOutPoint(chain.params, 0, fundingTx);
+        unspent = new TransactionOutPoint(chain.params, 0, chain.createFunding(new byte[32], AMOUNT));
+        chain.generate(depth / 2, now - (depth - depth / 2) * BLOCK_INTERVAL);
+        Transaction spendTx = chain.createSpend(fundingOutPoint);
+        chain.addTransaction(spendTx);
+        chain.generate(depth - depth / 2, now);
+        spendScript = Collections.singletonList(spendTx.getOutput(0).getScriptBytes());
+
+        network = new StubNetwork(chain, chain.params.getPort(), 1);
+        network.start();
+
+        //前回trialのwalletは別chainなので作り直す
+        deleteAll(new File("./walletregtest"));
+        new File("./logs").mkdirs();
+        ptarm = new Ptarmigan();
+        if (ptarm.spv_start("regtest") != Ptarmigan.SPV_START_OK) {
+            throw new IOException("spv_start");
+        }
+        long start = System.currentTimeMillis();
+        while (ptarm.getBlockCount((byte[])null) < chain.tipHeight()) {
+            if (System.currentTimeMillis() - start > TIMEOUT_SYNC) {
+                throw new IOException("sync timeout");
+            }
+            Thread.sleep(10);
+        }
+    }
+    //
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        network.stop();
+    }
+    //
+    private static void deleteAll(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+    //
+    /** checkUnspentFromBlock(): 未使用outpointのため depth 段遡る */
+    @Benchmark
+    public int checkUnspent() {
+        return ptarm.checkUnspentFromBlock(null, unspent, chain.tip().getHash(), null, null, new int[] { depth });
+    }
+    //
+    /** getTxConfirmationFromBlock(): depth番目のblockにあるfunding txのconfirmation */
+    @Benchmark
+    public int txConfirmation() throws Ptarmigan.PtarmException {
+        return ptarm.getTxConfirmationFromBlock(null, null, null, fundingTx.getTxId(), -1, null, 0);
+    }
+    //
+    /** searchOutPoint(): fundingを消費するtx */
+    @Benchmark
+    public SearchOutPointResult searchOutPoint() throws Ptarmigan.PtarmException {
+        return ptarm.searchOutPoint(depth, fundingOutPoint.getHash().getReversedBytes(), (int)fundingOutPoint.getIndex());
+    }
+    //
+    /** searchVout(): spend txのscriptPubKeyで depth 段走査する */
+    @Benchmark
+    public List<byte[]> searchVout() throws Ptarmigan.PtarmException {
+        return ptarm.searchVout(depth, spendScript);
+    }
+}
@@ -1,6 +1,11 @@
+import co.nayuta.lightning.PtarmEvent;
+import co.nayuta.lightning.PtarmEventListener;
 import co.nayuta.lightning.Ptarmigan;
 import co.nayuta.lightning.SearchOutPointResult;
+import co.nayuta.lightning.SendRawTxCallback;
+import co.nayuta.lightning.SetChannelParam;
 import co.nayuta.lightning.ShortChannelParam;
+import co.nayuta.lightning.SyncProgress;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -21,6 +26,23 @@ public class Main
         val = Ptarmigan.SPV_START_FILE;
         val = Ptarmigan.SPV_START_BJ;
         val = Ptarmigan.SPV_START_ERR;
+        val = Ptarmigan.SYNC_NONE;
+        val = Ptarmigan.SYNC_DOWNLOADING;
+        val = Ptarmigan.SYNC_DONE;
+        val = Ptarmigan.SYNC_FAIL;
+        val = Ptarmigan.SENDTX_UNKNOWN;
+        val = Ptarmigan.SENDTX_PENDING;
+        val = Ptarmigan.SENDTX_OK;
+        val = Ptarmigan.SENDTX_REJECT;
+        val = Ptarmigan.SENDTX_FAIL;
+        val = Ptarmigan.SENDTX_CONFIRMED;
+        val = Ptarmigan.EVENT_NEW_TIP;
+        val = Ptarmigan.EVENT_CONFIRMED;
+        val = Ptarmigan.EVENT_FUNDING_SPENT;
+        val = Ptarmigan.EVENT_COMMIT_SPENT;
+        val = Ptarmigan.EVENT_TX_REJECTED;
+        val = Ptarmigan.EVENT_PEER_LOST;
+        val = Ptarmigan.EVENT_REORG;
 
         try {
             int dummyInt = 0;
@@ -31,6 +53,8 @@ public class Main
             boolean dummyBool = false;
             long dummyLong = 0;
             dummyInt = ptarm.spv_start("test");
+            dummyInt = ptarm.spv_start_staged("test");
+            SyncProgress dummyProgress = ptarm.getSyncProgress();
             ptarm.setCreationHash(dummyBytes);
             dummyInt = ptarm.getBlockCount(dummyBytes);
             dummyBytes = ptarm.getGenesisBlockHash();
@@ -41,12 +65,40 @@ public class Main
             listDummy = ptarm.searchVout(0, new ArrayList<byte[]>());
             dummyBytes = ptarm.signRawTx(0, dummyBytes);
             dummyBytes = ptarm.sendRawTx(dummyBytes);
+            java.nio.ByteBuffer dummyBuf = null;
+            dummyInt = ptarm.getBlockCount(dummyBuf);
+            dummyInt = ptarm.searchOutPoint(0, dummyBuf, 0, dummyBuf);
+            dummyInt = ptarm.searchVout(0, dummyBuf, dummyBuf);
+            dummyInt = ptarm.signRawTx(0, dummyBuf, dummyBuf);
+            dummyBool = ptarm.sendRawTx(dummyBuf, dummyBuf);
+            listDummy = ptarm.sendRawTxAsync(new ArrayList<byte[]>());
+            dummyInt = ptarm.getSendRawTxStatus(dummyBytes);
+            ptarm.setSendRawTxCallback((SendRawTxCallback)null);
             dummyBool = ptarm.checkBroadcast(dummyBytes, dummyBytes);
             dummyInt = ptarm.checkUnspent(dummyBytes, dummyBytes, 0);
+            int[] dummyInts = ptarm.checkUnspentBatch(dummyBytes, dummyBytes);
+            dummyInts = ptarm.getTxConfirmationBatch(dummyBytes, null, null, null);
+            long[] dummyLongs = ptarm.getShortChannelIdBatch(dummyBytes);
             String dummyAddr = ptarm.getNewAddress();
             dummyLong = ptarm.estimateFee();
             dummyBool = ptarm.setChannel(dummyBytes, 0, dummyBytes, 0, dummyBytes, dummyBytes, 0);
+            boolean[] dummyBools = ptarm.setChannels(new ArrayList<SetChannelParam>());
             ptarm.delChannel(dummyBytes);
+            ptarm.addEventListener((PtarmEventListener)null);
+            ptarm.removeEventListener((PtarmEventListener)null);
+            PtarmEvent[] dummyEvents = ptarm.pollEvents(0, 0);
+            dummyLong = ptarm.getEventDropCount();
+            if (dummyEvents.length > 0) {
+                dummyInt = dummyEvents[0].getType();
+                dummyBytes = dummyEvents[0].getPeerId();
+                dummyBytes = dummyEvents[0].getTxid();
+                dummyBytes = dummyEvents[0].getBlockHash();
+                dummyInt = dummyEvents[0].getHeight();
+                dummyInt = dummyEvents[0].getConfirmation();
+                String dummyPeer = dummyEvents[0].getPeer();
+            }
+            String dummyMetrics = ptarm.getMetrics();
+            dummyLongs = ptarm.getApiLatency("");
             //ptarm.setCommitTxid(dummyBytes, 0, 0, null);
             dummyLong = ptarm.getBalance();
             dummyBytes = ptarm.emptyWallet("");
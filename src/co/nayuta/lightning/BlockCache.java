@@ -0,0 +1,127 @@
+package co.nayuta.lightning;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Sha256Hash;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/** block cache
+ *
+ *  serialized sizeの合計がbudgetを超えないよう、LRU順にblockを破棄する。
+ *  pinされたblock(channelが参照中のblock)は破棄しない。
+ */
+class BlockCache {
+    private final LinkedHashMap<Sha256Hash, Entry> map = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<Sha256Hash> pinned = new HashSet<>();
+    private final long maxBytes;
+    private long totalBytes = 0;
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+    private final Logger logger;
+    //
+    private static class Entry {
+        final Block block;
+        final int size;
+        //
+        Entry(Block block, int size) {
+            this.block = block;
+            this.size = size;
+        }
+    }
+    //
+    //
+    BlockCache(long maxBytes) {
+        this.logger = LoggerFactory.getLogger(this.getClass());
+        this.maxBytes = maxBytes;
+        logger.debug("BlockCache: maxBytes={}", maxBytes);
+    }
+    //
+    synchronized Block get(Sha256Hash blockHash) {
+        Entry entry = map.get(blockHash);
+        if (entry != null) {
+            hitCount++;
+            return entry.block;
+        }
+        missCount++;
+        return null;
+    }
+    //
+    synchronized boolean contains(Sha256Hash blockHash) {
+        return map.containsKey(blockHash);
+    }
+    //
+    synchronized void put(Sha256Hash blockHash, Block block) {
+        int size = block.getMessageSize();
+        if (size <= 0) {
+            size = block.bitcoinSerialize().length;
+        }
+        Entry old = map.put(blockHash, new Entry(block, size));
+        if (old != null) {
+            totalBytes -= old.size;
+        }
+        totalBytes += size;
+        evict();
+    }
+    //
+    synchronized void remove(Sha256Hash blockHash) {
+        Entry old = map.remove(blockHash);
+        if (old != null) {
+            totalBytes -= old.size;
+        }
+    }
+    //
+    /** pin対象を入れ替える
+     *
+     * @param hashes    channelが参照しているblock hash
+     */
+    synchronized void setPinned(Set<Sha256Hash> hashes) {
+        pinned.clear();
+        pinned.addAll(hashes);
+        evict();
+    }
+    //
+    private void evict() {
+        if (totalBytes <= maxBytes) {
+            return;
+        }
+        Iterator<Map.Entry<Sha256Hash, Entry>> it = map.entrySet().iterator();
+        while ((totalBytes > maxBytes) && it.hasNext()) {
+            Map.Entry<Sha256Hash, Entry> e = it.next();
+            if (pinned.contains(e.getKey())) {
+                continue;
+            }
+            totalBytes -= e.getValue().size;
+            it.remove();
+            evictionCount++;
+        }
+        if (totalBytes > maxBytes) {
+            logger.warn("BlockCache: over budget by pinned blocks: " + totalBytes);
+        }
+    }
+    //
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+    synchronized long getHitCount() {
+        return hitCount;
+    }
+    synchronized long getMissCount() {
+        return missCount;
+    }
+    synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+    //
+    @Override
+    public synchronized String toString() {
+        return String.format("blocks:%d, bytes:%d/%d, hit:%d, miss:%d, evict:%d",
+                map.size(), totalBytes, maxBytes, hitCount, missCount, evictionCount);
+    }
+}
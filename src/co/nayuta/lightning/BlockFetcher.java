@@ -0,0 +1,241 @@
+package co.nayuta.lightning;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Peer;
+import org.bitcoinj.core.Sha256Hash;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/** block fetch pipeline
+ *
+ *  - 複数peerへscore順にgetdataを並列発行する(prefetch)
+ *  - 取得はhash指定で待ち合わせるため、呼び出し側の順序(chain順)で受け取れる
+ *  - HEDGE時間内に応答がなければ別peerにも要求する
+ *  - peerの評価は応答(成功/失敗)時か、要求がtimeout/expireした時に記録する
+ *    (hedgeしただけでは遅いpeerを失敗扱いにしない)
+ */
+class BlockFetcher {
+    private static final long HEDGE_MSEC = 5000;
+    private static final int MAX_INFLIGHT = 32;
+    private static final long EXPIRE_MSEC = 120000;
+    private static final int PREFETCH_PEERS = 3;       //先行要求を分散するpeer数(score上位)
+    //
+    private final Supplier<List<Peer>> peerSupplier;
+    private final Consumer<Block> onBlock;
+    private final PeerScore peerScore;
+    private final Metrics.Histogram fetchLatency;
+    private final Metrics.Counter fetchBytes;
+    private final Metrics.Counter fetchFail;
+    private final ConcurrentHashMap<Sha256Hash, Request> inflight = new ConcurrentHashMap<>();
+    private final Logger logger;
+    //
+    private static class Request {
+        final SettableFuture<Block> future = SettableFuture.create();
+        final List<Peer> peers = new ArrayList<>();
+        final List<Peer> pending = new ArrayList<>();      //応答待ちpeer
+        final long startTime = System.currentTimeMillis();
+    }
+    //
+    //
+    /**
+     * @param peerSupplier  要求先peer一覧
+     * @param onBlock       block取得時に呼ばれる(cache登録用)
+     * @param peerScore     peer選択・応答記録
+     * @param metrics       取得latency, size記録
+     */
+    BlockFetcher(Supplier<List<Peer>> peerSupplier, Consumer<Block> onBlock, PeerScore peerScore, Metrics metrics) {
+        this.logger = LoggerFactory.getLogger(this.getClass());
+        this.peerSupplier = peerSupplier;
+        this.onBlock = onBlock;
+        this.peerScore = peerScore;
+        this.fetchLatency = metrics.histogram(Metrics.PEER_FETCH_LATENCY, null);
+        this.fetchBytes = metrics.counter(Metrics.PEER_FETCH_BYTES, null);
+        this.fetchFail = metrics.counter(Metrics.PEER_FETCH_FAIL, null);
+    }
+    //
+    /** 先行要求
+     *
+     * @param hashes    取得予定のblock hash(chain順)
+     */
+    void prefetch(List<Sha256Hash> hashes) {
+        expire();
+        List<Peer> peers = peerSupplier.get();
+        List<Peer> best = new ArrayList<>();
+        if (peers != null) {
+            for (Peer peer : peerScore.rank(peers)) {
+                if ((best.size() >= PREFETCH_PEERS) || (!best.isEmpty() && !peerScore.isHealthy(peer))) {
+                    break;
+                }
+                best.add(peer);
+            }
+        }
+        int lp = 0;
+        for (Sha256Hash hash : hashes) {
+            if (inflight.size() >= MAX_INFLIGHT) {
+                break;
+            }
+            request(hash, best.isEmpty() ? null : best.get(lp++ % best.size()));
+        }
+    }
+    //
+    private void expire() {
+        long now = System.currentTimeMillis();
+        inflight.entrySet().removeIf(e -> {
+            if (now - e.getValue().startTime > EXPIRE_MSEC) {
+                failPending(e.getValue());
+                return true;
+            }
+            return false;
+        });
+    }
+    //
+    /** 応答のないpeerを失敗として記録 */
+    private void failPending(Request req) {
+        List<Peer> peers;
+        synchronized (req) {
+            peers = new ArrayList<>(req.pending);
+            req.pending.clear();
+        }
+        long elapsed = System.currentTimeMillis() - req.startTime;
+        for (Peer peer : peers) {
+            peerScore.onFailure(peer, elapsed);
+        }
+    }
+    //
+    boolean isInflight(Sha256Hash blockHash) {
+        return inflight.containsKey(blockHash);
+    }
+    //
+    /** block取得
+     *
+     * @param blockHash     block hash
+     * @param timeoutMsec   timeout
+     * @return  block
+     * @throws TimeoutException     timeout
+     * @throws ExecutionException   fail
+     * @throws InterruptedException interrupted
+     */
+    Block get(Sha256Hash blockHash, long timeoutMsec) throws TimeoutException, ExecutionException, InterruptedException {
+        long start = System.currentTimeMillis();
+        Request req = request(blockHash, null);
+        try {
+            long hedge = Math.min(HEDGE_MSEC, timeoutMsec);
+            try {
+                return req.future.get(hedge, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                //遅いpeerの評価は応答かtimeoutを待ってから
+                logger.debug("BlockFetcher: hedge request: {}", blockHash);
+                hedge(blockHash, req);
+            }
+            //prefetch済みのrequestでもget()呼出しから計る
+            long remain = timeoutMsec - (System.currentTimeMillis() - start);
+            return req.future.get(Math.max(remain, 1), TimeUnit.MILLISECONDS);
+        } finally {
+            if (!req.future.isDone()) {
+                //timeoutしたものは次回別peerから取り直す
+                inflight.remove(blockHash, req);
+                failPending(req);
+            }
+        }
+    }
+    //
+    private Request request(Sha256Hash blockHash, Peer preferred) {
+        Request req = new Request();
+        Request prev = inflight.putIfAbsent(blockHash, req);
+        if (prev != null) {
+            return prev;
+        }
+        if (!send(blockHash, req, preferred)) {
+            inflight.remove(blockHash, req);
+            req.future.setException(new IOException("no peer"));
+        }
+        return req;
+    }
+    //
+    private void hedge(Sha256Hash blockHash, Request req) {
+        if (!req.future.isDone()) {
+            send(blockHash, req, null);
+        }
+    }
+    //
+    private boolean send(Sha256Hash blockHash, Request req, Peer preferred) {
+        Peer peer = (preferred != null) ? preferred : selectPeer(req);
+        if (peer == null) {
+            return false;
+        }
+        synchronized (req) {
+            req.peers.add(peer);
+            req.pending.add(peer);
+        }
+        long sendTime = System.currentTimeMillis();
+        long sendNanos = System.nanoTime();
+        ListenableFuture<Block> future = peer.getBlock(blockHash);
+        Futures.addCallback(future, new FutureCallback<Block>() {
+            @Override
+            public void onSuccess(Block block) {
+                //timeout, expireで失敗として記録済みの場合は評価しない
+                if ((block != null) && answered(req, peer)) {
+                    peerScore.onSuccess(peer, System.currentTimeMillis() - sendTime, block.getMessageSize());
+                    fetchLatency.recordSince(sendNanos);
+                    fetchBytes.add(block.getMessageSize());
+                }
+                if ((block != null) && req.future.set(block)) {
+                    inflight.remove(blockHash, req);
+                    onBlock.accept(block);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                logger.debug("BlockFetcher: fail {}: {}", blockHash, t.getMessage());
+                if (!answered(req, peer)) {
+                    //timeout, expireで記録済み(要求も終了している)
+                    return;
+                }
+                peerScore.onFailure(peer, System.currentTimeMillis() - sendTime);
+                fetchFail.inc();
+                //未要求peerがあれば取り直す
+                if (!req.future.isDone() && !send(blockHash, req, null)) {
+                    inflight.remove(blockHash, req);
+                    req.future.setException(t);
+                }
+            }
+        }, MoreExecutors.directExecutor());
+        return true;
+    }
+    //
+    /** @return  true:応答待ちだった(false:記録済み) */
+    private static boolean answered(Request req, Peer peer) {
+        synchronized (req) {
+            return req.pending.remove(peer);
+        }
+    }
+    //
+    private Peer selectPeer(Request req) {
+        List<Peer> peers = peerSupplier.get();
+        if ((peers == null) || peers.isEmpty()) {
+            return null;
+        }
+        List<Peer> used;
+        synchronized (req) {
+            used = new ArrayList<>(req.peers);
+        }
+        //null: 全peer要求済み
+        return peerScore.select(peers, used);
+    }
+}
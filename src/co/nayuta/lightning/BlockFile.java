@@ -0,0 +1,229 @@
+package co.nayuta.lightning;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+/** append-only block file
+ *
+ *  record: [magic(4)][block hash(32)][length(4)][serialized block(length)]
+ *  起動時にrecord headerを走査してhash→(offset,length)のindexを作成する。
+ *  末尾の書きかけrecordは切り捨てる。
+ *  fileが maxBytes/2 を超えると ".old" にrotateし、旧".old"は削除する
+ *  (2世代合計で maxBytes 程度に収まる)。
+ */
+class BlockFile {
+    private static final int MAGIC = 0x70746d62;    //"ptmb"
+    private static final int HEADER_LEN = 4 + Sha256Hash.LENGTH + 4;
+    private static final int LEN_BITS = 26;
+    private static final int MAX_BLOCK_LEN = (1 << LEN_BITS) - 1;
+    private static final String SUFFIX_OLD = ".old";
+    //
+    private final NetworkParameters params;
+    private final File file;
+    private final long maxBytes;
+    private Segment current;
+    private Segment previous;                   //rotate済み(なし:null)
+    private boolean closed = false;
+    private final Logger logger;
+    //
+    //
+    /** 1 file分のrecordとindex */
+    private class Segment {
+        final File file;
+        final RandomAccessFile raf;
+        final FileChannel channel;
+        final HashMap<Sha256Hash, Long> index = new HashMap<>();     //(offset << LEN_BITS) | length
+        long fileSize;
+        //
+        Segment(File file) throws IOException {
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.channel = raf.getChannel();
+            loadIndex();
+        }
+        //
+        private void loadIndex() throws IOException {
+            long size = channel.size();
+            long pos = 0;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LEN);
+            byte[] hashBytes = new byte[Sha256Hash.LENGTH];
+            while (pos + HEADER_LEN <= size) {
+                header.clear();
+                channel.read(header, pos);
+                header.flip();
+                if (header.getInt() != MAGIC) {
+                    logger.error("BlockFile: bad magic at " + pos);
+                    break;
+                }
+                header.get(hashBytes);
+                int len = header.getInt();
+                if ((len <= 0) || (len > MAX_BLOCK_LEN) || (pos + HEADER_LEN + len > size)) {
+                    logger.error("BlockFile: broken record at " + pos);
+                    break;
+                }
+                index.put(Sha256Hash.wrap(hashBytes.clone()), (pos << LEN_BITS) | len);
+                pos += HEADER_LEN + len;
+            }
+            if (pos != size) {
+                logger.warn("BlockFile: truncate " + size + " -> " + pos);
+                channel.truncate(pos);
+            }
+            fileSize = pos;
+        }
+        //
+        byte[] read(long loc) throws IOException {
+            long pos = loc >>> LEN_BITS;
+            int len = (int)(loc & MAX_BLOCK_LEN);
+            byte[] data = new byte[len];
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, pos + HEADER_LEN + buf.position()) < 0) {
+                    throw new EOFException();
+                }
+            }
+            return data;
+        }
+        //
+        void close() throws IOException {
+            channel.force(false);
+            raf.close();
+        }
+    }
+    //
+    //
+    /**
+     * @param params    network parameters
+     * @param file      block file
+     * @param maxBytes  2世代合計の上限(byte)
+     */
+    BlockFile(NetworkParameters params, File file, long maxBytes) throws IOException {
+        this.logger = LoggerFactory.getLogger(this.getClass());
+        this.params = params;
+        this.file = file;
+        this.maxBytes = maxBytes;
+        File old = new File(file.getPath() + SUFFIX_OLD);
+        if (old.exists()) {
+            previous = new Segment(old);
+        }
+        current = new Segment(file);
+        logger.info("BlockFile: {}, blocks={}, size={}, max={}", file.getPath(), size(), bytes(), maxBytes);
+    }
+    //
+    synchronized boolean contains(Sha256Hash blockHash) {
+        return current.index.containsKey(blockHash) ||
+                ((previous != null) && previous.index.containsKey(blockHash));
+    }
+    //
+    synchronized int size() {
+        return current.index.size() + ((previous != null) ? previous.index.size() : 0);
+    }
+    //
+    synchronized long bytes() {
+        return current.fileSize + ((previous != null) ? previous.fileSize : 0);
+    }
+    //
+    /** read block
+     *
+     * @param blockHash block hash
+     * @return  block or null(not stored or broken)
+     */
+    synchronized Block get(Sha256Hash blockHash) {
+        if (closed) {
+            return null;
+        }
+        Segment seg = current;
+        Long loc = seg.index.get(blockHash);
+        if ((loc == null) && (previous != null)) {
+            seg = previous;
+            loc = seg.index.get(blockHash);
+        }
+        if (loc == null) {
+            return null;
+        }
+        try {
+            return params.getDefaultSerializer().makeBlock(seg.read(loc));
+        } catch (Exception e) {
+            logger.error("BlockFile get: " + blockHash + ": " + e.getMessage());
+            seg.index.remove(blockHash);
+            return null;
+        }
+    }
+    //
+    /** append block
+     *
+     * @param block block(with transactions)
+     */
+    synchronized void put(Block block) {
+        Sha256Hash blockHash = block.getHash();
+        if (closed || contains(blockHash) || (block.getTransactions() == null)) {
+            return;
+        }
+        try {
+            byte[] data = block.bitcoinSerialize();
+            if (data.length > MAX_BLOCK_LEN) {
+                logger.error("BlockFile put: too large block: " + data.length);
+                return;
+            }
+            if ((current.fileSize > 0) && (current.fileSize + HEADER_LEN + data.length > maxBytes / 2)) {
+                rotate();
+            }
+            ByteBuffer buf = ByteBuffer.allocate(HEADER_LEN + data.length);
+            buf.putInt(MAGIC);
+            buf.put(blockHash.getBytes());
+            buf.putInt(data.length);
+            buf.put(data);
+            buf.flip();
+            long pos = current.fileSize;
+            while (buf.hasRemaining()) {
+                current.channel.write(buf, pos + buf.position());
+            }
+            current.fileSize += buf.limit();
+            current.index.put(blockHash, (pos << LEN_BITS) | data.length);
+        } catch (IOException e) {
+            logger.error("BlockFile put: " + e.getMessage());
+        }
+    }
+    //
+    /** current → ".old"(旧".old"は削除) */
+    private void rotate() throws IOException {
+        File old = new File(file.getPath() + SUFFIX_OLD);
+        if (previous != null) {
+            previous.close();
+            previous = null;
+        }
+        current.close();
+        if ((old.exists() && !old.delete()) || !file.renameTo(old)) {
+            current = new Segment(file);
+            throw new IOException("rotate fail: " + file.getPath());
+        }
+        previous = new Segment(old);
+        current = new Segment(file);
+        logger.info("BlockFile: rotate: old blocks={}, size={}", previous.index.size(), previous.fileSize);
+    }
+    //
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            current.close();
+            if (previous != null) {
+                previous.close();
+            }
+        } catch (IOException e) {
+            logger.error("BlockFile close: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package co.nayuta.lightning;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+
+import java.util.HashMap;
+import java.util.List;
+
+/** block matcher
+ *
+ *  監視するoutpoint, txidをBloom filter + 完全一致用HashMapにまとめる。
+ *  blockの各inputはBloom filterで1回だけ判定し、filterに当たったものだけHashMapで確認する。
+ *  判定時にinputごとのobject生成は行わない。
+ *
+ * @param <T>   登録した値(channelなど)
+ */
+class BlockMatcher<T> {
+    private static final int BITS_PER_ENTRY = 16;
+    private static final int MIN_BITS = 1024;
+    //
+    private final HashMap<TransactionOutPoint, T> outPoints = new HashMap<>();
+    private final HashMap<Sha256Hash, T> txids = new HashMap<>();
+    private long[] outPointBits = new long[MIN_BITS / 64];
+    private long[] txidBits = new long[MIN_BITS / 64];
+    private boolean dirty = false;
+    //
+    interface Listener<T> {
+        /** 監視outpointを使用するinputを検出
+         *
+         * @param value     登録値
+         * @param tx        spending transaction
+         * @param bIndex    block内のtx位置
+         * @param outPoint  spent outpoint
+         */
+        void onSpent(T value, Transaction tx, int bIndex, TransactionOutPoint outPoint);
+
+        /** 監視txidを検出
+         *
+         * @param value     登録値
+         * @param tx        transaction
+         * @param bIndex    block内のtx位置
+         */
+        void onTx(T value, Transaction tx, int bIndex);
+    }
+    //
+    //
+    synchronized void addOutPoint(TransactionOutPoint outPoint, T value) {
+        outPoints.put(outPoint, value);
+        dirty = true;
+    }
+    //
+    synchronized void addTxid(Sha256Hash txid, T value) {
+        txids.put(txid, value);
+        dirty = true;
+    }
+    //
+    synchronized T removeOutPoint(TransactionOutPoint outPoint) {
+        //Bloom filterはfalse positiveが増えるだけなので作り直さない
+        return outPoints.remove(outPoint);
+    }
+    //
+    synchronized T removeTxid(Sha256Hash txid) {
+        return txids.remove(txid);
+    }
+    //
+    synchronized void clear() {
+        outPoints.clear();
+        txids.clear();
+        dirty = true;
+    }
+    //
+    synchronized boolean isEmpty() {
+        return outPoints.isEmpty() && txids.isEmpty();
+    }
+    //
+    private void compile() {
+        if (!dirty) {
+            return;
+        }
+        outPointBits = new long[bitsLength(outPoints.size())];
+        for (TransactionOutPoint pnt : outPoints.keySet()) {
+            long h = hash(pnt.getHash().getBytes(), pnt.getIndex());
+            set(outPointBits, h);
+        }
+        txidBits = new long[bitsLength(txids.size())];
+        for (Sha256Hash txid : txids.keySet()) {
+            long h = hash(txid.getBytes(), 0);
+            set(txidBits, h);
+        }
+        dirty = false;
+    }
+    //
+    private static int bitsLength(int entries) {
+        int bits = Integer.highestOneBit(Math.max(MIN_BITS, entries * BITS_PER_ENTRY) * 2 - 1);
+        return bits / 64;
+    }
+    //
+    /** 64bit hash(上位32bit, 下位32bitを2つのhash関数として使う)
+     *
+     *  txidは一様分布なので先頭8byteをそのまま使う。
+     */
+    private static long hash(byte[] b, long index) {
+        long h = ((long)(b[0] & 0xff) << 56) | ((long)(b[1] & 0xff) << 48) |
+                ((long)(b[2] & 0xff) << 40) | ((long)(b[3] & 0xff) << 32) |
+                ((long)(b[4] & 0xff) << 24) | ((long)(b[5] & 0xff) << 16) |
+                ((long)(b[6] & 0xff) << 8) | (long)(b[7] & 0xff);
+        h ^= index * 0x9e3779b97f4a7c15L;
+        h ^= (h >>> 29);
+        return h;
+    }
+    //
+    private static void set(long[] bits, long h) {
+        int mask = bits.length * 64 - 1;
+        int h1 = (int)h & mask;
+        int h2 = (int)(h >>> 32) & mask;
+        bits[h1 >>> 6] |= 1L << h1;
+        bits[h2 >>> 6] |= 1L << h2;
+    }
+    //
+    private static boolean test(long[] bits, long h) {
+        int mask = bits.length * 64 - 1;
+        int h1 = (int)h & mask;
+        int h2 = (int)(h >>> 32) & mask;
+        return ((bits[h1 >>> 6] & (1L << h1)) != 0) && ((bits[h2 >>> 6] & (1L << h2)) != 0);
+    }
+    //
+    /** outpoint判定
+     *
+     * @param outPoint  outpoint
+     * @return  登録値 or null
+     */
+    synchronized T matchOutPoint(TransactionOutPoint outPoint) {
+        compile();
+        if (outPoints.isEmpty() || !test(outPointBits, hash(outPoint.getHash().getBytes(), outPoint.getIndex()))) {
+            return null;
+        }
+        return outPoints.get(outPoint);
+    }
+    //
+    /** txid判定
+     *
+     * @param txid  txid
+     * @return  登録値 or null
+     */
+    synchronized T matchTxid(Sha256Hash txid) {
+        compile();
+        if (txids.isEmpty() || !test(txidBits, hash(txid.getBytes(), 0))) {
+            return null;
+        }
+        return txids.get(txid);
+    }
+    //
+    /** block走査
+     *
+     * @param block     block(with transactions)
+     * @param listener  検出時に呼ばれる
+     * @return  検出数
+     */
+    synchronized int scan(Block block, Listener<T> listener) {
+        List<Transaction> txs = block.getTransactions();
+        if (txs == null) {
+            return 0;
+        }
+        return scan(txs, listener);
+    }
+    //
+    /** transaction走査
+     *
+     * @param txs       transactions(block順)
+     * @param listener  検出時に呼ばれる
+     * @return  検出数
+     */
+    synchronized int scan(List<Transaction> txs, Listener<T> listener) {
+        compile();
+        int found = 0;
+        boolean checkTxid = !txids.isEmpty();
+        boolean checkOutPoint = !outPoints.isEmpty();
+        int txCount = txs.size();
+        for (int bIndex = 0; bIndex < txCount; bIndex++) {
+            Transaction tx = txs.get(bIndex);
+            if (checkTxid) {
+                Sha256Hash txid = tx.getTxId();
+                if (test(txidBits, hash(txid.getBytes(), 0))) {
+                    T value = txids.get(txid);
+                    if (value != null) {
+                        listener.onTx(value, tx, bIndex);
+                        found++;
+                    }
+                }
+            }
+            if (!checkOutPoint || tx.isCoinBase()) {
+                continue;
+            }
+            List<TransactionInput> inputs = tx.getInputs();
+            int inCount = inputs.size();
+            for (int lp = 0; lp < inCount; lp++) {
+                TransactionOutPoint pnt = inputs.get(lp).getOutpoint();
+                if (!test(outPointBits, hash(pnt.getHash().getBytes(), pnt.getIndex()))) {
+                    continue;
+                }
+                T value = outPoints.get(pnt);
+                if (value != null) {
+                    listener.onSpent(value, tx, bIndex, pnt);
+                    found++;
+                }
+            }
+        }
+        return found;
+    }
+}
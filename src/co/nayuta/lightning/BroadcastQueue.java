@@ -0,0 +1,316 @@
+package co.nayuta.lightning;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/** outgoing transaction queue
+ *
+ *  broadcastしたtxをconfirmされるまで保持し、新しいblockごとに再broadcastする。
+ *  rejectされたtxは再broadcastしない(再度sendRawTx()されたときだけ送信する)。
+ *  状態はfileに保存し、再起動後も引き継ぐ。
+ *  fileへの保存は変更からSAVE_DELAY_MSEC後にまとめて行う(close()で未保存分を書き込む)。
+ *
+ *  file:
+ *      [count(4)]
+ *      { [raw len(4)][raw tx][state(4)][height(4)][block hash(32)][add time(8)][send count(4)] } * count
+ */
+class BroadcastQueue {
+    private static final int KEEP_CONFIRMED = 100;                  //confirm後に保持するblock数
+    private static final long MAX_AGE_MSEC = 14L * 24 * 3600 * 1000; //confirmされないtxを破棄するまでの時間
+    private static final long SAVE_DELAY_MSEC = 1000;
+    //
+    private final NetworkParameters params;
+    private final File file;
+    private final LinkedHashMap<Sha256Hash, Entry> entries = new LinkedHashMap<>();
+    private final ScheduledExecutorService saver;          //(file == null)null
+    private boolean dirty = false;                          //未保存の変更あり(保存予約済み)
+    private final Logger logger;
+    //
+    static class Entry {
+        final Transaction tx;
+        int state = Ptarmigan.SENDTX_PENDING;
+        int height = 0;                         //confirmed height
+        Sha256Hash blockHash = Sha256Hash.ZERO_HASH;
+        long addTime = System.currentTimeMillis();
+        int sendCount = 0;
+        //
+        Entry(Transaction tx) {
+            this.tx = tx;
+        }
+        //
+        @Override
+        public String toString() {
+            return tx.getTxId() + ": state=" + state + ", height=" + height + ", send=" + sendCount;
+        }
+    }
+    //
+    //
+    /**
+     * @param params    network parameters
+     * @param file      保存file(null:保存しない)
+     */
+    BroadcastQueue(NetworkParameters params, File file) {
+        this.logger = LoggerFactory.getLogger(this.getClass());
+        this.params = params;
+        this.file = file;
+        if (file != null) {
+            this.saver = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread th = new Thread(r, "ptarm-txqueue");
+                th.setDaemon(true);
+                return th;
+            });
+        } else {
+            this.saver = null;
+        }
+        if ((file != null) && file.exists()) {
+            try {
+                load();
+            } catch (Exception e) {
+                logger.error("BroadcastQueue: load: " + e.getMessage());
+                entries.clear();
+            }
+        }
+    }
+    //
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int count = in.readInt();
+            byte[] hash = new byte[Sha256Hash.LENGTH];
+            for (int i = 0; i < count; i++) {
+                byte[] raw = new byte[in.readInt()];
+                in.readFully(raw);
+                Entry entry = new Entry(new Transaction(params, raw));
+                entry.state = in.readInt();
+                entry.height = in.readInt();
+                in.readFully(hash);
+                entry.blockHash = Sha256Hash.wrap(hash.clone());
+                entry.addTime = in.readLong();
+                entry.sendCount = in.readInt();
+                entries.put(entry.tx.getTxId(), entry);
+            }
+        }
+        logger.debug("BroadcastQueue: load {}", entries.size());
+    }
+    //
+    /** 保存予約(SAVE_DELAY_MSEC間の変更をまとめて書き込む) */
+    private void save() {
+        if ((saver == null) || dirty) {
+            return;
+        }
+        dirty = true;
+        try {
+            saver.schedule(this::flush, SAVE_DELAY_MSEC, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            //closed
+            dirty = false;
+        }
+    }
+    //
+    private synchronized void flush() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        write();
+    }
+    //
+    private void write() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(entries.size());
+                for (Entry entry : entries.values()) {
+                    byte[] raw = entry.tx.bitcoinSerialize();
+                    out.writeInt(raw.length);
+                    out.write(raw);
+                    out.writeInt(entry.state);
+                    out.writeInt(entry.height);
+                    out.write(entry.blockHash.getBytes());
+                    out.writeLong(entry.addTime);
+                    out.writeInt(entry.sendCount);
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.error("BroadcastQueue: save: " + e.getMessage());
+        }
+    }
+    //
+    /** 送信txを登録
+     *
+     * @param tx    transaction
+     */
+    synchronized void add(Transaction tx) {
+        Entry entry = entries.get(tx.getTxId());
+        if (entry == null) {
+            entry = new Entry(tx);
+            entries.put(tx.getTxId(), entry);
+        }
+        entry.sendCount++;
+        save();
+    }
+    //
+    /** broadcast結果を反映(confirm済みの場合は変更しない)
+     *
+     * @param txid      txid
+     * @param status    SENDTX_xxx
+     */
+    synchronized void setStatus(Sha256Hash txid, int status) {
+        Entry entry = entries.get(txid);
+        if ((entry == null) || (entry.state == Ptarmigan.SENDTX_CONFIRMED) || (entry.state == status)) {
+            return;
+        }
+        entry.state = status;
+        save();
+    }
+    //
+    /** blockに含まれるtxをconfirm済みにする
+     *
+     * @param blockHash block hash
+     * @param height    block height(不明な場合は0以下)
+     * @param txids     block内のtxid
+     * @return  confirmしたtx数
+     */
+    synchronized int onBlock(Sha256Hash blockHash, int height, Collection<Sha256Hash> txids) {
+        if (entries.isEmpty()) {
+            return 0;
+        }
+        int count = 0;
+        for (Sha256Hash txid : txids) {
+            Entry entry = entries.get(txid);
+            if ((entry != null) && (entry.state != Ptarmigan.SENDTX_CONFIRMED)) {
+                entry.state = Ptarmigan.SENDTX_CONFIRMED;
+                entry.blockHash = blockHash;
+                entry.height = Math.max(height, 0);
+                logger.debug("BroadcastQueue: confirmed {}", entry);
+                count++;
+            }
+        }
+        boolean pruned = prune(height);
+        if ((count > 0) || pruned) {
+            save();
+        }
+        return count;
+    }
+    //
+    /** reorgで外れたblockでconfirmしたtxを未confirm(SENDTX_OK)に戻す
+     *
+     *  戻したtxはgetUnconfirmed()の対象になり、再broadcastされる。
+     *
+     * @param removed   外れたblock hash
+     * @return  戻したtx数
+     */
+    synchronized int onReorganize(Set<Sha256Hash> removed) {
+        int count = 0;
+        for (Entry entry : entries.values()) {
+            if ((entry.state == Ptarmigan.SENDTX_CONFIRMED) && removed.contains(entry.blockHash)) {
+                entry.state = Ptarmigan.SENDTX_OK;
+                entry.blockHash = Sha256Hash.ZERO_HASH;
+                entry.height = 0;
+                entry.addTime = System.currentTimeMillis();
+                logger.debug("BroadcastQueue: unconfirmed {}", entry);
+                count++;
+            }
+        }
+        if (count > 0) {
+            save();
+        }
+        return count;
+    }
+    //
+    private boolean prune(int height) {
+        long now = System.currentTimeMillis();
+        boolean pruned = false;
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            boolean old;
+            if (entry.state == Ptarmigan.SENDTX_CONFIRMED) {
+                old = (height > 0) && (entry.height > 0) && (height - entry.height > KEEP_CONFIRMED);
+            } else {
+                old = now - entry.addTime > MAX_AGE_MSEC;
+            }
+            if (old) {
+                logger.debug("BroadcastQueue: remove {}", entry);
+                it.remove();
+                pruned = true;
+            }
+        }
+        return pruned;
+    }
+    //
+    /** 再broadcast対象
+     *
+     * @return  confirmされておらず、rejectされていないtx
+     */
+    synchronized List<Transaction> getUnconfirmed() {
+        List<Transaction> txs = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if ((entry.state != Ptarmigan.SENDTX_CONFIRMED) && (entry.state != Ptarmigan.SENDTX_REJECT)) {
+                txs.add(entry.tx);
+            }
+        }
+        return txs;
+    }
+    //
+    /** 状態
+     *
+     * @param txid  txid
+     * @return  SENDTX_xxx(未登録:SENDTX_UNKNOWN)
+     */
+    synchronized int getState(Sha256Hash txid) {
+        Entry entry = entries.get(txid);
+        return (entry != null) ? entry.state : Ptarmigan.SENDTX_UNKNOWN;
+    }
+    //
+    /** confirmしたblock
+     *
+     * @param txid  txid
+     * @return  block hash(未confirm:null)
+     */
+    synchronized Sha256Hash getBlockHash(Sha256Hash txid) {
+        Entry entry = entries.get(txid);
+        return ((entry != null) && (entry.state == Ptarmigan.SENDTX_CONFIRMED)) ? entry.blockHash : null;
+    }
+    //
+    synchronized int size() {
+        return entries.size();
+    }
+    //
+    /** 未保存の変更を書き込んで終了 */
+    void close() {
+        if (saver == null) {
+            return;
+        }
+        saver.shutdownNow();
+        synchronized (this) {
+            if (dirty) {
+                dirty = false;
+                write();
+            }
+        }
+    }
+}
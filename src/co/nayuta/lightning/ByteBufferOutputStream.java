@@ -0,0 +1,27 @@
+package co.nayuta.lightning;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/** ByteBufferへ直接書き込むOutputStream
+ *
+ *  容量不足の場合はBufferOverflowExceptionになる。
+ */
+class ByteBufferOutputStream extends OutputStream {
+    private final ByteBuffer buf;
+    //
+    //
+    ByteBufferOutputStream(ByteBuffer buf) {
+        this.buf = buf;
+    }
+    //
+    @Override
+    public void write(int b) {
+        buf.put((byte)b);
+    }
+    //
+    @Override
+    public void write(byte[] b, int off, int len) {
+        buf.put(b, off, len);
+    }
+}
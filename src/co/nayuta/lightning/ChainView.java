@@ -0,0 +1,231 @@
+package co.nayuta.lightning;
+
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/** active chainの height ↔ hash
+ *
+ *  header store(SPVBlockStore)と同じく、tipから capacity 個のblockだけを持つ。
+ *  BlockChainの new best block / reorganize をSAME_THREADで受けて更新するので、
+ *  walkerはblockをdownloadせずにheightで遡れる。
+ *  reorgで外れたblockは Listener に通知する(executor上で呼ぶ)。
+ */
+class ChainView {
+    static final int UNKNOWN = -1;
+    //
+    private final int capacity;
+    private final Sha256Hash[] hashes;                          //[height % capacity]
+    private final HashMap<Sha256Hash, Integer> heights = new HashMap<>();
+    private int tipHeight = UNKNOWN;
+    private int baseHeight = 0;                                 //保持している最も低いheight
+    private long reorgCount = 0;
+    private Listener listener;
+    private Executor listenerExecutor;
+    private final Logger logger;
+    //
+    interface Listener {
+        /** reorgでactive chainからblockが外れた
+         *
+         * @param forkHash      分岐点のblock hash
+         * @param forkHeight    分岐点のheight
+         * @param removed       外れたblock hash
+         */
+        void onReorganize(Sha256Hash forkHash, int forkHeight, List<Sha256Hash> removed);
+    }
+    //
+    //
+    ChainView(int capacity) {
+        this.logger = LoggerFactory.getLogger(this.getClass());
+        this.capacity = capacity;
+        this.hashes = new Sha256Hash[capacity];
+    }
+    //
+    /** header storeから読み込み、以降の更新を受け取る
+     *
+     * @param chain     block chain
+     * @param listener  reorg通知先
+     * @param executor  reorg通知を呼ぶexecutor
+     */
+    void attach(AbstractBlockChain chain, Listener listener, Executor executor) {
+        BlockStore store = chain.getBlockStore();
+        synchronized (this) {
+            this.listener = listener;
+            this.listenerExecutor = executor;
+            load(chain.getChainHead(), store);
+        }
+        chain.addNewBestBlockListener(Threading.SAME_THREAD, block -> connect(block, store));
+        chain.addReorganizeListener(Threading.SAME_THREAD, this::reorganize);
+        logger.info("ChainView: {}", this);
+    }
+    //
+    /** headから遡ってhashを読み込む(store外のblockは持たない) */
+    private void load(StoredBlock head, BlockStore store) {
+        clear();
+        List<StoredBlock> blocks = new ArrayList<>();
+        try {
+            StoredBlock sb = head;
+            while ((sb != null) && (blocks.size() < capacity)) {
+                blocks.add(sb);
+                if (sb.getHeight() == 0) {
+                    break;
+                }
+                StoredBlock prev = sb.getPrev(store);
+                if ((prev != null) && (prev.getHeight() != sb.getHeight() - 1)) {
+                    //storeから溢れたslot
+                    break;
+                }
+                sb = prev;
+            }
+        } catch (Exception e) {
+            logger.error("ChainView load: " + e.getMessage());
+        }
+        for (int lp = blocks.size() - 1; lp >= 0; lp--) {
+            append(blocks.get(lp).getHeader().getHash(), blocks.get(lp).getHeight());
+        }
+    }
+    //
+    private void clear() {
+        heights.clear();
+        Arrays.fill(hashes, null);
+        tipHeight = UNKNOWN;
+        baseHeight = 0;
+    }
+    //
+    private void append(Sha256Hash hash, int height) {
+        if (tipHeight == UNKNOWN) {
+            baseHeight = height;
+        }
+        int slot = height % capacity;
+        if (height - baseHeight >= capacity) {
+            //最も古いblockを捨てる
+            heights.remove(hashes[slot]);
+            baseHeight = height - capacity + 1;
+        }
+        hashes[slot] = hash;
+        heights.put(hash, height);
+        tipHeight = height;
+    }
+    //
+    /** [event]best chainの伸長 */
+    private synchronized void connect(StoredBlock block, BlockStore store) {
+        Sha256Hash hash = block.getHeader().getHash();
+        int height = block.getHeight();
+        if (hash.equals(getHash(height))) {
+            return;
+        }
+        if ((tipHeight != UNKNOWN) && (height == tipHeight + 1) &&
+                block.getHeader().getPrevBlockHash().equals(hashes[tipHeight % capacity])) {
+            append(hash, height);
+        } else {
+            logger.warn("ChainView: not continuous block(height=" + height + ", tip=" + tipHeight + "): reload");
+            load(block, store);
+        }
+    }
+    //
+    /** [event]reorg */
+    private void reorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks) {
+        Sha256Hash forkHash = splitPoint.getHeader().getHash();
+        int forkHeight = splitPoint.getHeight();
+        List<Sha256Hash> removed = new ArrayList<>();
+        for (StoredBlock sb : oldBlocks) {
+            removed.add(sb.getHeader().getHash());
+        }
+        List<StoredBlock> connected = new ArrayList<>(newBlocks);
+        connected.sort(Comparator.comparingInt(StoredBlock::getHeight));
+        Listener notify;
+        Executor executor;
+        synchronized (this) {
+            reorgCount++;
+            if ((tipHeight == UNKNOWN) || (forkHeight < baseHeight) || !forkHash.equals(getHash(forkHeight))) {
+                logger.warn("ChainView: fork point not in view: reload");
+                clear();
+                append(forkHash, forkHeight);
+            } else {
+                for (int height = tipHeight; height > forkHeight; height--) {
+                    int slot = height % capacity;
+                    heights.remove(hashes[slot]);
+                    hashes[slot] = null;
+                }
+                tipHeight = forkHeight;
+            }
+            for (StoredBlock sb : connected) {
+                append(sb.getHeader().getHash(), sb.getHeight());
+            }
+            notify = listener;
+            executor = listenerExecutor;
+        }
+        logger.info("ChainView: reorganize: fork={}({}), removed={}, connected={}",
+                forkHash, forkHeight, removed.size(), connected.size());
+        if ((notify != null) && !removed.isEmpty()) {
+            List<Sha256Hash> result = Collections.unmodifiableList(removed);
+            executor.execute(() -> notify.onReorganize(forkHash, forkHeight, result));
+        }
+    }
+    //
+    /**
+     * @param height    block height
+     * @return  active chainのblock hash(保持していない:null)
+     */
+    synchronized Sha256Hash getHash(int height) {
+        if ((tipHeight == UNKNOWN) || (height < baseHeight) || (height > tipHeight)) {
+            return null;
+        }
+        return hashes[height % capacity];
+    }
+    //
+    /**
+     * @param hash  block hash
+     * @return  active chainでのheight(active chainにない or 保持していない:UNKNOWN)
+     */
+    synchronized int getHeight(Sha256Hash hash) {
+        Integer height = heights.get(hash);
+        return (height != null) ? height : UNKNOWN;
+    }
+    //
+    /** active chainで1つ前のblock hash
+     *
+     * @param hash  block hash
+     * @return  prev block hash(active chainにない or 保持していない:null)
+     */
+    synchronized Sha256Hash getPrevHash(Sha256Hash hash) {
+        Integer height = heights.get(hash);
+        return (height != null) ? getHash(height - 1) : null;
+    }
+    //
+    /** tipの祖先か(active chainにあるか)
+     *
+     *  保持範囲より古いheightは確認できないため、reorgされない深さとしてtrueを返す。
+     *
+     * @param hash      block hash
+     * @param height    block height
+     * @return  true:active chain
+     */
+    synchronized boolean isActive(Sha256Hash hash, int height) {
+        if ((tipHeight == UNKNOWN) || (height < baseHeight)) {
+            return true;
+        }
+        return hash.equals(getHash(height));
+    }
+    //
+    synchronized int getTipHeight() {
+        return tipHeight;
+    }
+    //
+    @Override
+    public synchronized String toString() {
+        return String.format("height:%d-%d, blocks:%d, reorg:%d", baseHeight, tipHeight, heights.size(), reorgCount);
+    }
+}
@@ -0,0 +1,129 @@
+package co.nayuta.lightning;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.TransactionOutPoint;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** registered channels
+ *
+ *  peer node_id, funding txid, funding outpoint, commit txidの
+ *  それぞれでO(1)検索できるようにindexを持つ。
+ *  channelの値を変更したらput()でindexを更新すること。
+ *  検索はlockなし、更新(put/remove)のみ排他する。
+ */
+class ChannelRegistry {
+    private final ConcurrentHashMap<NodeKey, PtarmiganChannel> byPeer = new ConcurrentHashMap<>();
+    private final HashMap<NodeKey, Keys> keysByPeer = new HashMap<>();
+    private final ConcurrentHashMap<Sha256Hash, PtarmiganChannel> byFundingTxid = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<TransactionOutPoint, PtarmiganChannel> byFundingOutpoint = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Sha256Hash, PtarmiganChannel> byCommitTxid = new ConcurrentHashMap<>();
+    //
+    /** peer node_id(binary) key */
+    static final class NodeKey {
+        private final byte[] id;
+        private final int hash;
+        //
+        NodeKey(byte[] id) {
+            this.id = id;
+            this.hash = Arrays.hashCode(id);
+        }
+        //
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof NodeKey) && Arrays.equals(id, ((NodeKey)o).id);
+        }
+        //
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+    //
+    /** 登録済みのindex key(更新時の削除用) */
+    private static class Keys {
+        TransactionOutPoint fundingOutpoint;
+        Sha256Hash[] commitTxids = new Sha256Hash[Ptarmigan.COMMITTXID_MAX];
+    }
+    //
+    //
+    PtarmiganChannel get(byte[] peerId) {
+        return byPeer.get(new NodeKey(peerId));
+    }
+    //
+    PtarmiganChannel getByFundingTxid(Sha256Hash txid) {
+        return byFundingTxid.get(txid);
+    }
+    //
+    PtarmiganChannel getByFundingOutpoint(TransactionOutPoint outPoint) {
+        return byFundingOutpoint.get(outPoint);
+    }
+    //
+    PtarmiganChannel getByCommitTxid(Sha256Hash txid) {
+        return byCommitTxid.get(txid);
+    }
+    //
+    /** 追加 or index更新
+     *
+     * @param channel   channel
+     */
+    synchronized void put(PtarmiganChannel channel) {
+        NodeKey key = new NodeKey(channel.peerNodeId());
+        PtarmiganChannel old = byPeer.put(key, channel);
+        Keys keys = keysByPeer.get(key);
+        if (keys != null) {
+            removeIndex(keys, (old != null) ? old : channel);
+        }
+        keys = new Keys();
+        keys.fundingOutpoint = channel.getFundingOutpoint();
+        if (keys.fundingOutpoint != null) {
+            byFundingOutpoint.put(keys.fundingOutpoint, channel);
+            byFundingTxid.put(keys.fundingOutpoint.getHash(), channel);
+        }
+        for (int i = 0; i < Ptarmigan.COMMITTXID_MAX; i++) {
+            keys.commitTxids[i] = channel.getCommitTxid(i).txid;
+            if (keys.commitTxids[i] != null) {
+                byCommitTxid.put(keys.commitTxids[i], channel);
+            }
+        }
+        keysByPeer.put(key, keys);
+    }
+    //
+    synchronized PtarmiganChannel remove(byte[] peerId) {
+        NodeKey key = new NodeKey(peerId);
+        PtarmiganChannel channel = byPeer.remove(key);
+        Keys keys = keysByPeer.remove(key);
+        if ((channel != null) && (keys != null)) {
+            removeIndex(keys, channel);
+        }
+        return channel;
+    }
+    //
+    private void removeIndex(Keys keys, PtarmiganChannel channel) {
+        if (keys.fundingOutpoint != null) {
+            byFundingOutpoint.remove(keys.fundingOutpoint, channel);
+            byFundingTxid.remove(keys.fundingOutpoint.getHash(), channel);
+        }
+        for (Sha256Hash txid : keys.commitTxids) {
+            if (txid != null) {
+                byCommitTxid.remove(txid, channel);
+            }
+        }
+    }
+    //
+    /** snapshot of registered channels
+     *
+     * @return  channels
+     */
+    List<PtarmiganChannel> values() {
+        return new ArrayList<>(byPeer.values());
+    }
+    //
+    int size() {
+        return byPeer.size();
+    }
+}
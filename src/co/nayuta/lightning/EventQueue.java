@@ -0,0 +1,151 @@
+package co.nayuta.lightning;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/** event queue
+ *
+ *  listenerへ即時通知し、同時にqueueへ積む。
+ *  queueはpoll()でまとめて取り出す(JNI呼び出し1回で複数event)。
+ *  EVENT_CONFIRMEDはchannelごとに最新の1件だけを残す(queue内の位置は最初のまま)。
+ *  上限を超えた場合は古いeventから捨てるが、spent eventとEVENT_REORGは捨てない。
+ *  捨てた数はgetDropCount()で取得でき、増えていたらpollingで状態を取り直すこと。
+ */
+class EventQueue {
+    private final int capacity;
+    private final ArrayDeque<Slot> queue = new ArrayDeque<>();
+    private final HashMap<ChannelRegistry.NodeKey, Slot> confirmed = new HashMap<>();   //queue内のEVENT_CONFIRMED
+    private final CopyOnWriteArrayList<PtarmEventListener> listeners = new CopyOnWriteArrayList<>();
+    private long dropCount = 0;
+    private final Logger logger;
+    //
+    /** queueの1要素(EVENT_CONFIRMEDの置き換え用) */
+    private static class Slot {
+        PtarmEvent event;
+
+        Slot(PtarmEvent event) {
+            this.event = event;
+        }
+    }
+    //
+    //
+    EventQueue(int capacity) {
+        this.logger = LoggerFactory.getLogger(this.getClass());
+        this.capacity = capacity;
+    }
+    //
+    void addListener(PtarmEventListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+    //
+    void removeListener(PtarmEventListener listener) {
+        listeners.remove(listener);
+    }
+    //
+    /** event発行
+     *
+     *  listenerを呼ぶため、lockを持ったまま呼ばないこと。
+     *
+     * @param event event
+     */
+    void post(PtarmEvent event) {
+        logger.debug("event: {}", event);
+        enqueue(event);
+        for (PtarmEventListener listener : listeners) {
+            try {
+                listener.onEvent(event);
+            } catch (Exception e) {
+                logger.error("EventQueue: listener: " + e.getMessage());
+            }
+        }
+    }
+    //
+    private synchronized void enqueue(PtarmEvent event) {
+        ChannelRegistry.NodeKey key = null;
+        if ((event.type == Ptarmigan.EVENT_CONFIRMED) && (event.peerId != null)) {
+            key = new ChannelRegistry.NodeKey(event.peerId);
+            Slot slot = confirmed.get(key);
+            if (slot != null) {
+                slot.event = event;
+                return;
+            }
+        }
+        if (queue.size() >= capacity) {
+            dropOldest();
+        }
+        Slot slot = new Slot(event);
+        queue.addLast(slot);
+        if (key != null) {
+            confirmed.put(key, slot);
+        }
+        notifyAll();
+    }
+    //
+    /** 捨ててよい最も古いeventを捨てる(無ければ上限を超えて積む) */
+    private void dropOldest() {
+        Iterator<Slot> it = queue.iterator();
+        while (it.hasNext()) {
+            Slot slot = it.next();
+            if (!isDroppable(slot.event.type)) {
+                continue;
+            }
+            it.remove();
+            forget(slot);
+            dropCount++;
+            if (dropCount == 1) {
+                logger.warn("EventQueue: overflow");
+            }
+            return;
+        }
+    }
+    //
+    private static boolean isDroppable(int type) {
+        return (type != Ptarmigan.EVENT_FUNDING_SPENT) && (type != Ptarmigan.EVENT_COMMIT_SPENT) &&
+                (type != Ptarmigan.EVENT_REORG);
+    }
+    //
+    private void forget(Slot slot) {
+        PtarmEvent event = slot.event;
+        if ((event.type == Ptarmigan.EVENT_CONFIRMED) && (event.peerId != null)) {
+            confirmed.remove(new ChannelRegistry.NodeKey(event.peerId), slot);
+        }
+    }
+    //
+    /** event取り出し
+     *
+     * @param max           最大数
+     * @param timeoutMsec   eventが無い場合の待ち時間(0:待たない)
+     * @return  events(無い場合は空)
+     * @throws InterruptedException interrupted
+     */
+    synchronized List<PtarmEvent> poll(int max, long timeoutMsec) throws InterruptedException {
+        List<PtarmEvent> events = new ArrayList<>();
+        long limit = System.currentTimeMillis() + timeoutMsec;
+        while ((timeoutMsec > 0) && queue.isEmpty()) {
+            long remain = limit - System.currentTimeMillis();
+            if (remain <= 0) {
+                return events;
+            }
+            wait(remain);
+        }
+        int count = Math.max(max, 1);
+        while (!queue.isEmpty() && (events.size() < count)) {
+            Slot slot = queue.pollFirst();
+            forget(slot);
+            events.add(slot.event);
+        }
+        return events;
+    }
+    //
+    /** 上限を超えて捨てたevent数(起動からの累計) */
+    synchronized long getDropCount() {
+        return dropCount;
+    }
+}
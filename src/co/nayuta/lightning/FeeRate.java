@@ -2,8 +2,13 @@ package co.nayuta.lightning;
 
 import com.squareup.moshi.JsonAdapter;
 import com.squareup.moshi.Moshi;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Coin;
 import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionWitness;
+import org.bitcoinj.core.VarInt;
 
 import javax.net.ssl.HttpsURLConnection;
 import java.io.BufferedReader;
@@ -12,8 +17,15 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
 
 class FeeRate {
+    private static final int TIMEOUT_CONNECT = 10000;   //msec
+    private static final int TIMEOUT_READ = 10000;      //msec
+    //
     interface JsonInterface {
         URL getUrl();
         long getFeeratePerKb(Moshi moshi) throws IOException;
@@ -93,6 +105,42 @@ class FeeRate {
             return (fee != null) ? fee.medium_fee_per_kb : Transaction.DEFAULT_TX_FEE.getValue();
         }
     }
+    static class JsonMempoolSpace implements JsonInterface {
+        //https://mempool.space/docs/api/rest#get-recommended-fees
+        //satoshis per vbyte
+        static class JsonParam {
+            int halfHourFee;
+        }
+        URL url;
+
+        JsonMempoolSpace(String protocolId) {
+            String url;
+            if (protocolId.equals(NetworkParameters.PAYMENT_PROTOCOL_ID_MAINNET)) {
+                url = "https://mempool.space/api/v1/fees/recommended";
+            } else if (protocolId.equals(NetworkParameters.PAYMENT_PROTOCOL_ID_TESTNET)) {
+                url = "https://mempool.space/testnet/api/v1/fees/recommended";
+            } else {
+                url = "";
+            }
+            try {
+                this.url = new URL(url);
+            } catch (MalformedURLException e) {
+                this.url = null;
+            }
+        }
+
+        @Override
+        public URL getUrl() {
+            return url;
+        }
+
+        @Override
+        public long getFeeratePerKb(Moshi moshi) throws IOException {
+            JsonAdapter<JsonParam> jsonAdapter = moshi.adapter(JsonParam.class);
+            JsonParam fee = jsonAdapter.fromJson(getFeeJson(this));
+            return (fee != null) ? fee.halfHourFee * 1000L : Transaction.DEFAULT_TX_FEE.getValue();
+        }
+    }
     static class JsonConstantFee implements JsonInterface {
         @Override
         public URL getUrl() {
@@ -106,9 +154,124 @@ class FeeRate {
         }
     }
 
+    /** 直近blockの平均feerate(networkアクセスなし)
+     *
+     *  coinbase出力 - block報酬 = block内の手数料合計、をblockのvsizeで割る。
+     *  直近MAX_BLOCKS個のmedianを返す。
+     */
+    static class BlockFeeEstimator implements JsonInterface {
+        private static final int MAX_BLOCKS = 12;
+        private static final int MAX_TIP_DISTANCE = 3;      //最新sampleとtipの許容差
+        private final NetworkParameters params;
+        private final TreeMap<Integer, Long> rates = new TreeMap<>();     //height → feerate per KB
+
+        BlockFeeEstimator(NetworkParameters params) {
+            this.params = params;
+        }
+
+        @Override
+        public URL getUrl() {
+            return null;
+        }
+
+        /** blockを追加(古いblockは無視)
+         *
+         * @param block     block(with transactions)
+         * @param height    block height
+         */
+        synchronized void addBlock(Block block, int height) {
+            List<Transaction> txs = block.getTransactions();
+            if ((height <= 0) || (txs == null) || (txs.size() <= 1)) {
+                return;
+            }
+            if ((rates.size() >= MAX_BLOCKS) && (height <= rates.firstKey())) {
+                return;
+            }
+            long subsidy = Coin.FIFTY_COINS.getValue() >> Math.min(height / params.getSubsidyDecreaseBlockCount(), 63);
+            long fee = txs.get(0).getOutputSum().getValue() - subsidy;
+            long vsize = 0;
+            for (int lp = 1; lp < txs.size(); lp++) {
+                vsize += getVsize(txs.get(lp));
+            }
+            if ((fee <= 0) || (vsize <= 0)) {
+                return;
+            }
+            rates.put(height, fee * 1000 / vsize);
+            while (rates.size() > MAX_BLOCKS) {
+                rates.pollFirstEntry();
+            }
+        }
+
+        private static long getVsize(Transaction tx) {
+            long total = tx.getMessageSize();
+            long witness = 0;
+            if (tx.hasWitnesses()) {
+                witness = 2;    //marker, flag
+                for (TransactionInput in : tx.getInputs()) {
+                    TransactionWitness w = in.getWitness();
+                    witness += VarInt.sizeOf(w.getPushCount());
+                    for (int i = 0; i < w.getPushCount(); i++) {
+                        int len = w.getPush(i).length;
+                        witness += VarInt.sizeOf(len) + len;
+                    }
+                }
+            }
+            long weight = (total - witness) * 4 + witness;
+            return (weight + 3) / 4;
+        }
+
+        /** tip付近のblockから求めた値があるか
+         *
+         *  過去blockを遡って取得したblockだけの場合は使わない。
+         *
+         * @param tipHeight current block height
+         * @return  true:available
+         */
+        synchronized boolean isAvailable(int tipHeight) {
+            return !rates.isEmpty() && (rates.lastKey() >= tipHeight - MAX_TIP_DISTANCE);
+        }
+
+        @Override
+        public synchronized long getFeeratePerKb(Moshi moshi) throws IOException {
+            if (rates.isEmpty()) {
+                throw new IOException("no block");
+            }
+            return median(new ArrayList<>(rates.values()));
+        }
+    }
+    static long median(List<Long> values) {
+        Collections.sort(values);
+        int mid = values.size() / 2;
+        if ((values.size() % 2) == 0) {
+            return (values.get(mid - 1) + values.get(mid)) / 2;
+        }
+        return values.get(mid);
+    }
+
+    /** 取得可能なHTTP source一覧
+     *
+     * @param protocolId    chain name
+     * @return  sources(空の場合あり)
+     */
+    static List<JsonInterface> getHttpSources(String protocolId) {
+        List<JsonInterface> sources = new ArrayList<>();
+        JsonInterface[] candidates = new JsonInterface[] {
+                new JsonBlockCypher(protocolId),
+                new JsonMempoolSpace(protocolId),
+        };
+        for (JsonInterface jsonInterface : candidates) {
+            if (jsonInterface.getUrl() != null) {
+                sources.add(jsonInterface);
+            }
+        }
+        return sources;
+    }
+
     private static String getFeeJson(JsonInterface jsoninf) throws IOException {
         HttpsURLConnection conn = (HttpsURLConnection)jsoninf.getUrl().openConnection();
         conn.setRequestProperty("User-Agent", "ptarmigan");
+        conn.setConnectTimeout(TIMEOUT_CONNECT);
+        conn.setReadTimeout(TIMEOUT_READ);
         //int statusCode = conn.getResponseCode();
 
         InputStream is = conn.getInputStream();
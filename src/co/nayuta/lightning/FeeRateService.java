@@ -0,0 +1,143 @@
+package co.nayuta.lightning;
+
+import com.squareup.moshi.Moshi;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.NetworkParameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/** feerate service
+ *
+ *  複数のHTTP sourceからfeerateをbackgroundで定期取得し、
+ *  直近blockから求めたfeerateと合わせたmedianを呼び出し側に即座に返す。
+ *  有効な値が無い場合はJsonConstantFeeの値を返す。
+ */
+class FeeRateService {
+    private static final long REFRESH_SEC = 300;
+    private static final long MAX_AGE_MSEC = 30 * 60 * 1000;
+    //
+    private final Source[] sources;
+    private final FeeRate.BlockFeeEstimator blockEstimator;
+    private final FeeRate.JsonConstantFee fallback = new FeeRate.JsonConstantFee();
+    private final Moshi moshi = new Moshi.Builder().build();
+    private final ScheduledExecutorService executor;
+    private final Metrics metrics;
+    private final Logger logger;
+    //
+    /** HTTP sourceごとの最終取得値 */
+    private static class Source {
+        final FeeRate.JsonInterface jsonInterface;
+        volatile long feeratePerKb = 0;
+        volatile long updateTime = 0;      //msec(0:未取得)
+        volatile long failCount = 0;
+
+        Source(FeeRate.JsonInterface jsonInterface) {
+            this.jsonInterface = jsonInterface;
+        }
+    }
+    //
+    //
+    FeeRateService(NetworkParameters params, Metrics metrics) {
+        this.logger = LoggerFactory.getLogger(this.getClass());
+        this.metrics = metrics;
+        List<FeeRate.JsonInterface> http = FeeRate.getHttpSources(params.getPaymentProtocolId());
+        this.sources = new Source[http.size()];
+        for (int i = 0; i < sources.length; i++) {
+            sources[i] = new Source(http.get(i));
+        }
+        this.blockEstimator = new FeeRate.BlockFeeEstimator(params);
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread th = new Thread(r, "ptarm-feerate");
+            th.setDaemon(true);
+            return th;
+        });
+    }
+    //
+    void start() {
+        if (sources.length == 0) {
+            logger.info("FeeRateService: no HTTP source");
+            return;
+        }
+        executor.scheduleWithFixedDelay(this::refresh, 0, REFRESH_SEC, TimeUnit.SECONDS);
+    }
+    //
+    void stop() {
+        executor.shutdownNow();
+    }
+    //
+    private void refresh() {
+        for (Source source : sources) {
+            String name = source.jsonInterface.getClass().getSimpleName();
+            String labels = "source=\"" + name + "\"";
+            long start = System.nanoTime();
+            try {
+                long fee = source.jsonInterface.getFeeratePerKb(moshi);
+                metrics.histogram(Metrics.FEERATE_LATENCY, labels).recordSince(start);
+                if (fee > 0) {
+                    source.feeratePerKb = fee;
+                    source.updateTime = System.currentTimeMillis();
+                    source.failCount = 0;
+                    logger.debug("FeeRateService: update {} feerate={}", name, fee);
+                }
+            } catch (Exception e) {
+                source.failCount++;
+                metrics.counter(Metrics.FEERATE_FAIL, labels).inc();
+                logger.error("FeeRateService: " + name + " fail(" + source.failCount + "): " + e.getMessage());
+            }
+        }
+    }
+    //
+    /** 受信blockをlocal estimatorに追加
+     *
+     * @param block     block(with transactions)
+     * @param height    block height
+     */
+    void addBlock(Block block, int height) {
+        blockEstimator.addBlock(block, height);
+    }
+    //
+    /** feerate per KB
+     *
+     * @param tipHeight current block height
+     * @return  有効なsourceのmedian(無い場合は固定値)
+     */
+    long get(int tipHeight) {
+        List<Long> values = new ArrayList<>(sources.length + 1);
+        long now = System.currentTimeMillis();
+        for (Source source : sources) {
+            long t = source.updateTime;
+            if ((t != 0) && (now - t <= MAX_AGE_MSEC)) {
+                values.add(source.feeratePerKb);
+            }
+        }
+        if (blockEstimator.isAvailable(tipHeight)) {
+            try {
+                values.add(blockEstimator.getFeeratePerKb(moshi));
+            } catch (Exception e) {
+                //no block
+            }
+        }
+        if (values.isEmpty()) {
+            return fallback.getFeeratePerKb(moshi);
+        }
+        return FeeRate.median(values);
+    }
+    //
+    /** HTTP取得値の経過時間(最も新しいもの)
+     *
+     * @return  msec(未取得の場合は-1)
+     */
+    long getAgeMsec() {
+        long t = 0;
+        for (Source source : sources) {
+            t = Math.max(t, source.updateTime);
+        }
+        return (t == 0) ? -1 : System.currentTimeMillis() - t;
+    }
+}
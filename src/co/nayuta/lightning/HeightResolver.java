@@ -0,0 +1,123 @@
+package co.nayuta.lightning;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.store.BlockStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/** block hash → height
+ *
+ *  1. header store(StoredBlock)
+ *  2. hash→height cache
+ *  3. block download(呼び出し側から渡す)
+ */
+class HeightResolver {
+    static final int UNKNOWN = -1;
+    //
+    private final Supplier<BlockStore> storeSupplier;
+    private final LinkedHashMap<Sha256Hash, Integer> cache;
+    private long storeHit = 0;
+    private long cacheHit = 0;
+    private long downloadCount = 0;
+    private final Logger logger;
+    //
+    interface Downloader {
+        /** blockをdownloadしてheightを求める
+         *
+         * @param blockHash block hash
+         * @return  (>0)height, (==0)error
+         * @throws Exception    fail
+         */
+        int getHeight(Sha256Hash blockHash) throws Exception;
+    }
+    //
+    //
+    HeightResolver(Supplier<BlockStore> storeSupplier, int maxEntries) {
+        this.logger = LoggerFactory.getLogger(this.getClass());
+        this.storeSupplier = storeSupplier;
+        this.cache = new LinkedHashMap<Sha256Hash, Integer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Integer> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+    //
+    /** download無しでheight取得
+     *
+     * @param blockHash block hash
+     * @return  height or UNKNOWN
+     */
+    int get(Sha256Hash blockHash) {
+        if ((blockHash == null) || Sha256Hash.ZERO_HASH.equals(blockHash)) {
+            return UNKNOWN;
+        }
+        try {
+            BlockStore bs = storeSupplier.get();
+            StoredBlock sb = (bs != null) ? bs.get(blockHash) : null;
+            if (sb != null) {
+                synchronized (this) {
+                    storeHit++;
+                }
+                return sb.getHeight();
+            }
+        } catch (Exception e) {
+            logger.error("HeightResolver: " + e.getMessage());
+        }
+        synchronized (this) {
+            Integer height = cache.get(blockHash);
+            if (height != null) {
+                cacheHit++;
+                return height;
+            }
+        }
+        return UNKNOWN;
+    }
+    //
+    /** height取得(最終手段としてdownload)
+     *
+     * @param blockHash     block hash
+     * @param downloader    download処理
+     * @return  height or UNKNOWN
+     */
+    int resolve(Sha256Hash blockHash, Downloader downloader) {
+        int height = get(blockHash);
+        if ((height != UNKNOWN) || (downloader == null)) {
+            return height;
+        }
+        try {
+            synchronized (this) {
+                downloadCount++;
+            }
+            height = downloader.getHeight(blockHash);
+        } catch (Exception e) {
+            logger.error("HeightResolver download: " + e.getMessage());
+            height = 0;
+        }
+        if (height > 0) {
+            put(blockHash, height);
+            return height;
+        }
+        return UNKNOWN;
+    }
+    //
+    synchronized void put(Sha256Hash blockHash, int height) {
+        if (height > 0) {
+            cache.put(blockHash, height);
+        }
+    }
+    //
+    synchronized void remove(Sha256Hash blockHash) {
+        cache.remove(blockHash);
+    }
+    //
+    @Override
+    public synchronized String toString() {
+        return String.format("store:%d, cache:%d(%d), download:%d", storeHit, cacheHit, cache.size(), downloadCount);
+    }
+}
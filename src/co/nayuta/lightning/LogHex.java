@@ -0,0 +1,28 @@
+package co.nayuta.lightning;
+
+import org.bouncycastle.util.encoders.Hex;
+
+import javax.annotation.Nullable;
+
+/** log出力用の遅延hex変換
+ *
+ *  logger.debug("peer={}", LogHex.of(peerId)) のように渡し、実際に出力される場合だけhex文字列を作る。
+ *  hot pathでは wrapper の生成も避けるため logger.isDebugEnabled() で囲むこと。
+ */
+final class LogHex {
+    private final byte[] data;
+    //
+    //
+    private LogHex(byte[] data) {
+        this.data = data;
+    }
+    //
+    static Object of(@Nullable byte[] data) {
+        return (data != null) ? new LogHex(data) : "null";
+    }
+    //
+    @Override
+    public String toString() {
+        return Hex.toHexString(data);
+    }
+}
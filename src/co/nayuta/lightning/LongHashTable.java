@@ -0,0 +1,146 @@
+package co.nayuta.lightning;
+
+import java.util.Arrays;
+import java.util.function.LongPredicate;
+
+/** long → long open addressing hash table
+ *
+ *  key=0は空きslotとして使用するため、内部で別の値に置き換える。
+ *  同一keyのputは上書き。
+ */
+class LongHashTable {
+    private static final long EMPTY = 0;
+    private static final long ZERO_KEY = 0x9e3779b97f4a7c15L;
+    private static final float LOAD_FACTOR = 0.5f;
+    //
+    private long[] keys;
+    private long[] values;
+    private int mask;
+    private int size;
+    //
+    //
+    LongHashTable(int initialCapacity) {
+        int cap = Integer.highestOneBit(Math.max(16, initialCapacity) * 2 - 1);
+        keys = new long[cap];
+        values = new long[cap];
+        mask = cap - 1;
+    }
+    //
+    private static long fixKey(long key) {
+        return (key == EMPTY) ? ZERO_KEY : key;
+    }
+    //
+    private static int mix(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int)(h ^ (h >>> 32));
+    }
+    //
+    void put(long key, long value) {
+        key = fixKey(key);
+        if (size + 1 > keys.length * LOAD_FACTOR) {
+            resize(keys.length * 2);
+        }
+        int i = mix(key) & mask;
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+    }
+    //
+    /** get value
+     *
+     * @param key   key
+     * @param defaultValue  value when not found
+     * @return  value
+     */
+    long get(long key, long defaultValue) {
+        key = fixKey(key);
+        int i = mix(key) & mask;
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return defaultValue;
+    }
+    //
+    boolean remove(long key) {
+        key = fixKey(key);
+        int i = mix(key) & mask;
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key) {
+                //backward shift deletion
+                int j = i;
+                while (true) {
+                    j = (j + 1) & mask;
+                    if (keys[j] == EMPTY) {
+                        break;
+                    }
+                    int home = mix(keys[j]) & mask;
+                    if (((j - home) & mask) >= ((j - i) & mask)) {
+                        keys[i] = keys[j];
+                        values[i] = values[j];
+                        i = j;
+                    }
+                }
+                keys[i] = EMPTY;
+                values[i] = 0;
+                size--;
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+    //
+    /** valueが条件に合うentryを全て削除
+     *
+     * @param filter    value → true:削除
+     * @return  削除数
+     */
+    int removeIf(LongPredicate filter) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[oldKeys.length];
+        values = new long[oldValues.length];
+        int before = size;
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if ((oldKeys[i] != EMPTY) && !filter.test(oldValues[i])) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+        return before - size;
+    }
+    //
+    int size() {
+        return size;
+    }
+    //
+    void clear() {
+        Arrays.fill(keys, EMPTY);
+        Arrays.fill(values, 0);
+        size = 0;
+    }
+    //
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[capacity];
+        values = new long[capacity];
+        mask = capacity - 1;
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package co.nayuta.lightning;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/** in-process metrics
+ *
+ *  histogramとcounterを名前(+label)で保持する。
+ *  記録はlock-freeで、hot pathでは生成済みのHistogram/LongAdderを保持して使う。
+ *  他classが持つ値(BlockCacheのhit数等)は、出力時にLongSupplierから読み出す。
+ *  toText()はPrometheus text exposition形式で出力する(histogramはsummaryとして出す)。
+ */
+class Metrics {
+    static final String API_LATENCY = "ptarm_api_latency_us";
+    static final String WALK_DEPTH = "ptarm_walk_depth_blocks";
+    static final String PEER_FETCH_LATENCY = "ptarm_peer_fetch_latency_us";
+    static final String PEER_FETCH_BYTES = "ptarm_peer_fetch_bytes_total";
+    static final String PEER_FETCH_FAIL = "ptarm_peer_fetch_fail_total";
+    static final String BLOCK_GET = "ptarm_block_get_total";
+    static final String BROADCAST = "ptarm_broadcast_total";
+    static final String FEERATE_LATENCY = "ptarm_feerate_latency_us";
+    static final String FEERATE_FAIL = "ptarm_feerate_fail_total";
+    static final String BLOCKCACHE_HIT = "ptarm_blockcache_hit_total";
+    static final String BLOCKCACHE_MISS = "ptarm_blockcache_miss_total";
+    static final String BLOCKCACHE_EVICTION = "ptarm_blockcache_eviction_total";
+    static final String BLOCKCACHE_BYTES = "ptarm_blockcache_bytes";
+    //
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+    //
+    private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> apiHistograms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Sampled> sampled = new ConcurrentHashMap<>();
+    private ScheduledExecutorService exporter;
+    private final Logger logger;
+    //
+    /** 対数bucketのhistogram
+     *
+     *  HdrHistogramと同様に、2のべき乗区間をSUB_BUCKETS個に分割する。
+     *  値の相対誤差は 1/SUB_BUCKETS 以下。
+     */
+    static final class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        //
+        final String name;
+        final String labels;
+        private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS + 1) * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        private Histogram(String name, String labels) {
+            this.name = name;
+            this.labels = labels;
+        }
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            counts.incrementAndGet(index(value));
+            count.increment();
+            sum.add(value);
+            max.accumulateAndGet(value, Math::max);
+        }
+
+        /** System.nanoTime()からの経過時間をusecで記録 */
+        void recordSince(long startNanos) {
+            record((System.nanoTime() - startNanos) / 1000);
+        }
+
+        private static int index(long value) {
+            int mag = 63 - Long.numberOfLeadingZeros(value);
+            if (mag < SUB_BITS) {
+                return (int)value;
+            }
+            int sub = (int)(value >>> (mag - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (mag - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        /** bucketに入る最大値 */
+        private static long highest(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int shift = index / SUB_BUCKETS - 1;
+            long lower = (long)(SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+            return lower + (1L << shift) - 1;
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+
+        long getSum() {
+            return sum.sum();
+        }
+
+        long getMax() {
+            return max.get();
+        }
+
+        /**
+         * @param quantile  0.0～1.0
+         * @return  値(記録なし:0)
+         */
+        long getQuantile(double quantile) {
+            long total = 0;
+            long[] snapshot = new long[counts.length()];
+            for (int i = 0; i < snapshot.length; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long)Math.ceil(quantile * total));
+            long acc = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                acc += snapshot[i];
+                if (acc >= rank) {
+                    return Math.min(highest(i), getMax());
+                }
+            }
+            return getMax();
+        }
+    }
+    //
+    static final class Counter {
+        final String name;
+        final String labels;
+        private final LongAdder value = new LongAdder();
+
+        private Counter(String name, String labels) {
+            this.name = name;
+            this.labels = labels;
+        }
+
+        void inc() {
+            value.increment();
+        }
+
+        void add(long n) {
+            value.add(n);
+        }
+
+        long get() {
+            return value.sum();
+        }
+    }
+    //
+    /** 出力時に読み出す値 */
+    private static final class Sampled {
+        final String name;
+        final String labels;
+        final String type;          //"counter" or "gauge"
+        final LongSupplier supplier;
+
+        private Sampled(String name, String labels, String type, LongSupplier supplier) {
+            this.name = name;
+            this.labels = labels;
+            this.type = type;
+            this.supplier = supplier;
+        }
+    }
+    //
+    //
+    Metrics() {
+        this.logger = LoggerFactory.getLogger(this.getClass());
+    }
+    //
+    private static String key(String name, String labels) {
+        return (labels != null) ? name + "{" + labels + "}" : name;
+    }
+    //
+    /**
+     * @param name      metric name
+     * @param labels    label(例: method="checkUnspent")。null可
+     * @return  histogram
+     */
+    Histogram histogram(String name, String labels) {
+        return histograms.computeIfAbsent(key(name, labels), k -> new Histogram(name, labels));
+    }
+    //
+    Counter counter(String name, String labels) {
+        return counters.computeIfAbsent(key(name, labels), k -> new Counter(name, labels));
+    }
+    //
+    /** 他classが集計しているcounterを登録
+     *
+     * @param name      metric name
+     * @param labels    label。null可
+     * @param supplier  出力時に呼ばれる(単調増加する値)
+     */
+    void counter(String name, String labels, LongSupplier supplier) {
+        sampled.put(key(name, labels), new Sampled(name, labels, "counter", supplier));
+    }
+    //
+    /** 他classが保持している現在値を登録
+     *
+     * @param name      metric name
+     * @param labels    label。null可
+     * @param supplier  出力時に呼ばれる
+     */
+    void gauge(String name, String labels, LongSupplier supplier) {
+        sampled.put(key(name, labels), new Sampled(name, labels, "gauge", supplier));
+    }
+    //
+    /** public APIのlatencyを記録
+     *
+     * @param method        method name
+     * @param startNanos    開始時のSystem.nanoTime()
+     */
+    void api(String method, long startNanos) {
+        Histogram h = apiHistograms.get(method);
+        if (h == null) {
+            h = apiHistograms.computeIfAbsent(method, m -> histogram(API_LATENCY, "method=\"" + m + "\""));
+        }
+        h.recordSince(startNanos);
+    }
+    //
+    /** method名のAPI latency
+     *
+     * @param method    method name
+     * @return  histogram(未記録:null)
+     */
+    Histogram getApi(String method) {
+        return apiHistograms.get(method);
+    }
+    //
+    /** Prometheus text exposition
+     *
+     * @return  text
+     */
+    String toText() {
+        StringBuilder sb = new StringBuilder();
+        String prevName = null;
+        for (Histogram h : new TreeMap<>(histograms).values()) {
+            if (!h.name.equals(prevName)) {
+                sb.append("# TYPE ").append(h.name).append(" summary\n");
+                prevName = h.name;
+            }
+            String sep = (h.labels != null) ? h.labels + "," : "";
+            for (double q : QUANTILES) {
+                sb.append(h.name).append('{').append(sep).append("quantile=\"").append(q).append("\"} ")
+                        .append(h.getQuantile(q)).append('\n');
+            }
+            String labels = (h.labels != null) ? "{" + h.labels + "}" : "";
+            sb.append(h.name).append("_sum").append(labels).append(' ').append(h.getSum()).append('\n');
+            sb.append(h.name).append("_count").append(labels).append(' ').append(h.getCount()).append('\n');
+        }
+        prevName = null;
+        for (Histogram h : new TreeMap<>(histograms).values()) {
+            if (!h.name.equals(prevName)) {
+                sb.append("# TYPE ").append(h.name).append("_max gauge\n");
+                prevName = h.name;
+            }
+            String labels = (h.labels != null) ? "{" + h.labels + "}" : "";
+            sb.append(h.name).append("_max").append(labels).append(' ').append(h.getMax()).append('\n');
+        }
+        prevName = null;
+        for (Map.Entry<String, Counter> e : new TreeMap<>(counters).entrySet()) {
+            Counter c = e.getValue();
+            if (!c.name.equals(prevName)) {
+                sb.append("# TYPE ").append(c.name).append(" counter\n");
+                prevName = c.name;
+            }
+            sb.append(e.getKey()).append(' ').append(c.get()).append('\n');
+        }
+        prevName = null;
+        for (Map.Entry<String, Sampled> e : new TreeMap<>(sampled).entrySet()) {
+            Sampled g = e.getValue();
+            if (!g.name.equals(prevName)) {
+                sb.append("# TYPE ").append(g.name).append(' ').append(g.type).append('\n');
+                prevName = g.name;
+            }
+            sb.append(e.getKey()).append(' ').append(g.supplier.getAsLong()).append('\n');
+        }
+        return sb.toString();
+    }
+    //
+    /** 定期的にfileへ出力
+     *
+     * @param file          出力file(node_exporter textfile collector等で読み込む)
+     * @param periodSec     出力間隔
+     */
+    synchronized void startExport(File file, long periodSec) {
+        if (exporter != null) {
+            return;
+        }
+        exporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread th = new Thread(r, "ptarm-metrics");
+            th.setDaemon(true);
+            return th;
+        });
+        exporter.scheduleWithFixedDelay(() -> save(file), periodSec, periodSec, TimeUnit.SECONDS);
+    }
+    //
+    synchronized void stopExport() {
+        if (exporter != null) {
+            exporter.shutdownNow();
+            exporter = null;
+        }
+    }
+    //
+    private void save(File file) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            try (Writer writer = new FileWriter(tmp)) {
+                writer.write(toText());
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.error("Metrics: save: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package co.nayuta.lightning;
+
+import org.bitcoinj.core.Peer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/** peer health score
+ *
+ *  peer address単位でlatency, 失敗率, 転送速度をEWMAで記録する。
+ *  失敗率とtimeout penaltyは時間経過で減衰するため、一時的に失敗したpeerもいずれ復帰する。
+ *  (timeoutはlatencyのEWMAに入れず、別のpenaltyとして持つ)
+ *  要求先は score(期待応答時間)の小さい順に選ぶ。
+ */
+class PeerScore {
+    private static final double ALPHA = 0.3;                    //EWMA係数
+    private static final long DECAY_HALFLIFE_MSEC = 10 * 60 * 1000;
+    private static final double UNHEALTHY_FAIL_RATE = 0.5;
+    private static final long DEFAULT_LATENCY_MSEC = 1000;      //未計測peer
+    private static final double FAIL_PENALTY = 10.0;
+    //
+    private final HashMap<InetSocketAddress, Stat> stats = new HashMap<>();
+    private final Logger logger;
+    //
+    static class Stat {
+        double latencyMsec = -1;        //(<0)未計測
+        double failRate = 0;
+        double penaltyMsec = 0;         //timeout penalty
+        double bytesPerSec = 0;
+        long requestCount = 0;
+        long failCount = 0;
+        long lastUpdate = System.currentTimeMillis();
+
+        /** 経過時間分だけ失敗率とpenaltyを減衰 */
+        void decay(long now) {
+            long dt = now - lastUpdate;
+            if (dt > 0) {
+                double factor = Math.pow(0.5, (double)dt / DECAY_HALFLIFE_MSEC);
+                failRate *= factor;
+                penaltyMsec *= factor;
+                lastUpdate = now;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("latency=%.0fms, penalty=%.0fms, fail=%.2f, %.0fB/s, req=%d, failCount=%d",
+                    latencyMsec, penaltyMsec, failRate, bytesPerSec, requestCount, failCount);
+        }
+    }
+    //
+    //
+    PeerScore() {
+        this.logger = LoggerFactory.getLogger(this.getClass());
+    }
+    //
+    private static InetSocketAddress key(Peer peer) {
+        return peer.getAddress().toSocketAddress();
+    }
+    //
+    private Stat stat(Peer peer, long now) {
+        Stat st = stats.computeIfAbsent(key(peer), k -> new Stat());
+        st.decay(now);
+        return st;
+    }
+    //
+    /** 要求成功
+     *
+     * @param peer          peer
+     * @param latencyMsec   要求から応答までの時間
+     * @param bytes         受信サイズ(不明な場合は0)
+     */
+    synchronized void onSuccess(Peer peer, long latencyMsec, long bytes) {
+        Stat st = stat(peer, System.currentTimeMillis());
+        st.requestCount++;
+        st.latencyMsec = (st.latencyMsec < 0) ? latencyMsec : ewma(st.latencyMsec, latencyMsec);
+        st.failRate = ewma(st.failRate, 0);
+        if (bytes > 0) {
+            double bps = bytes * 1000.0 / Math.max(latencyMsec, 1);
+            st.bytesPerSec = (st.bytesPerSec == 0) ? bps : ewma(st.bytesPerSec, bps);
+        }
+    }
+    //
+    /** 要求失敗(timeout含む)
+     *
+     * @param peer          peer
+     * @param elapsedMsec   失敗までの時間
+     */
+    synchronized void onFailure(Peer peer, long elapsedMsec) {
+        Stat st = stat(peer, System.currentTimeMillis());
+        st.requestCount++;
+        st.failCount++;
+        st.failRate = ewma(st.failRate, 1);
+        st.penaltyMsec = Math.max(st.penaltyMsec, elapsedMsec);
+        logger.debug("PeerScore: fail {}: {}", key(peer), st);
+    }
+    //
+    private static double ewma(double prev, double sample) {
+        return prev * (1 - ALPHA) + sample * ALPHA;
+    }
+    //
+    /** 期待応答時間(小さいほど良い)
+     *
+     *  未計測peerはping時間を使う。
+     */
+    private double score(Peer peer, long now) {
+        Stat st = stats.get(key(peer));
+        double latency;
+        double penalty = 0;
+        double failRate = 0;
+        if ((st != null) && (st.latencyMsec >= 0)) {
+            latency = st.latencyMsec;
+        } else {
+            long ping = peer.getPingTime();
+            latency = ((ping > 0) && (ping < Long.MAX_VALUE)) ? ping : DEFAULT_LATENCY_MSEC;
+        }
+        if (st != null) {
+            st.decay(now);
+            penalty = st.penaltyMsec;
+            failRate = st.failRate;
+        }
+        return (latency + penalty) * (1 + failRate * FAIL_PENALTY);
+    }
+    //
+    synchronized boolean isHealthy(Peer peer) {
+        Stat st = stats.get(key(peer));
+        if (st == null) {
+            return true;
+        }
+        st.decay(System.currentTimeMillis());
+        return st.failRate < UNHEALTHY_FAIL_RATE;
+    }
+    //
+    /** 要求先の優先順
+     *
+     * @param peers     接続中peer
+     * @return  healthyなpeerをscore順に並べ、その後にunhealthyなpeerを並べたもの
+     */
+    synchronized List<Peer> rank(Collection<Peer> peers) {
+        long now = System.currentTimeMillis();
+        HashMap<Peer, Double> scores = new HashMap<>();
+        HashMap<Peer, Boolean> unhealthy = new HashMap<>();
+        for (Peer peer : peers) {
+            scores.put(peer, score(peer, now));
+            Stat st = stats.get(key(peer));
+            unhealthy.put(peer, (st != null) && (st.failRate >= UNHEALTHY_FAIL_RATE));
+        }
+        List<Peer> ranked = new ArrayList<>(peers);
+        ranked.sort(Comparator.comparing((Peer p) -> unhealthy.get(p))
+                .thenComparingDouble(scores::get));
+        return ranked;
+    }
+    //
+    /** 最良のpeer
+     *
+     * @param peers     接続中peer
+     * @param exclude   除外peer(null可)
+     * @return  peer or null
+     */
+    synchronized Peer select(Collection<Peer> peers, Collection<Peer> exclude) {
+        for (Peer peer : rank(peers)) {
+            if ((exclude == null) || !exclude.contains(peer)) {
+                return peer;
+            }
+        }
+        return null;
+    }
+    //
+    synchronized Stat get(Peer peer) {
+        return stats.get(key(peer));
+    }
+    //
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (HashMap.Entry<InetSocketAddress, Stat> e : stats.entrySet()) {
+            sb.append(e.getKey()).append(": ").append(e.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+}
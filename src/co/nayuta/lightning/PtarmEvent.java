@@ -0,0 +1,49 @@
+package co.nayuta.lightning;
+
+public class PtarmEvent {
+    int type;               //Ptarmigan.EVENT_xxx
+    byte[] peerId;          //channel peer node_id(channel以外のeventはnull)
+    byte[] txid;            //txid(little endian)
+    byte[] blockHash;       //block hash(little endian)
+    int height;
+    int confirmation;
+    String peer;            //peer address(EVENT_PEER_LOST)
+    //
+    //
+    PtarmEvent(int type) {
+        this.type = type;
+    }
+    //
+    public int getType() {
+        return type;
+    }
+    //
+    public byte[] getPeerId() {
+        return peerId;
+    }
+    //
+    public byte[] getTxid() {
+        return txid;
+    }
+    //
+    public byte[] getBlockHash() {
+        return blockHash;
+    }
+    //
+    public int getHeight() {
+        return height;
+    }
+    //
+    public int getConfirmation() {
+        return confirmation;
+    }
+    //
+    public String getPeer() {
+        return peer;
+    }
+    //
+    @Override
+    public String toString() {
+        return "type=" + type + ", height=" + height + ", conf=" + confirmation + ((peer != null) ? ", peer=" + peer : "");
+    }
+}
@@ -0,0 +1,9 @@
+package co.nayuta.lightning;
+
+public interface PtarmEventListener {
+    /** event通知(bitcoinjのthreadから呼ばれるため、すぐに戻ること)
+     *
+     * @param event event
+     */
+    void onEvent(PtarmEvent event);
+}
@@ -1,12 +1,16 @@
 package co.nayuta.lightning;
 
-import com.squareup.moshi.Moshi;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.bitcoinj.core.*;
+import org.bitcoinj.core.listeners.DownloadProgressTracker;
 import org.bitcoinj.kits.WalletAppKit;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.script.ScriptChunk;
 import org.bitcoinj.store.BlockStore;
-import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.SPVBlockStore;
 import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.DeterministicSeed;
 import org.bitcoinj.wallet.KeyChainGroupStructure;
@@ -18,14 +22,23 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.io.*;
+import java.net.InetAddress;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.*;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Ptarmigan {
     private static final String VERSION = "0.1.2.x";
@@ -43,6 +56,26 @@ public class Ptarmigan {
     public static final int SPV_START_BJ = 2;
     public static final int SPV_START_ERR = 3;
     //
+    public static final int SYNC_NONE = 0;
+    public static final int SYNC_DOWNLOADING = 1;
+    public static final int SYNC_DONE = 2;
+    public static final int SYNC_FAIL = 3;
+    //
+    public static final int SENDTX_UNKNOWN = -1;
+    public static final int SENDTX_PENDING = 0;
+    public static final int SENDTX_OK = 1;
+    public static final int SENDTX_REJECT = 2;
+    public static final int SENDTX_FAIL = 3;
+    public static final int SENDTX_CONFIRMED = 4;
+    //
+    public static final int EVENT_NEW_TIP = 1;
+    public static final int EVENT_CONFIRMED = 2;
+    public static final int EVENT_FUNDING_SPENT = 3;
+    public static final int EVENT_COMMIT_SPENT = 4;
+    public static final int EVENT_TX_REJECTED = 5;
+    public static final int EVENT_PEER_LOST = 6;
+    public static final int EVENT_REORG = 7;
+    //
     private static final int STARTUPLOG_CONT = 1;
     private static final int STARTUPLOG_STOP = 2;
     private static final int STARTUPLOG_BLOCK = 3;
@@ -51,6 +84,7 @@ public class Ptarmigan {
     private static final long TIMEOUT_START = 5;            //sec
     private static final long TIMEOUT_SENDTX = 10000;       //msec
     private static final long TIMEOUT_REJECT = 2000;        //msec
+    private static final long TIMEOUT_BLOCKSTORE = 10000;   //msec
     private static final long TIMEOUT_GETBLOCK = 60000;      //msec     //TIMEOUT_GETBLOCK * RETRY_GETBLOCK が rpi_ptarm.shの$PTARMD_REBOOTに関係することに注意
     //
     private static final int MAX_CONNECTIONS = PeerGroup.DEFAULT_CONNECTIONS / 2;
@@ -60,58 +94,77 @@ public class Ptarmigan {
     private static final int RETRY_SENDRAWTX = 3;
     private static final int RETRY_GETBLOCK = MAX_CONNECTIONS;
     private static final int OFFSET_CHECK_UNSPENT = 6;  //少し多めにチェックする
+    private static final int PREFETCH_DEPTH = 16;
+    private static final int CHANNEL_LOCK_STRIPES = 32;
+    private static final int EVENT_QUEUE_SIZE = 4096;
+    private static final int PEERID_LEN = 33;
+    private static final int OUTPOINT_LEN = Sha256Hash.LENGTH + 4;
+    private static final int WITNESSPROGRAM_LEN = 34;
+    private static final int EVENT_CONFIRM_MAX = 144;   //これ以上のconfirmationはEVENT_CONFIRMEDを通知しない
     private static final int STALL_PERIOD = 10;
     private static final int STALL_BYTES = 128;
+    private static final int TXINDEX_CAPACITY = 1 << 16;
+    private static final int TXINDEX_MAX = Integer.getInteger("ptarmigan.txindex.max", 1 << 20);
+    private static final int HEIGHTCACHE_SIZE = 10000;
+    private static final int CHAINVIEW_SIZE = SPVBlockStore.DEFAULT_CAPACITY;
+    private static final long METRICS_EXPORT_SEC = 60;
+    private static final long BLOCKCACHE_BYTES = Long.getLong("ptarmigan.blockcache.bytes", 64L * 1024 * 1024);
+    private static final long BLOCKFILE_BYTES = Long.getLong("ptarmigan.blockfile.bytes", 1024L * 1024 * 1024);
+    private static final long SPENTINDEX_BYTES = Long.getLong("ptarmigan.spentindex.bytes", 256L * 1024 * 1024);
+    private static final String PROP_PEERS = "ptarmigan.peers";     //"host:port,..."(接続先peerを固定する)
     //
     private static final String FILE_STARTUP = "bitcoinj_startup.log";
     private static final String FILE_MNEMONIC = "bitcoinj_mnemonic.txt";
     private static final String PREFIX_WALLET = "ptarm_p2wpkh";
     private static final String PREFIX_LASTBLOCK = "lastblock_";
+    private static final String FILE_BLOCKFILE = "ptarm_blocks.dat";
+    private static final String FILE_SPENTINDEX = "ptarm_spent.dat";
+    private static final String FILE_TXQUEUE = "ptarm_txqueue.dat";
+    private static final String FILE_METRICS = "ptarm_metrics.prom";
     //
     private static NetworkParameters params;
     private static WalletAppKit wak;
-    private LinkedHashMap<Sha256Hash, Block> blockCache = new LinkedHashMap<>();
-    private HashMap<Sha256Hash, Transaction> txCache = new HashMap<>();
-    private HashMap<String, PtarmiganChannel> mapChannel = new HashMap<>();
-    private HashMap<Sha256Hash, SendRawTxResult> mapSendTx = new HashMap<>();
-    private Sha256Hash creationHash;
-    private int connectedPeerIndex = 0;
-    private int downloadFailCount = 0;
-    private int peerFailCount = 0;
-    private boolean[] peerInvalid;
+    private BlockCache blockCache = new BlockCache(BLOCKCACHE_BYTES);
+    private BlockFile blockFile;
+    private SpentIndex spentIndex;
+    private boolean localStoreClosed = false;
+    private Thread closeHook;                                   //JVM終了時のcloseLocalStore
+    private volatile ExecutorService blockStoreExecutor;       //取得blockのfile保存, index追加(network threadで行わない)
+    private TxIndex txIndex = new TxIndex(TXINDEX_CAPACITY, TXINDEX_MAX);
+    private HeightResolver heightResolver = new HeightResolver(
+            () -> wak.chain().getBlockStore(), HEIGHTCACHE_SIZE);
+    private ChainView chainView = new ChainView(CHAINVIEW_SIZE);
+    private FeeRateService feeRateService;
+    private Metrics metrics = new Metrics();
+    private Metrics.Histogram walkCheckUnspent = metrics.histogram(Metrics.WALK_DEPTH, "query=\"checkUnspent\"");
+    private Metrics.Histogram walkTxConfirmation = metrics.histogram(Metrics.WALK_DEPTH, "query=\"getTxConfirmation\"");
+    private Metrics.Histogram walkSearchOutPoint = metrics.histogram(Metrics.WALK_DEPTH, "query=\"searchOutPoint\"");
+    private Metrics.Counter blockFromCache = metrics.counter(Metrics.BLOCK_GET, "from=\"cache\"");
+    private Metrics.Counter blockFromFile = metrics.counter(Metrics.BLOCK_GET, "from=\"file\"");
+    private Metrics.Counter blockFromPeer = metrics.counter(Metrics.BLOCK_GET, "from=\"peer\"");
+    private Metrics.Counter blockFromNone = metrics.counter(Metrics.BLOCK_GET, "from=\"fail\"");
+    private PeerScore peerScore = new PeerScore();
+    private BlockFetcher blockFetcher = new BlockFetcher(
+            () -> wak.peerGroup().getConnectedPeers(),
+            this::storeFetchedBlock,
+            peerScore, metrics);
+    private ConcurrentHashMap<Sha256Hash, Transaction> txCache = new ConcurrentHashMap<>();
+    private ChannelRegistry channels = new ChannelRegistry();
+    private StripedLock channelLocks = new StripedLock(CHANNEL_LOCK_STRIPES);
+    private TxBroadcaster txBroadcaster = new TxBroadcaster(
+            tx -> wak.peerGroup().broadcastTransaction(tx).future(),
+            RETRY_SENDRAWTX, TIMEOUT_SENDTX, TIMEOUT_REJECT);
+    private BroadcastQueue broadcastQueue;
+    private EventQueue eventQueue = new EventQueue(EVENT_QUEUE_SIZE);
+    private AtomicInteger eventTipHeight = new AtomicInteger();
+    private volatile Sha256Hash creationHash;
+    private volatile int syncState = SYNC_NONE;
+    private volatile long syncStartMsec;
+    private AtomicInteger downloadFailCount = new AtomicInteger();
+    private AtomicInteger peerFailCount = new AtomicInteger();
     private Logger logger;
 
 
-    /**************************************************************************
-     * result
-     **************************************************************************/
-
-    //
-    static class SendRawTxResult {
-        enum Result {
-            NONE,
-            RETRY,
-            REJECT
-        }
-        Result result;
-        CountDownLatch latch;
-        //
-        //
-        SendRawTxResult() {
-            this.result = Result.NONE;
-            this.latch = new CountDownLatch(1);
-        }
-        void lock() throws InterruptedException {
-            if (this.latch.getCount() > 0) {
-                this.latch.await(TIMEOUT_REJECT, TimeUnit.MILLISECONDS);
-            }
-        }
-        void unlock() {
-            this.latch.countDown();
-        }
-    }
-
-
     /**************************************************************************
      * exception
      **************************************************************************/
@@ -132,18 +185,14 @@ public class Ptarmigan {
 
     public Ptarmigan() {
         logger = LoggerFactory.getLogger(this.getClass());
-        peerInvalid = new boolean[MAX_CONNECTIONS];
-        for (int lp = 0; lp < MAX_CONNECTIONS; lp++) {
-            peerInvalid[lp] = false;
-        }
 
-        logger.info("Version: " + VERSION);
-        logger.info("bitcoinj " + VersionMessage.BITCOINJ_VERSION);
-        try {
-            Thread.sleep(2000);
-        } catch (InterruptedException e) {
-            //e.printStackTrace();
-        }
+        logger.info("Version: {}", VERSION);
+        logger.info("bitcoinj {}", VersionMessage.BITCOINJ_VERSION);
+
+        metrics.counter(Metrics.BLOCKCACHE_HIT, null, blockCache::getHitCount);
+        metrics.counter(Metrics.BLOCKCACHE_MISS, null, blockCache::getMissCount);
+        metrics.counter(Metrics.BLOCKCACHE_EVICTION, null, blockCache::getEvictionCount);
+        metrics.gauge(Metrics.BLOCKCACHE_BYTES, null, blockCache::getTotalBytes);
     }
 
 
@@ -155,44 +204,87 @@ public class Ptarmigan {
      * @return SPV_START_xxx
      */
     public int spv_start(String pmtProtocolId) {
-        logger.info("spv_start: " + pmtProtocolId);
+        long startNs = System.nanoTime();
+        try {
+            return spv_start(pmtProtocolId, false);
+        } finally {
+            metrics.api("spv_start", startNs);
+        }
+    }
+
+
+    /** initialize blockchain(staged)
+     *
+     *  wallet, chain file, local store(block file, spent index, tx queue)を読み込んだ時点で戻る。
+     *  block downloadはbackgroundで続き、進捗は getSyncProgress() で取得する。
+     *  download中も setChannel() などは呼び出せ、登録済みchannelとlocal storeの状態を返す。
+     *
+     * @param pmtProtocolId     chain name
+     * @return SPV_START_xxx
+     */
+    public int spv_start_staged(String pmtProtocolId) {
+        long startNs = System.nanoTime();
+        try {
+            return spv_start(pmtProtocolId, true);
+        } finally {
+            metrics.api("spv_start_staged", startNs);
+        }
+    }
+
+
+    private int spv_start(String pmtProtocolId, boolean staged) {
+        logger.info("spv_start: {}(staged={})", pmtProtocolId, staged);
+        syncStartMsec = System.currentTimeMillis();
         params = NetworkParameters.fromPmtProtocolID(pmtProtocolId);
         if (params == null) {
             // Error
             logger.error("ERROR: Invalid PmtProtocolID: " + pmtProtocolId);
+            syncState = SYNC_FAIL;
             return SPV_START_ERR;
         }
 
-        int ret = spv_start_setup(pmtProtocolId);
+        feeRateService = new FeeRateService(params, metrics);
+        feeRateService.start();
+        metrics.startExport(new File("./logs/" + FILE_METRICS), METRICS_EXPORT_SEC);
+
+        int ret = spv_start_setup(pmtProtocolId, staged);
         if (ret != SPV_START_OK) {
             logger.error("spv_start - reject");
+            syncState = SYNC_FAIL;
             return ret;
         }
 
-        ret = spv_start_download();
+        ret = spv_start_download(staged);
         if (ret == SPV_START_OK) {
-            System.out.println("\nblock downloaded");
-            saveDownloadLog(STARTUPLOG_CONT, "done.");
-            saveSeedMnemonic();
+            if (!staged) {
+                syncDone();
+            }
         } else {
+            syncState = SYNC_FAIL;
             System.err.println("fail: bitcoinj start");
             saveDownloadLog(STARTUPLOG_CONT, "*continue");
         }
-        logger.info("spv_start - exit");
+        logger.info("spv_start - exit({} msec)", System.currentTimeMillis() - syncStartMsec);
         return ret;
     }
 
 
     /** spv_start(): 1. setup
+     *
+     *  staged:
+     *      WalletAppKitはpeer接続とblock downloadを待たずにRUNNINGになる。
+     *      downloadするblockを取りこぼさないよう、callbackはpeer接続前(onSetupCompleted)に登録する。
      *
      * @param pmtProtocolId     chain name
+     * @param staged            true:block downloadを待たない
      * @return  SPV_START_xxx
      */
-    private int spv_start_setup(String pmtProtocolId) {
+    private int spv_start_setup(String pmtProtocolId, boolean staged) {
         try {
             logger.debug("spv_start: start WalletAppKit");
             saveDownloadLog(STARTUPLOG_CONT, "Blocks..");
             Context context = new Context(params);
+            PeerAddress[] peerNodes = parsePeerNodes(System.getProperty(PROP_PEERS));
             wak = new WalletAppKit(context,
                     Script.ScriptType.P2WPKH,
                     KeyChainGroupStructure.DEFAULT,
@@ -200,7 +292,7 @@ public class Ptarmigan {
                 @Override
                 protected void onSetupCompleted() {
                     logger.debug("spv_start: onSetupCompleted");
-                    if (!pmtProtocolId.equals(NetworkParameters.PAYMENT_PROTOCOL_ID_REGTEST)) {
+                    if ((peerNodes != null) || !pmtProtocolId.equals(NetworkParameters.PAYMENT_PROTOCOL_ID_REGTEST)) {
                         peerGroup().setUseLocalhostPeerWhenPossible(false);
                     }
                     int blockHeight = wak.wallet().getLastBlockSeenHeight();
@@ -208,17 +300,39 @@ public class Ptarmigan {
                     if (blockHeight != -1) {
                         System.out.print("(" + blockHeight + ")");
                     }
-                    peerGroup().setMaxConnections(MAX_CONNECTIONS);
+                    //broadcastはmaxConnectionsの8割の接続を待つので、固定peerの数を超えないようにする
+                    peerGroup().setMaxConnections(
+                            (peerNodes != null) ? Math.min(MAX_CONNECTIONS, peerNodes.length) : MAX_CONNECTIONS);
                     peerGroup().setStallThreshold(STALL_PERIOD, STALL_BYTES);
+                    //block download callbackと同じthreadで通知する
+                    chainView.attach(chain(), Ptarmigan.this::reorganizeEvent, Threading.USER_THREAD);
+                    if (staged) {
+                        setCallbackFunctions();
+                    }
                     logger.debug("spv_start: onSetupCompleted - exit");
                 }
+
+                @Override
+                protected void shutDown() throws Exception {
+                    super.shutDown();
+                    closeLocalStore();
+                }
             };
             if (wak.isChainFileLocked()) {
                 logger.error("spv_start: already running");
                 return SPV_START_FILE;
             }
+            if (peerNodes != null) {
+                wak.setPeerNodes(peerNodes);
+            }
+            if (staged) {
+                wak.setBlockingStartup(false);
+                wak.setDownloadListener(new SyncTracker());
+            }
+            openLocalStore(new File("./wallet" + pmtProtocolId));
             Context.propagate(context);
             logger.debug("spv_start: startAsync()");
+            syncState = SYNC_DOWNLOADING;
             wak.startAsync();
         } catch (IOException e) {
             logger.error("spv_start: IOException: " + e.getMessage());
@@ -231,9 +345,12 @@ public class Ptarmigan {
 
     /** spv_start(): 2. block download
      *
+     *  staged: wallet, chain fileの読み込み完了まで
+     *
+     * @param staged    true:block downloadを待たない
      * @return SPV_START_xxx
      */
-    private int spv_start_download() {
+    private int spv_start_download(boolean staged) {
         int ret;
         int retry = TIMEOUT_RETRY;
         int blockHeight = 0;
@@ -242,9 +359,11 @@ public class Ptarmigan {
                 wak.awaitRunning(TIMEOUT_START, TimeUnit.SECONDS);
                 blockHeight = wak.wallet().getLastBlockSeenHeight();
 
-                logger.info("spv_start: balance=" + wak.wallet().getBalance().toFriendlyString());
-                logger.info("spv_start: block height=" + blockHeight);
-                setCallbackFunctions();
+                logger.info("spv_start: balance={}", wak.wallet().getBalance().toFriendlyString());
+                logger.info("spv_start: block height={}", blockHeight);
+                if (!staged) {
+                    setCallbackFunctions();
+                }
                 ret = SPV_START_OK;
                 break;
             } catch (TimeoutException e) {
@@ -254,14 +373,14 @@ public class Ptarmigan {
                 int nowHeight = 0;
                 try {
                     nowHeight = wak.wallet().getLastBlockSeenHeight();
-                    logger.debug("spv_start: height=" + nowHeight);
-                    logger.debug("spv_start: status=" + wak.state().toString());
+                    logger.debug("spv_start: height={}", nowHeight);
+                    logger.debug("spv_start: status={}", wak.state());
                 } catch (Exception e2) {
                     logger.error("spv_start: fail getLastBlockSeenHeight: " + getStackTrace(e2));
                 }
 
                 if (blockHeight < nowHeight) {
-                    logger.info("spv_start: block downloading:" + nowHeight);
+                    logger.info("spv_start: block downloading:{}", nowHeight);
                     System.out.print("\n   block downloading(" + nowHeight + ") ");
                     saveDownloadLog(STARTUPLOG_BLOCK, String.valueOf(nowHeight));
                     retry = TIMEOUT_RETRY;
@@ -291,55 +410,105 @@ public class Ptarmigan {
     }
 
 
+    /** spv_start(): 3. block download完了
+     *
+     */
+    private void syncDone() {
+        syncState = SYNC_DONE;
+        logger.info("spv_start: block downloaded({} msec)", System.currentTimeMillis() - syncStartMsec);
+        System.out.println("\nblock downloaded");
+        saveDownloadLog(STARTUPLOG_CONT, "done.");
+        saveSeedMnemonic();
+    }
+
+
+    /** staged startでのblock download進捗
+     *
+     */
+    private class SyncTracker extends DownloadProgressTracker {
+        @Override
+        protected void startDownload(int blocks) {
+            logger.info("spv_start: block download start: {} blocks", blocks);
+        }
+
+        @Override
+        protected void progress(double pct, int blocksSoFar, Date date) {
+            int nowHeight = wak.chain().getBestChainHeight();
+            logger.debug("spv_start: block downloading:{}({}%)", nowHeight, (int)pct);
+            saveDownloadLog(STARTUPLOG_BLOCK, String.valueOf(nowHeight));
+        }
+
+        @Override
+        protected void doneDownload() {
+            syncDone();
+        }
+    }
+
+
     /** set bitcoinj callback functions
      *
      */
     private void setCallbackFunctions() {
         logger.info("set callbacks");
         wak.peerGroup().addBlocksDownloadedEventListener((peer, block, filteredBlock, blocksLeft) -> {
-            logger.debug("  [CB]BlocksDownloaded: " + block.getHash().toString() + "-> left:" + blocksLeft);
-            blockDownloadEvent(block.getHash());
+            if (logger.isDebugEnabled()) {
+                logger.debug("  [CB]BlocksDownloaded: {}-> left:{}", block.getHash(), blocksLeft);
+            }
+            int height = getStoredHeight(block.getHash());
+            indexDownloadedBlock(block, filteredBlock, height);
+            blockDownloadEvent(block, filteredBlock, height);
+            if (blocksLeft == 0) {
+                rebroadcastUnconfirmed();
+            }
         });
         //
         wak.peerGroup().addPreMessageReceivedEventListener(Threading.SAME_THREAD, (peer, m) -> {
             //logger.debug("  [CB]PreMessageReceived: -> " + m);
             if (m instanceof InventoryMessage) {
                 InventoryMessage im = (InventoryMessage)m;
-                logger.debug("  [CB]PreMessageReceived: -> inventory message: " + im);
+                logger.debug("  [CB]PreMessageReceived: -> inventory message: {}", im);
                 for (InventoryItem item: im.getItems()) {
-                    logger.debug("  " + item.type + ": " + item.hash);
+                    logger.debug("  {}: {}", item.type, item.hash);
                 }
             }
             if (m instanceof RejectMessage) {
                 RejectMessage rm = (RejectMessage)m;
-                logger.debug("  [CB]PreMessageReceived: -> reject message: " + rm.getReasonString());
+                logger.debug("  [CB]PreMessageReceived: -> reject message: {}", rm.getReasonString());
                 messageRejectEvent(rm);
             }
             return m;
         });
+        //
+        wak.peerGroup().addDisconnectedEventListener((peer, peerCount) -> {
+            logger.debug("  [CB]PeerDisconnected: -> {}, left:{}", peer.getAddress(), peerCount);
+            PtarmEvent event = new PtarmEvent(EVENT_PEER_LOST);
+            event.peer = peer.getAddress().toString();
+            event.confirmation = peerCount;
+            eventQueue.post(event);
+        });
         //commit_txの捕捉に使用できる
         wak.peerGroup().addOnTransactionBroadcastListener((peer, tx) -> {
-            logger.debug("  [CB]TransactionBroadcast: -> " + tx.getTxId().toString());
-            logger.debug("    tx: " + tx);
+            logger.debug("  [CB]TransactionBroadcast: -> {}", tx.getTxId());
+            logger.debug("    tx: {}", tx);
             sendEvent(tx);
         });
         //
         wak.wallet().addCoinsReceivedEventListener((wallet, tx, coin0, coin1) -> {
-            logger.debug("  [CB]CoinsReceived: -> " + tx.getTxId().toString());
-            logger.debug("    tx: " + tx);
-            logger.debug("    coin0: " + coin0);
-            logger.debug("    coin1: " + coin1);
+            logger.debug("  [CB]CoinsReceived: -> {}", tx.getTxId());
+            logger.debug("    tx: {}", tx);
+            logger.debug("    coin0: {}", coin0);
+            logger.debug("    coin1: {}", coin1);
             TransactionOutPoint opnt = tx.getInput(0).getOutpoint();
-            logger.debug("      outpoint: " + opnt.getHash().toString() + ":" + opnt.getIndex());
+            logger.debug("      outpoint: {}:{}", opnt.getHash(), opnt.getIndex());
             recvEvent(tx);
         });
         wak.wallet().addCoinsSentEventListener((wallet, tx, coin0, coin1) -> {
-            logger.debug("  [CB]CoinsSent: -> " + tx.getTxId().toString());
-            logger.debug("    tx: " + tx);
-            logger.debug("    coin0: " + coin0);
-            logger.debug("    coin1: " + coin1);
+            logger.debug("  [CB]CoinsSent: -> {}", tx.getTxId());
+            logger.debug("    tx: {}", tx);
+            logger.debug("    coin0: {}", coin0);
+            logger.debug("    coin1: {}", coin1);
             TransactionOutPoint opnt = tx.getInput(0).getOutpoint();
-            logger.debug("      outpoint: " + opnt.getHash().toString() + ":" + opnt.getIndex());
+            logger.debug("      outpoint: {}:{}", opnt.getHash(), opnt.getIndex());
             sendEvent(tx);
         });
 //        wak.wallet().addReorganizeEventListener(wallet -> {
@@ -386,18 +555,29 @@ public class Ptarmigan {
      */
     private void findRegisteredTx(Transaction tx) {
         TransactionOutPoint targetOutpointTxid = tx.getInput(0).getOutpoint();
-        logger.debug("findRegisteredTx(): txid=" + targetOutpointTxid.getHash().toString());
-        for (PtarmiganChannel ch : mapChannel.values()) {
-            TransactionOutPoint fundingOutpoint = ch.getFundingOutpoint();
-            if (fundingOutpoint == null) {
-                continue;
-            }
-            logger.debug("   ch txid=" + fundingOutpoint.toString());
-            if (targetOutpointTxid.equals(fundingOutpoint)) {
-                logger.debug("findRegisteredTx() ----> SPENT funding_tx!");
+        logger.debug("findRegisteredTx(): txid={}", targetOutpointTxid.getHash());
+        PtarmiganChannel ch = channels.getByFundingOutpoint(targetOutpointTxid);
+        if (ch != null) {
+            logger.debug("findRegisteredTx() ----> SPENT funding_tx!");
+            PtarmEvent event;
+            ReentrantLock lock = channelLocks.get(ch.peerNodeId());
+            lock.lock();
+            try {
                 ch.setFundingTxSpentValue(CHECKUNSPENT_SPENT, Sha256Hash.ZERO_HASH);
-            } else {
-                //おそらくこの部分は稼働していない(commit_txidを設定しないので)
+                //未confirm(block hash=ZERO, height=0)
+                event = channelEvent(EVENT_FUNDING_SPENT, ch, tx.getTxId(), Sha256Hash.ZERO_HASH, 0);
+            } finally {
+                lock.unlock();
+            }
+            postEvent(event);
+            return;
+        }
+        //おそらくこの部分は稼働していない(commit_txidを設定しないので)
+        ch = channels.getByCommitTxid(tx.getTxId());
+        if (ch != null) {
+            ReentrantLock lock = channelLocks.get(ch.peerNodeId());
+            lock.lock();
+            try {
                 int index = checkCommitTxids(ch, tx.getTxId());
                 if (index != COMMITTXID_MAX) {
                     switch (index) {
@@ -408,66 +588,282 @@ public class Ptarmigan {
                         logger.debug("unilateral close: remote");
                         break;
                     }
-                    ch.getCommitTxid(index).unspent = Ptarmigan.CHECKUNSPENT_SPENT;
-                    mapChannel.put(Hex.toHexString(ch.peerNodeId()), ch);
+                    ch.setCommitTxSpent(index, Sha256Hash.ZERO_HASH);
+                    channels.put(ch);
                 }
+            } finally {
+                lock.unlock();
             }
         }
     }
 
 
-    /**
-     *  このタイミングでは引数のblockHashとWallet#getLastBlockSeenHash()は必ずしも一致しない。
+    /** [event]download済みblockをindexに追加
+     *
+     * @param block block(headerのみの場合あり)
+     * @param filteredBlock filtered block(nullの場合あり)
+     * @param height block height(不明な場合は-1)
+     */
+    private void indexDownloadedBlock(Block block, @Nullable FilteredBlock filteredBlock, int height) {
+        if (block.getTransactions() != null) {
+            indexBlock(block, height);
+        } else if ((filteredBlock != null) && !filteredBlock.getAssociatedTransactions().isEmpty()) {
+            txIndex.addTxids(filteredBlock.getAssociatedTransactions().keySet(), height);
+            if (spentIndex != null) {
+                spentIndex.addTransactions(block.getHash(), height,
+                        new ArrayList<>(filteredBlock.getAssociatedTransactions().values()));
+            }
+            if (broadcastQueue != null) {
+                broadcastQueue.onBlock(block.getHash(), height, filteredBlock.getAssociatedTransactions().keySet());
+            }
+        }
+    }
+
+
+    /** full blockをindexに追加
+     *
+     * @param block     block(with transactions)
+     * @param height    block height(不明な場合は-1)
+     */
+    private void indexBlock(Block block, int height) {
+        txIndex.addBlock(block, height);
+        if (spentIndex != null) {
+            spentIndex.addBlock(block, height);
+        }
+        if ((feeRateService != null) && (height > 0)) {
+            feeRateService.addBlock(block, height);
+        }
+        if ((broadcastQueue != null) && (broadcastQueue.size() > 0)) {
+            List<Transaction> txs = block.getTransactions();
+            List<Sha256Hash> txids = new ArrayList<>(txs.size());
+            for (Transaction tx : txs) {
+                txids.add(tx.getTxId());
+            }
+            broadcastQueue.onBlock(block.getHash(), height, txids);
+        }
+    }
+
+
+    /** [event]受信blockで全channelの状態を更新する
+     *
+     *  このタイミングでは引数のblockとWallet#getLastBlockSeenHash()は必ずしも一致しない。
      *  すなわち、Wallet#getLastBlockSeenHeight()とも一致しないということである。
+     *
+     *  - funding_txのmined block, confirmation
+     *  - funding_txのspent
+     *  - commit_txの展開
+     *  getTxConfirmation(), checkUnspent()はここで更新した値を返すだけになる。
+     *
+     * @param block block(headerのみの場合あり)
+     * @param filteredBlock filtered block(nullの場合あり)
+     * @param height block height(不明な場合は-1)
+     */
+    private void blockDownloadEvent(Block block, @Nullable FilteredBlock filteredBlock, int height) {
+        Sha256Hash blockHash = block.getHash();
+        logger.debug("===== blockDownloadEvent(block={})", blockHash);
+        if ((height > 0) && (eventTipHeight.getAndAccumulate(height, Math::max) < height)) {
+            PtarmEvent event = new PtarmEvent(EVENT_NEW_TIP);
+            event.blockHash = blockHash.getReversedBytes();
+            event.height = height;
+            eventQueue.post(event);
+        }
+        if (channels.size() == 0) {
+            return;
+        }
+        List<Transaction> txs = block.getTransactions();
+        boolean full = (txs != null);
+        if (!full) {
+            txs = (filteredBlock != null) ?
+                    new ArrayList<>(filteredBlock.getAssociatedTransactions().values()) :
+                    Collections.<Transaction>emptyList();
+        }
+        int tipHeight = Math.max(height, wak.wallet().getLastBlockSeenHeight());
+        //eventはchannelのlockを外してから発行する
+        List<PtarmEvent> events = new ArrayList<>();
+        for (int lp = 0; lp < txs.size(); lp++) {
+            //filtered blockではblock内の位置がわからない
+            monitorTransaction(txs.get(lp), blockHash, height, full ? lp : -1, tipHeight, events);
+        }
+        for (PtarmiganChannel ch : channels.values()) {
+            ReentrantLock lock = channelLocks.get(ch.peerNodeId());
+            lock.lock();
+            try {
+                Sha256Hash monitorHash = ch.getMonitorHash();
+                if ((monitorHash != null) && monitorHash.equals(block.getPrevBlockHash())) {
+                    ch.setMonitorHash(blockHash);
+                } else if (!blockHash.equals(monitorHash)) {
+                    //連続していないblockを受信したので、次回の問い合わせでblockから確認し直す
+                    ch.setMonitorHash(null);
+                }
+                ShortChannelParam param = ch.getShortChannelId();
+                if ((param != null) && (param.height > 0)) {
+                    int prevConf = ch.getConfirmation();
+                    ch.setConfirmation(tipHeight - param.height + 1);
+                    if (ch.getConfirmation() != prevConf) {
+                        addEvent(events, channelEvent(EVENT_CONFIRMED, ch, ch.getFundingOutpoint().getHash(), ch.getMinedBlockHash(), param.height));
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        for (PtarmEvent event : events) {
+            postEvent(event);
+        }
+    }
+
+
+    /** [event]reorg
+     *
+     *  active chainから外れたblockを参照しているchannelの値、cache、index、送信txのconfirmを破棄する。
+     *  破棄したchannelは次回の問い合わせで分岐点からblockを確認し直す。
+     *  mined blockが外れたchannelはEVENT_CONFIRMED(confirmation=0)、最後にEVENT_REORG(分岐点)を発行する。
+     *
+     * @param forkHash      分岐点のblock hash
+     * @param forkHeight    分岐点のheight
+     * @param removed       外れたblock hash
+     */
+    private void reorganizeEvent(Sha256Hash forkHash, int forkHeight, List<Sha256Hash> removed) {
+        logger.info("reorganize: fork={}({}), removed={}", forkHash, forkHeight, removed.size());
+        Set<Sha256Hash> stale = new HashSet<>(removed);
+        for (Sha256Hash hash : removed) {
+            blockCache.remove(hash);
+            heightResolver.remove(hash);
+        }
+        int txRemoved = txIndex.removeAbove(forkHeight);
+        eventTipHeight.set(forkHeight);
+        int invalidated = 0;
+        List<PtarmEvent> events = new ArrayList<>();
+        for (PtarmiganChannel ch : channels.values()) {
+            ReentrantLock lock = channelLocks.get(ch.peerNodeId());
+            lock.lock();
+            try {
+                boolean unconfirmed = stale.contains(ch.getMinedBlockHash());
+                if (ch.invalidate(stale, forkHash)) {
+                    channels.put(ch);
+                    invalidated++;
+                    if (unconfirmed) {
+                        addEvent(events, channelEvent(EVENT_CONFIRMED, ch, ch.getFundingOutpoint().getHash(), forkHash, forkHeight));
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        int txUnconfirmed = (broadcastQueue != null) ? broadcastQueue.onReorganize(stale) : 0;
+        updateBlockCachePin();
+        logger.info("reorganize: txIndex removed={}, channel invalidated={}, tx unconfirmed={}", txRemoved, invalidated, txUnconfirmed);
+
+        for (PtarmEvent event : events) {
+            postEvent(event);
+        }
+        PtarmEvent event = new PtarmEvent(EVENT_REORG);
+        event.blockHash = forkHash.getReversedBytes();
+        event.height = forkHeight;
+        postEvent(event);
+    }
+
+
+    /** channel event作成(channelのlock中に呼び、発行はlockを外してからpostEvent()で行う)
+     *
+     * @param type      EVENT_xxx
+     * @param ch        channel
+     * @param txid      対象txid
+     * @param blockHash 対象block
+     * @param height    block height
+     * @return  event(通知しない場合はnull)
+     */
+    private PtarmEvent channelEvent(int type, PtarmiganChannel ch, Sha256Hash txid, Sha256Hash blockHash, int height) {
+        if ((type == EVENT_CONFIRMED) && (ch.getConfirmation() > EVENT_CONFIRM_MAX)) {
+            return null;
+        }
+        PtarmEvent event = new PtarmEvent(type);
+        event.peerId = ch.peerNodeId();
+        event.txid = txid.getReversedBytes();
+        event.blockHash = blockHash.getReversedBytes();
+        event.height = height;
+        event.confirmation = ch.getConfirmation();
+        return event;
+    }
+
+
+    private void addEvent(List<PtarmEvent> events, @Nullable PtarmEvent event) {
+        if (event != null) {
+            events.add(event);
+        }
+    }
+
+
+    /** event発行(listenerが呼ばれるので、lockを持ったまま呼ばないこと) */
+    private void postEvent(@Nullable PtarmEvent event) {
+        if (event != null) {
+            eventQueue.post(event);
+        }
+    }
+
+
+    /** blockDownloadEvent(): 1 txのチェック
+     *
+     * @param tx        transaction
      * @param blockHash block hash
+     * @param height    block height(不明な場合は-1)
+     * @param bIndex    block内の位置(不明な場合は-1)
+     * @param tipHeight current block height
+     * @param events    発行するevent(追加先)
      */
-    private void blockDownloadEvent(Sha256Hash blockHash) {
-        logger.debug("===== blockDownloadEvent(block=" + blockHash.toString() + ")");
-//
-//        for (PtarmiganChannel ch : mapChannel.values()) {
-//            TransactionOutPoint fundingOutpoint = ch.getFundingOutpoint();
-//            if (fundingOutpoint == null) {
-//                logger.debug("  no channel");
-//                continue;
-//            }
-//            if (ch.getConfirmation() <= 0) {
-//                //mining check
-//                logger.debug("  blockDownloadEvent: mining check");
-//
-//                Block block = getBlock(blockHash);
-//                if (block == null || !block.hasTransactions()) {
-//                    logger.debug("   no block");
-//                    break;
-//                }
-//                int bindex = 0;
-//                List<Transaction> txs = block.getTransactions();
-//                if (txs == null) {
-//                    logger.debug("   no transaction");
-//                    break;
-//                }
-//                for (Transaction tx: txs) {
-//                    if (tx != null) {
-//                        logger.debug("   blockDownloadEvent: tx=" + tx.getTxId().toString());
-//                        if (tx.getTxId().equals(fundingOutpoint.getHash())) {
-//                            if (tx.getConfidence() != null) {
-//                                int blockHeight = tx.getConfidence().getAppearedAtChainHeight();
-//                                logger.debug("   blockDownloadEvent: height=" + blockHeight);
-//                                ch.setMinedBlockHash(blockHash, blockHeight, bindex);
-//                                ch.setConfirmation(1);
-//                                logger.debug("BLOCK funding_tx:" + tx.toString());
-//                            } else {
-//                                logger.debug("  blockDownloadEvent: no confidence");
-//                            }
-//                            break;
-//                        }
-//                    }
-//                    bindex++;
-//                }
-//            }
-//
-//            mapChannel.put(Hex.toHexString(ch.peerNodeId()), ch);
-//            logger.debug(" --> " + ch.getConfirmation());
-//        }
+    private void monitorTransaction(Transaction tx, Sha256Hash blockHash, int height, int bIndex, int tipHeight, List<PtarmEvent> events) {
+        Sha256Hash txid = tx.getTxId();
+        PtarmiganChannel ch = channels.getByFundingTxid(txid);
+        if ((ch != null) && (height > 0) && (ch.getConfirmation() <= 0)) {
+            ReentrantLock lock = channelLocks.get(ch.peerNodeId());
+            lock.lock();
+            try {
+                logger.debug("blockDownloadEvent: funding_tx mined: {}", txid);
+                ch.setMinedBlockHash(blockHash, height, bIndex);
+                ch.setConfirmation(tipHeight - height + 1);
+                channels.put(ch);
+                addEvent(events, channelEvent(EVENT_CONFIRMED, ch, txid, blockHash, height));
+            } finally {
+                lock.unlock();
+            }
+        }
+        ch = channels.getByCommitTxid(txid);
+        if (ch != null) {
+            ReentrantLock lock = channelLocks.get(ch.peerNodeId());
+            lock.lock();
+            try {
+                int index = checkCommitTxids(ch, txid);
+                if (index != COMMITTXID_MAX) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("blockDownloadEvent: commit_tx[{}]: {}", index, txid);
+                    }
+                    ch.setCommitTxSpent(index, blockHash);
+                    addEvent(events, channelEvent(EVENT_COMMIT_SPENT, ch, txid, blockHash, height));
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (tx.isCoinBase()) {
+            return;
+        }
+        for (TransactionInput input : tx.getInputs()) {
+            ch = channels.getByFundingOutpoint(input.getOutpoint());
+            if (ch != null) {
+                ReentrantLock lock = channelLocks.get(ch.peerNodeId());
+                lock.lock();
+                try {
+                    logger.debug("blockDownloadEvent: funding_tx spent: {}", txid);
+                    if (!blockHash.equals(ch.getFundingTxSpentBlockHash())) {
+                        addEvent(events, channelEvent(EVENT_FUNDING_SPENT, ch, txid, blockHash, height));
+                    }
+                    ch.setFundingTxSpentValue(CHECKUNSPENT_SPENT, blockHash);
+                } finally {
+                    lock.unlock();
+                }
+                updateBlockCachePin();
+            }
+        }
     }
 
 
@@ -477,16 +873,15 @@ public class Ptarmigan {
      */
     private void messageRejectEvent(RejectMessage message) {
         logger.debug("messageRejectEvent");
-        logger.debug("  " + message.getRejectedObjectHash());
-        logger.debug("  " + message.getReasonString());
+        logger.debug("  {}", message.getRejectedObjectHash());
+        logger.debug("  {}", message.getReasonString());
 
-        if (mapSendTx.containsKey(message.getRejectedObjectHash())) {
+        if (txBroadcaster.onReject(message.getRejectedObjectHash(), message.getReasonString())) {
             logger.debug("messageRejectEvent: NG: send tx");
-            SendRawTxResult retSendTx = mapSendTx.get(message.getRejectedObjectHash());
-            retSendTx.result = SendRawTxResult.Result.REJECT;
-            mapSendTx.put(message.getRejectedObjectHash(), retSendTx);
-            retSendTx.unlock();
         }
+        PtarmEvent event = new PtarmEvent(EVENT_TX_REJECTED);
+        event.txid = message.getRejectedObjectHash().getReversedBytes();
+        eventQueue.post(event);
     }
 
 
@@ -512,7 +907,7 @@ public class Ptarmigan {
                 default:
                     prefix = "";
             }
-            logger.debug("saveDownloadLog():" + message);
+            logger.debug("saveDownloadLog():{}", message);
             fileWriter.write(prefix + message);
             fileWriter.close();
         } catch (IOException e) {
@@ -540,6 +935,104 @@ public class Ptarmigan {
     }
 
 
+    /** parse peer list
+     *
+     * @param peers     "host:port,..."(null可)
+     * @return  peer addresses(未指定 or 有効なpeerなし:null)
+     */
+    private PeerAddress[] parsePeerNodes(@Nullable String peers) {
+        if ((peers == null) || peers.trim().isEmpty()) {
+            return null;
+        }
+        List<PeerAddress> result = new ArrayList<>();
+        for (String peer : peers.split(",")) {
+            peer = peer.trim();
+            int pos = peer.lastIndexOf(':');
+            try {
+                String host = (pos > 0) ? peer.substring(0, pos) : peer;
+                int port = (pos > 0) ? Integer.parseInt(peer.substring(pos + 1)) : params.getPort();
+                result.add(new PeerAddress(params, InetAddress.getByName(host), port));
+                logger.info("spv_start: peer {}:{}", host, port);
+            } catch (Exception e) {
+                logger.error("spv_start: invalid peer: " + peer + ": " + e.getMessage());
+            }
+        }
+        return result.isEmpty() ? null : result.toArray(new PeerAddress[0]);
+    }
+
+
+    /** open local block file and indexes
+     *
+     * @param directory wallet directory
+     */
+    private synchronized void openLocalStore(File directory) {
+        localStoreClosed = false;
+        if (!directory.exists() && !directory.mkdirs()) {
+            logger.error("openLocalStore: fail mkdir");
+            //file保存なしで送信queueだけ使う
+            broadcastQueue = new BroadcastQueue(params, null);
+            return;
+        }
+        try {
+            blockFile = new BlockFile(params, new File(directory, FILE_BLOCKFILE), BLOCKFILE_BYTES);
+        } catch (IOException e) {
+            logger.error("openLocalStore: block file: " + getStackTrace(e));
+            blockFile = null;
+        }
+        try {
+            spentIndex = new SpentIndex(new File(directory, FILE_SPENTINDEX), SPENTINDEX_BYTES);
+        } catch (IOException e) {
+            logger.error("openLocalStore: spent index: " + getStackTrace(e));
+            spentIndex = null;
+        }
+        broadcastQueue = new BroadcastQueue(params, new File(directory, FILE_TXQUEUE));
+        blockStoreExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread th = new Thread(r, "ptarm-blockstore");
+            th.setDaemon(true);
+            return th;
+        });
+        //non-blocking startupではWalletAppKitがshutdown hookを登録しない
+        //spv_startを繰り返しても1つだけ登録する(closeLocalStoreはその時点のfileを閉じる)
+        if (closeHook == null) {
+            closeHook = new Thread(this::closeLocalStore, "ptarm-close");
+            Runtime.getRuntime().addShutdownHook(closeHook);
+        }
+    }
+
+
+    /** close local block file and indexes
+     *
+     */
+    private synchronized void closeLocalStore() {
+        if (localStoreClosed) {
+            return;
+        }
+        localStoreClosed = true;
+        ExecutorService executor = blockStoreExecutor;
+        blockStoreExecutor = null;
+        if (executor != null) {
+            //保存待ちのblockを書き終えてから閉じる
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(TIMEOUT_BLOCKSTORE, TimeUnit.MILLISECONDS)) {
+                    logger.error("closeLocalStore: block store timeout");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (blockFile != null) {
+            blockFile.close();
+        }
+        if (spentIndex != null) {
+            spentIndex.close();
+        }
+        if (broadcastQueue != null) {
+            broadcastQueue.close();
+        }
+    }
+
+
     /** remove saved chain file
      *
      */
@@ -569,8 +1062,13 @@ public class Ptarmigan {
      * @param blockHash     wallet creation block hash
      */
     public void setCreationHash(byte[] blockHash) {
-        creationHash = Sha256Hash.wrapReversed(blockHash);
-        logger.debug("setCreationHash()=" + creationHash.toString());
+        long startNs = System.nanoTime();
+        try {
+            creationHash = Sha256Hash.wrapReversed(blockHash);
+            logger.debug("setCreationHash()={}", creationHash);
+        } finally {
+            metrics.api("setCreationHash", startNs);
+        }
     }
 
 
@@ -583,25 +1081,46 @@ public class Ptarmigan {
      * @throws PtarmException   fail
      */
     public int getBlockCount(@Nullable byte[] blockHash) throws PtarmException {
-        int blockHeight = wak.wallet().getLastBlockSeenHeight();
-        logger.debug("getBlockCount(): count=" + blockHeight);
-        if (getPeer() == null) {
-            logger.error("getBlockCount(): peer not found");
-            failPeer();
-            //blockHeight = 0;
-        }
-        if (blockHash != null) {
-            byte[] bhashBytes;
-            Sha256Hash bhash = wak.wallet().getLastBlockSeenHash();
-            if (bhash != null) {
-                bhashBytes = bhash.getReversedBytes();
-                logger.debug("getBlockCount(): hash=" + bhash.toString());
-            } else {
-                logger.debug("getBlockCount(): no block hash");
-                bhashBytes = Sha256Hash.ZERO_HASH.getBytes();
+        long startNs = System.nanoTime();
+        try {
+            int blockHeight = wak.wallet().getLastBlockSeenHeight();
+            logger.debug("getBlockCount(): count={}", blockHeight);
+            if (getPeer() == null) {
+                logger.error("getBlockCount(): peer not found");
+                failPeer();
+                //blockHeight = 0;
+            }
+            if (blockHash != null) {
+                byte[] bhashBytes;
+                Sha256Hash bhash = wak.wallet().getLastBlockSeenHash();
+                if (bhash != null) {
+                    bhashBytes = bhash.getReversedBytes();
+                    logger.debug("getBlockCount(): hash={}", bhash);
+                } else {
+                    logger.debug("getBlockCount(): no block hash");
+                    bhashBytes = Sha256Hash.ZERO_HASH.getBytes();
+                }
+                System.arraycopy(bhashBytes, 0, blockHash, 0, bhashBytes.length);
             }
-            System.arraycopy(bhashBytes, 0, blockHash, 0, bhashBytes.length);
+            return blockHeight;
+        } finally {
+            metrics.api("getBlockCount", startNs);
         }
+    }
+
+
+    /////////////////////////////////////////////////////////////////////////
+
+    /** get block height(direct buffer)
+     *
+     * @param blockHash     (output)current block hash(32, little endian)
+     * @return  current block height
+     * @throws PtarmException   fail
+     */
+    public int getBlockCount(ByteBuffer blockHash) throws PtarmException {
+        int blockHeight = getBlockCount((byte[])null);
+        Sha256Hash bhash = wak.wallet().getLastBlockSeenHash();
+        blockHash.put((bhash != null) ? bhash.getReversedBytes() : Sha256Hash.ZERO_HASH.getBytes());
         return blockHeight;
     }
 
@@ -613,9 +1132,14 @@ public class Ptarmigan {
      * @return  genesis block hash
      */
     public byte[] getGenesisBlockHash() {
-        Sha256Hash hash = wak.params().getGenesisBlock().getHash();
-        logger.debug("getGenesisBlockHash(): hash=" + hash.toString());
-        return hash.getReversedBytes();
+        long startNs = System.nanoTime();
+        try {
+            Sha256Hash hash = wak.params().getGenesisBlock().getHash();
+            logger.debug("getGenesisBlockHash(): hash={}", hash);
+            return hash.getReversedBytes();
+        } finally {
+            metrics.api("getGenesisBlockHash", startNs);
+        }
     }
 
 
@@ -634,30 +1158,63 @@ public class Ptarmigan {
      * @throws PtarmException peer not found count > PEER_FAIL_COUNT_MAX
      */
     public int getTxConfirmation(byte[] txid, int vIndex, byte[] witnessProgram, long amount) throws PtarmException {
+        long startNs = System.nanoTime();
+        try {
+            return getTxConfirmationInternal(txid, vIndex, witnessProgram, amount);
+        } finally {
+            metrics.api("getTxConfirmation", startNs);
+        }
+    }
+
+
+    /** getTxConfirmation()の本体(API latencyを記録しない) */
+    private int getTxConfirmationInternal(byte[] txid, int vIndex, byte[] witnessProgram, long amount) throws PtarmException {
         Sha256Hash txHash = Sha256Hash.wrapReversed(txid);
-        logger.debug("getTxConfirmation(): txid=" + txHash.toString() + ", vIndex=" + vIndex);
+        logger.debug("getTxConfirmation(): txid={}, vIndex={}", txHash, vIndex);
 
         PtarmiganChannel channel = getChannelFromFundingTx(txHash);
+        Sha256Hash minedHash = null;
+        Sha256Hash fundingTxid = null;
         if (channel != null) {
-            if ((channel.getShortChannelId() != null) && (channel.getShortChannelId().height > 0)) {
-                // already confirmed ==> calculation from current block height
-                int conf = wak.wallet().getLastBlockSeenHeight() - channel.getShortChannelId().height + 1;
-                channel.setConfirmation(conf);
-                logger.debug("getTxConfirmation:   cached conf=" + channel.getConfirmation());
-                mapChannel.put(Hex.toHexString(channel.peerNodeId()), channel);
-                return channel.getConfirmation();
-            } else {
-                logger.debug("getTxConfirmation(): no short_channel");
+            ReentrantLock lock = channelLocks.get(channel.peerNodeId());
+            lock.lock();
+            try {
+                if ((channel.getShortChannelId() != null) && (channel.getShortChannelId().height > 0)) {
+                    // already confirmed ==> calculation from current block height
+                    int conf = wak.wallet().getLastBlockSeenHeight() - channel.getShortChannelId().height + 1;
+                    channel.setConfirmation(conf);
+                    logger.debug("getTxConfirmation:   cached conf={}", channel.getConfirmation());
+                    channels.put(channel);
+                    return channel.getConfirmation();
+                } else {
+                    logger.debug("getTxConfirmation(): no short_channel");
+                }
+                Sha256Hash tipHash = wak.wallet().getLastBlockSeenHash();
+                if ((tipHash != null) && tipHash.equals(channel.getMonitorHash()) && (channel.getConfirmation() <= 0)) {
+                    //blockDownloadEvent()で最新blockまで確認済み
+                    logger.debug("getTxConfirmation(): not mined(monitor)");
+                    return 0;
+                }
+                minedHash = channel.getMinedBlockHash();
+                fundingTxid = channel.getFundingOutpoint().getHash();
+            } finally {
+                lock.unlock();
             }
         }
+        //block走査中はlockしない(結果の反映時だけlockする)
         logger.debug("getTxConfirmation(): get from block");
-        return getTxConfirmationFromBlock(channel, txHash, vIndex, witnessProgram, amount);
+        return getTxConfirmationFromBlock(channel, minedHash, fundingTxid, txHash, vIndex, witnessProgram, amount);
     }
 
 
     /** get confirmation from block
+     *
+     *  channelはlockせずに呼び出し、channelの値は呼出し元でlock中に取得したものを使う。
+     *  (package private: ChainWalkBenchmarkからも呼び出す)
      *
      * @param channel (not null)target funding_tx, (null)only get confirmation
+     * @param minedHash (channel != null)channel minedHash
+     * @param fundingTxid (channel != null)channel funding txid
      * @param txHash outpoint:txid
      * @param vIndex (not -1)funding_tx:index, (-1)not funding_tx
      * @param witnessProgram: (vIndex != -1)outpoint:witnessProgram
@@ -665,19 +1222,18 @@ public class Ptarmigan {
      * @return !0:confirmation, 0:error or fail get confirmation
      * @throws PtarmException peer not found count > PEER_FAIL_COUNT_MAX
      */
-    private int getTxConfirmationFromBlock(
+    int getTxConfirmationFromBlock(
             PtarmiganChannel channel,
+            Sha256Hash minedHash, Sha256Hash fundingTxid,
             Sha256Hash txHash, int vIndex,
             byte[] witnessProgram, long amount) throws PtarmException {
-        logger.debug("getTxConfirmationFromBlock(): txid=" + txHash.toString() + ", vIndex=" + vIndex);
-        Sha256Hash minedHash;
+        logger.debug("getTxConfirmationFromBlock(): txid={}, vIndex={}", txHash, vIndex);
         if (channel != null) {
-            minedHash = channel.getMinedBlockHash();
             if (Sha256Hash.ZERO_HASH.equals(minedHash)) {
                 logger.error("getTxConfirmationFromBlock(): minedHash=ZERO");
                 return 0;
             }
-            logger.debug("    fundingTxid=" + channel.getFundingOutpoint().toString());
+            logger.debug("    fundingTxid={}", fundingTxid);
         } else {
             minedHash = null;
             logger.error("getTxConfirmationFromBlock: no channel");
@@ -688,28 +1244,41 @@ public class Ptarmigan {
             return 0;
         }
 
+        Sha256Hash tipHash = blockHash;
+        boolean walked = false;
+        int walkCount = 0;
         try {
             int blockHeight = wak.wallet().getLastBlockSeenHeight();
+            int confIndex = getTxConfirmationFromIndex(channel, fundingTxid, txHash, vIndex, witnessProgram, amount, blockHeight);
+            if (confIndex != 0) {
+                return confIndex;
+            }
             int conf = 0;
             while (true) {
+                prefetchBlocks(blockHash, minedHash);
                 Block block = getBlock(blockHash);
                 if (block == null) {
                     logger.error("getTxConfirmationFromBlock: fail block2");
                     break;
                 }
-                logger.debug("getTxConfirmationFromBlock: blockHash(conf=" + (conf + 1) + ")=" + blockHash.toString());
+                walkCount++;
+                if (logger.isDebugEnabled()) {
+                    logger.debug("getTxConfirmationFromBlock: blockHash(conf={})={}", conf + 1, blockHash);
+                }
                 List<Transaction> txs = block.getTransactions();
                 if (txs != null) {
                     int blockIndex = 0;
                     for (Transaction tx0 : txs) {
                         if ((tx0 != null) && (tx0.getTxId().equals(txHash))) {
-                            if ((channel != null) && channel.getFundingOutpoint().getHash().equals(tx0.getTxId())) {
+                            if ((channel != null) && fundingTxid.equals(tx0.getTxId())) {
                                 if (!getTxConfirmationCheck(tx0, vIndex, witnessProgram, amount)) {
                                     return 0;
                                 }
-                                return getTxConfirmationChannel(channel, block, blockIndex, blockHeight, conf);
+                                return getTxConfirmationChannel(channel, fundingTxid, block, blockIndex, blockHeight, conf);
                             } else {
-                                logger.debug("getTxConfirmationFromBlock(): not channel conf=" + (conf + 1));
+                                if (logger.isDebugEnabled()) {
+                                    logger.debug("getTxConfirmationFromBlock(): not channel conf={}", conf + 1);
+                                }
                                 return conf + 1;
                             }
                         }
@@ -718,14 +1287,16 @@ public class Ptarmigan {
                 }
                 if (blockHash.equals(creationHash)) {
                     logger.debug(" stop by creationHash");
+                    walked = true;
                     break;
                 }
                 if (blockHash.equals(minedHash)) {
                     logger.debug(" stop by minedHash");
+                    walked = true;
                     break;
                 }
                 // ひとつ前のブロック
-                blockHash = block.getPrevBlockHash();
+                blockHash = getPrevHash(blockHash, block);
                 conf++;
             }
         } catch (PtarmException e) {
@@ -733,28 +1304,87 @@ public class Ptarmigan {
             throw e;
         } catch (Exception e) {
             logger.error("getTxConfirmationFromBlock(): " + getStackTrace(e));
+        } finally {
+            walkTxConfirmation.record(walkCount);
+        }
+        if (walked && (channel != null)) {
+            //以降はblockDownloadEvent()で更新する
+            ReentrantLock lock = channelLocks.get(channel.peerNodeId());
+            lock.lock();
+            try {
+                if (isSameFunding(channel, fundingTxid)) {
+                    channel.setMonitorHash(tipHash);
+                }
+            } finally {
+                lock.unlock();
+            }
         }
         logger.error("getTxConfirmationFromBlock: fail confirm");
         return 0;
     }
 
 
-    private boolean getTxConfirmationCheck(Transaction tx, int vIndex, byte[] witnessProgram, long amount) {
-        if (vIndex == -1) {
-            //no check
-            return true;
+    /** get confirmation from txid index
+     *
+     * @return !0:confirmation, 0:not indexed or fail
+     * @throws PtarmException peer not found count > PEER_FAIL_COUNT_MAX
+     */
+    private int getTxConfirmationFromIndex(
+            PtarmiganChannel channel, Sha256Hash fundingTxid,
+            Sha256Hash txHash, int vIndex,
+            byte[] witnessProgram, long amount,
+            int blockHeight) throws PtarmException {
+        TxIndex.Location loc = txIndex.get(txHash);
+        if ((loc == null) || (loc.height <= 0) || (loc.height > blockHeight)) {
+            return 0;
         }
-        TransactionOutput vout = tx.getOutput(vIndex);
-        if (vout == null) {
-            logger.error("getTxConfirmationFromBlock: bad vout index");
-            return false;
+        int conf = blockHeight - loc.height + 1;
+        if ((channel == null) || !fundingTxid.equals(txHash)) {
+            logger.debug("getTxConfirmationFromIndex(): not channel conf={}", conf);
+            return conf;
         }
-        logger.debug("vout: " + vout.toString());
-        if (vout.getValue().value != amount) {
-            logger.error("getTxConfirmationFromBlock: bad amount");
-            return false;
+        // funding_tx: check vout and update channel
+        Sha256Hash minedHash = getStoredHashAtHeight(loc.height);
+        if (minedHash == null) {
+            return 0;
+        }
+        Block block = getBlock(minedHash);
+        if ((block == null) || (block.getTransactions() == null)) {
+            return 0;
+        }
+        int bIndex = 0;
+        for (Transaction tx : block.getTransactions()) {
+            if (tx.getTxId().equals(txHash)) {
+                if (!getTxConfirmationCheck(tx, vIndex, witnessProgram, amount)) {
+                    return 0;
+                }
+                logger.debug("getTxConfirmationFromIndex(): channel conf={}", conf);
+                return getTxConfirmationChannel(channel, fundingTxid, block, bIndex, blockHeight, conf - 1);
+            }
+            bIndex++;
+        }
+        return 0;
+    }
+
+
+    private boolean getTxConfirmationCheck(Transaction tx, int vIndex, byte[] witnessProgram, long amount) {
+        if (vIndex == -1) {
+            //no check
+            return true;
+        }
+        TransactionOutput vout = tx.getOutput(vIndex);
+        if (vout == null) {
+            logger.error("getTxConfirmationFromBlock: bad vout index");
+            return false;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("vout: {}", vout);
+            logger.debug("voutScript: {}", LogHex.of(vout.getScriptBytes()));
+        }
+        if (vout.getValue().value != amount) {
+            logger.error("getTxConfirmationFromBlock: bad amount");
+            return false;
         }
-        logger.debug("voutScript: " + Hex.toHexString(vout.getScriptBytes()));
         if (vout.getScriptBytes().length != 34) {
             logger.error("getTxConfirmationFromBlock: bad vout script length");
             return false;
@@ -767,12 +1397,27 @@ public class Ptarmigan {
     }
 
 
-    private int getTxConfirmationChannel(PtarmiganChannel channel, Block block, int blockIndex, int blockHeight, int conf) {
-        channel.setMinedBlockHash(block.getHash(), blockHeight - conf, blockIndex);
-        channel.setConfirmation(conf + 1);
-        mapChannel.put(Hex.toHexString(channel.peerNodeId()), channel);
-        logger.debug("getTxConfirmationFromBlock update: conf=" + channel.getConfirmation());
-        return channel.getConfirmation();
+    /** block走査の結果をchannelに反映 */
+    private int getTxConfirmationChannel(PtarmiganChannel channel, Sha256Hash fundingTxid, Block block, int blockIndex, int blockHeight, int conf) {
+        ReentrantLock lock = channelLocks.get(channel.peerNodeId());
+        lock.lock();
+        try {
+            if (isSameFunding(channel, fundingTxid)) {
+                channel.setMinedBlockHash(block.getHash(), blockHeight - conf, blockIndex);
+                channel.setConfirmation(conf + 1);
+                channels.put(channel);
+                logger.debug("getTxConfirmationFromBlock update: conf={}", channel.getConfirmation());
+            }
+        } finally {
+            lock.unlock();
+        }
+        return conf + 1;
+    }
+
+
+    /** 走査中にsetChannel()で別のfunding_txに変更されていないか */
+    private boolean isSameFunding(PtarmiganChannel channel, Sha256Hash fundingTxid) {
+        return (channel.getFundingOutpoint() != null) && channel.getFundingOutpoint().getHash().equals(fundingTxid);
     }
 
     /////////////////////////////////////////////////////////////////////////
@@ -783,22 +1428,33 @@ public class Ptarmigan {
      * @return  short_channel_id parameter
      */
     public ShortChannelParam getShortChannelParam(byte[] peerId) {
-        logger.debug("getShortChannelParam() peerId=" + Hex.toHexString(peerId));
-        PtarmiganChannel channel = mapChannel.get(Hex.toHexString(peerId));
-        ShortChannelParam param;
-        if (channel != null) {
-            param = channel.getShortChannelId();
-            if (param != null) {
-                param.minedHash = channel.getMinedBlockHash().getReversedBytes();
-                logger.debug("  short_channel_param=" + param.toString());
+        long startNs = System.nanoTime();
+        try {
+            logger.debug("getShortChannelParam() peerId={}", LogHex.of(peerId));
+            PtarmiganChannel channel = channels.get(peerId);
+            ShortChannelParam param;
+            if (channel != null) {
+                ReentrantLock lock = channelLocks.get(peerId);
+                lock.lock();
+                try {
+                    param = channel.getShortChannelId();
+                    if (param != null) {
+                        param.minedHash = channel.getMinedBlockHash().getReversedBytes();
+                        logger.debug("  short_channel_param={}", param);
+                    } else {
+                        logger.debug("  short_channel_param=null");
+                    }
+                } finally {
+                    lock.unlock();
+                }
             } else {
-                logger.debug("  short_channel_param=null");
+                logger.debug("  fail: no channel");
+                param = null;
             }
-        } else {
-            logger.debug("  fail: no channel");
-            param = null;
+            return param;
+        } finally {
+            metrics.api("getShortChannelParam", startNs);
         }
-        return param;
     }
 
 
@@ -848,46 +1504,125 @@ public class Ptarmigan {
      * @throws PtarmException   fail
      */
     public SearchOutPointResult searchOutPoint(int depth, byte[] txid, int vIndex) throws PtarmException {
-        TransactionOutPoint outPoint = new TransactionOutPoint(params, vIndex, Sha256Hash.wrapReversed(txid));
-        logger.debug("searchOutPoint(): outPoint=" + outPoint.toString() + ", depth=" + depth);
-        SearchOutPointResult result = new SearchOutPointResult();
+        long startNs = System.nanoTime();
+        try {
+            TransactionOutPoint outPoint = new TransactionOutPoint(params, vIndex, Sha256Hash.wrapReversed(txid));
+            SearchOutPointResult result = new SearchOutPointResult();
+            Transaction[] tx = new Transaction[1];
+            int[] height = new int[1];
+            if (!searchOutPointTx(depth, outPoint, tx, height)) {
+                return null;
+            }
+            if (tx[0] != null) {
+                result.tx = tx[0].bitcoinSerialize();
+                result.height = height[0];
+            }
+            return result;
+        } finally {
+            metrics.api("searchOutPoint", startNs);
+        }
+    }
+
+
+    /** search transaction from outpoint(direct buffer)
+     *
+     *  結果は result の position から [length(4, little endian)][transaction] で書き込む。
+     *
+     * @param depth     search block count
+     * @param txid      outpoint txid(32, little endian)
+     * @param vIndex    outpoint index
+     * @param result    (output)transaction
+     * @return  (>0)block height, (0)not found, (-1)fail or buffer overflow
+     * @throws PtarmException   fail
+     */
+    public int searchOutPoint(int depth, ByteBuffer txid, int vIndex, ByteBuffer result) throws PtarmException {
+        long startNs = System.nanoTime();
+        try {
+            TransactionOutPoint outPoint = new TransactionOutPoint(params, vIndex, readHash(txid));
+            Transaction[] tx = new Transaction[1];
+            int[] height = new int[1];
+            if (!searchOutPointTx(depth, outPoint, tx, height)) {
+                return -1;
+            }
+            if (tx[0] == null) {
+                return 0;
+            }
+            return writeTransaction(tx[0], result) ? height[0] : -1;
+        } finally {
+            metrics.api("searchOutPoint", startNs);
+        }
+    }
+
+
+    /** search transaction from outpoint
+     *
+     * @param depth     search block count
+     * @param outPoint  outpoint
+     * @param tx        (output)transaction(not found: null)
+     * @param height    (output)block height
+     * @return  false:fail get block
+     * @throws PtarmException   fail
+     */
+    private boolean searchOutPointTx(int depth, TransactionOutPoint outPoint, Transaction[] tx, int[] height) throws PtarmException {
+        logger.debug("searchOutPoint(): outPoint={}, depth={}", outPoint, depth);
         Sha256Hash blockHash;
+        Sha256Hash spentHash = null;
         PtarmiganChannel channel = getChannelFromFundingTx(outPoint.getHash());
-        if ( (channel != null)  &&
-                (checkUnspentChannel(channel, outPoint) == CHECKUNSPENT_SPENT) &&
-                (!channel.getFundingTxSpentBlockHash().equals(Sha256Hash.ZERO_HASH)) ) {
-            blockHash = channel.getFundingTxSpentBlockHash();
+        if (channel != null) {
+            //reorg(invalidate)と競合しないよう、lock中にsnapshotを取る
+            ReentrantLock lock = channelLocks.get(channel.peerNodeId());
+            lock.lock();
+            try {
+                if (checkUnspentChannel(channel, outPoint) == CHECKUNSPENT_SPENT) {
+                    spentHash = channel.getFundingTxSpentBlockHash();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        if ((spentHash != null) && !spentHash.equals(Sha256Hash.ZERO_HASH)) {
+            blockHash = spentHash;
             depth = 1;
             logger.debug("searchOutPoint(): use spentHash");
         } else {
             blockHash = wak.wallet().getLastBlockSeenHash();
             if (blockHash == null) {
                 logger.error("  searchOutPoint(): fail no blockhash");
-                return result;
+                return true;
             }
         }
-        logger.debug("searchOutPoint(): blockhash=" + blockHash.toString() + ", depth=" + depth);
+        logger.debug("searchOutPoint(): blockhash={}, depth={}", blockHash, depth);
         int blockcount = wak.wallet().getLastBlockSeenHeight();
+        int walkCount = 0;
         try {
+            if (searchOutPointFromIndex(outPoint, blockcount - depth + 1, tx, height)) {
+                return true;
+            }
             for (int i = 0; i < depth; i++) {
+                if (depth - i > 1) {
+                    prefetchBlocks(blockHash, null);
+                }
                 Block blk = getBlock(blockHash);
                 if (blk == null || blk.getTransactions() == null) {
                     logger.error("searchOutPoint(): fail get block");
-                    return null;
+                    return false;
+                }
+                walkCount++;
+                if (logger.isDebugEnabled()) {
+                    logger.debug("searchOutPoint({}):   blk={}", blockcount, blk.getHash());
                 }
-                logger.debug("searchOutPoint(" + blockcount + "):   blk=" + blk.getHashAsString());
-                for (Transaction tx : blk.getTransactions()) {
-                    if (outPoint.equals(tx.getInput(0).getOutpoint())) {
-                        result.tx = tx.bitcoinSerialize();
-                        result.height = blockcount;
-                        logger.debug("searchOutPoint(): result=" + tx.getTxId() + ", height=" + result.height);
+                for (Transaction tx0 : blk.getTransactions()) {
+                    if (outPoint.equals(tx0.getInput(0).getOutpoint())) {
+                        tx[0] = tx0;
+                        height[0] = blockcount;
+                        logger.debug("searchOutPoint(): result={}, height={}", tx0.getTxId(), height[0]);
                         break;
                     }
                 }
-                if (result.tx != null) {
+                if (tx[0] != null) {
                     break;
                 }
-                blockHash = blk.getPrevBlockHash();
+                blockHash = getPrevHash(blockHash, blk);
                 blockcount--;
             }
         } catch (PtarmException e) {
@@ -895,8 +1630,43 @@ public class Ptarmigan {
             throw e;
         } catch (Exception e) {
             logger.error("searchOutPoint(): " + getStackTrace(e));
+        } finally {
+            walkSearchOutPoint.record(walkCount);
         }
-        return result;
+        return true;
+    }
+
+
+    /** search transaction from spent index
+     *
+     * @param outPoint  outpoint
+     * @param minHeight lowest block height to search
+     * @param tx        (output)transaction
+     * @param height    (output)block height
+     * @return  true:found
+     * @throws PtarmException   fail
+     */
+    private boolean searchOutPointFromIndex(TransactionOutPoint outPoint, int minHeight, Transaction[] tx, int[] height) throws PtarmException {
+        if (spentIndex == null) {
+            return false;
+        }
+        SpentIndex.Spent spent = getSpent(outPoint);
+        if ((spent == null) || (spent.height <= 0) || (spent.height < minHeight)) {
+            return false;
+        }
+        Block blk = getBlock(spent.blockHash);
+        if (blk == null || blk.getTransactions() == null) {
+            return false;
+        }
+        for (Transaction tx0 : blk.getTransactions()) {
+            if (tx0.getTxId().equals(spent.txid) && outPoint.equals(tx0.getInput(0).getOutpoint())) {
+                tx[0] = tx0;
+                height[0] = spent.height;
+                logger.debug("searchOutPoint(): result(index)={}, height={}", tx0.getTxId(), height[0]);
+                return true;
+            }
+        }
+        return false;
     }
 
 
@@ -910,8 +1680,78 @@ public class Ptarmigan {
      * @throws PtarmException   fail
      */
     public List<byte[]> searchVout(int depth, List<byte[]> vOut) throws PtarmException {
-        logger.debug("searchVout(): depth=" + depth + ", vOut.size=" + vOut.size());
-        List<byte[]> txs = new ArrayList<>();
+        long startNs = System.nanoTime();
+        try {
+            List<byte[]> txs = new ArrayList<>();
+            searchVoutTx(depth, vOut, tx -> {
+                txs.add(tx.bitcoinSerialize());
+                return true;
+            });
+            logger.debug("  txs={}", txs.size());
+            return txs;
+        } finally {
+            metrics.api("searchVout", startNs);
+        }
+    }
+
+
+    /** search transaction from vout(direct buffer)
+     *
+     *  vOut:   [length(1)][scriptPubKey] * n
+     *  result: [length(4, little endian)][transaction] * count を position から書き込む。
+     *  bufferが足りない場合は -1 を返し、resultのpositionは呼出し時のまま(書きかけのrecordは無効)。
+     *
+     * @param depth     search block count
+     * @param vOut      target scriptPubKeys
+     * @param result    (output)transactions
+     * @return  transaction count(-1:buffer overflow)
+     * @throws PtarmException   fail
+     */
+    public int searchVout(int depth, ByteBuffer vOut, ByteBuffer result) throws PtarmException {
+        long startNs = System.nanoTime();
+        try {
+            List<byte[]> scripts = new ArrayList<>();
+            ByteBuffer in = vOut.duplicate();
+            while (in.hasRemaining()) {
+                byte[] script = new byte[in.get() & 0xff];
+                in.get(script);
+                scripts.add(script);
+            }
+            int start = result.position();
+            int[] count = new int[] { 0 };
+            boolean[] overflow = new boolean[] { false };
+            searchVoutTx(depth, scripts, tx -> {
+                if (!writeTransaction(tx, result)) {
+                    overflow[0] = true;
+                    return false;
+                }
+                count[0]++;
+                return true;
+            });
+            logger.debug("  txs={}", count[0]);
+            if (overflow[0]) {
+                result.position(start);
+                return -1;
+            }
+            return count[0];
+        } finally {
+            metrics.api("searchVout", startNs);
+        }
+    }
+
+
+    /** searchVout(): 検出したtxの受け取り */
+    private interface TxVisitor {
+        /**
+         * @param tx    transaction
+         * @return  false:検索中断
+         */
+        boolean visit(Transaction tx);
+    }
+
+
+    private void searchVoutTx(int depth, List<byte[]> vOut, TxVisitor visitor) throws PtarmException {
+        logger.debug("searchVout(): depth={}, vOut.size={}", depth, vOut.size());
         Sha256Hash blockHash = wak.wallet().getLastBlockSeenHash();
         for (int i = 0; i < depth; i++) {
             Block blk = getBlock(blockHash);
@@ -924,15 +1764,15 @@ public class Ptarmigan {
                 byte[] vout_0 = output.getScriptBytes();
                 for (byte[] vout : vOut) {
                     if (Arrays.equals(vout, vout_0)) {
-                        txs.add(tx.bitcoinSerialize());
+                        if (!visitor.visit(tx)) {
+                            return;
+                        }
                         break;
                     }
                 }
             }
-            blockHash = blk.getPrevBlockHash();
+            blockHash = getPrevHash(blockHash, blk);
         }
-        logger.debug("  txs=" + txs.size());
-        return txs;
     }
 
 
@@ -945,17 +1785,57 @@ public class Ptarmigan {
      * @return  transaction or null(fail)
      */
     public byte[] signRawTx(long amount, byte[] scriptPubKey) {
+        long startNs = System.nanoTime();
         try {
-            long feeRatePerKb = estimateFee();
-            logger.debug("signRawTx(): amount=" + amount);
-            logger.debug("signRawTx(): feeRatePerKb=" + feeRatePerKb);
+            Transaction tx = signRawTxTransaction(amount, scriptPubKey);
+            return (tx != null) ? tx.bitcoinSerialize() : null;
+        } finally {
+            metrics.api("signRawTx", startNs);
+        }
+    }
+
+
+    /** create signed transaction(direct buffer)
+     *
+     * @param amount        amount
+     * @param scriptPubKey  send scriptPubKey
+     * @param result        (output)transaction(positionから書き込む)
+     * @return  transaction length(-1:fail or buffer overflow)
+     */
+    public int signRawTx(long amount, ByteBuffer scriptPubKey, ByteBuffer result) {
+        long startNs = System.nanoTime();
+        try {
+            Transaction tx = signRawTxTransaction(amount, readBytes(scriptPubKey));
+            if (tx == null) {
+                return -1;
+            }
+            int start = result.position();
+            try {
+                tx.bitcoinSerialize(new ByteBufferOutputStream(result));
+                return result.position() - start;
+            } catch (Exception e) {
+                logger.error("signRawTx(): " + e.getMessage());
+                result.position(start);
+            }
+            return -1;
+        } finally {
+            metrics.api("signRawTx", startNs);
+        }
+    }
+
+
+    private Transaction signRawTxTransaction(long amount, byte[] scriptPubKey) {
+        try {
+            long feeRatePerKb = estimateFeeInternal();
+            logger.debug("signRawTx(): amount={}", amount);
+            logger.debug("signRawTx(): feeRatePerKb={}", feeRatePerKb);
             SegwitAddress address = SegwitAddress.fromHash(params, scriptPubKey);
             Coin coin = Coin.valueOf(amount);
 
             SendRequest req = SendRequest.to(address, coin);
             req.feePerKb = Coin.valueOf(feeRatePerKb);
             wak.wallet().completeTx(req);
-            return req.tx.bitcoinSerialize();
+            return req.tx;
 
         } catch (Exception e) {
             logger.error("signRawTx(): " + getStackTrace(e));
@@ -973,54 +1853,179 @@ public class Ptarmigan {
      * @throws PtarmException   fail
      */
     public byte[] sendRawTx(byte[] txData) throws PtarmException {
-        logger.debug("sendRawTx(): " + Hex.toHexString(txData));
-        Transaction tx = new Transaction(params, txData);
+        long startNs = System.nanoTime();
         try {
-            byte[] result = null;
-            SendRawTxResult retSendTx = new SendRawTxResult();
-            for (int lp = 0; lp < RETRY_SENDRAWTX; lp++) {
-                mapSendTx.put(tx.getTxId(), retSendTx);
-
-                Transaction txret = wak.peerGroup().broadcastTransaction(tx).future().get(TIMEOUT_SENDTX, TimeUnit.MILLISECONDS);
-                logger.debug("sendRawTx(): txid=" + txret.getTxId().toString());
-                if (!txret.getTxId().equals(tx.getTxId())) {
-                    logger.error("sendRawTx(): txid not same");
+            logger.debug("sendRawTx(): {}", LogHex.of(txData));
+            Transaction tx = new Transaction(params, txData);
+            try {
+                int status = broadcastTx(tx).get(
+                        RETRY_SENDRAWTX * (TIMEOUT_SENDTX + TIMEOUT_REJECT), TimeUnit.MILLISECONDS);
+                switch (status) {
+                case SENDTX_OK:
+                    logger.info("sendRawTx: OK");
+                    return tx.getTxId().getReversedBytes();
+                case SENDTX_REJECT:
+                    logger.error("sendRawTx: fail reject");
+                    return null;
+                default:
+                    logger.error("sendRawTx: fail status=" + status);
                     break;
                 }
+            } catch (Exception e) {
+                logger.error("sendRawTx: " + getStackTrace(e));
+            }
+            if (isBroadcasted(tx.getTxId())) {
+                logger.debug("sendRawTx(): broadcasted txid={}", tx.getTxId());
+                return tx.getTxId().getReversedBytes();
+            }
 
-                retSendTx.lock();
-                switch (retSendTx.result) {
-                    case NONE:
-                        logger.info("sendRawTx: OK");
-                        result = txret.getTxId().getReversedBytes();
-                        lp = RETRY_SENDRAWTX;
-                        break;
-                    case RETRY:
-                        logger.error("sendRawTx: fail retry=" + lp);
-                        result = null;
-                        break;
-                    case REJECT:
-                        logger.error("sendRawTx: fail reject");
-                        result = null;
-                        lp = RETRY_SENDRAWTX;
-                        break;
+            logger.error("sendRawTx(): fail");
+            return null;
+        } finally {
+            metrics.api("sendRawTx", startNs);
+        }
+    }
+
+
+    /** send raw transaction(direct buffer)
+     *
+     * @param txData    raw transaction(position～limit)
+     * @param txid      (output)txid(32, little endian)
+     * @return  true:success
+     * @throws PtarmException   fail
+     */
+    public boolean sendRawTx(ByteBuffer txData, ByteBuffer txid) throws PtarmException {
+        byte[] result = sendRawTx(readBytes(txData));
+        if (result == null) {
+            return false;
+        }
+        txid.put(result);
+        return true;
+    }
+
+
+    /** send raw transactions(non-blocking)
+     *
+     *  broadcastを開始してすぐに戻る。
+     *  結果はgetSendRawTxStatus()で取得するか、setSendRawTxCallback()の通知で受け取る。
+     *
+     * @param txDataList    raw transactions
+     * @return  txid(same order as txDataList, null:parse error)
+     */
+    public List<byte[]> sendRawTxAsync(List<byte[]> txDataList) {
+        long startNs = System.nanoTime();
+        try {
+            logger.debug("sendRawTxAsync(): count={}", txDataList.size());
+            List<byte[]> txids = new ArrayList<>(txDataList.size());
+            for (byte[] txData : txDataList) {
+                try {
+                    Transaction tx = new Transaction(params, txData);
+                    broadcastTx(tx);
+                    txids.add(tx.getTxId().getReversedBytes());
+                } catch (Exception e) {
+                    logger.error("sendRawTxAsync: " + getStackTrace(e));
+                    txids.add(null);
                 }
-                mapSendTx.remove(txret.getTxId());
             }
+            return txids;
+        } finally {
+            metrics.api("sendRawTxAsync", startNs);
+        }
+    }
 
-            return result;
-        } catch (Exception e) {
-            logger.error("sendRawTx: " + getStackTrace(e));
+
+    /** sendRawTxAsync()の処理状態
+     *
+     * @param txid  txid
+     * @return  SENDTX_xxx
+     */
+    public int getSendRawTxStatus(byte[] txid) {
+        long startNs = System.nanoTime();
+        try {
+            Sha256Hash txHash = Sha256Hash.wrapReversed(txid);
+            int state = (broadcastQueue != null) ? broadcastQueue.getState(txHash) : SENDTX_UNKNOWN;
+            if (state == SENDTX_CONFIRMED) {
+                return state;
+            }
+            int status = txBroadcaster.getStatus(txHash);
+            return (status != SENDTX_UNKNOWN) ? status : state;
+        } finally {
+            metrics.api("getSendRawTxStatus", startNs);
         }
-        //mempool check
-        Transaction txl = getPeerMempoolTransaction(tx.getTxId());
-        if (txl != null) {
-            logger.debug("sendRawTx(): mempool txid=" + txl.getTxId().toString());
-            return txl.getTxId().getReversedBytes();
+    }
+
+
+    /** broadcast開始(送信queueに登録し、confirmされるまで再送する)
+     *
+     * @param tx    transaction
+     * @return  SENDTX_OK / SENDTX_REJECT / SENDTX_FAIL
+     */
+    private ListenableFuture<Integer> broadcastTx(Transaction tx) {
+        if (broadcastQueue != null) {
+            broadcastQueue.add(tx);
+        }
+        ListenableFuture<Integer> future = txBroadcaster.broadcast(tx);
+        Futures.addCallback(future, new FutureCallback<Integer>() {
+            @Override
+            public void onSuccess(Integer status) {
+                if (broadcastQueue != null) {
+                    broadcastQueue.setStatus(tx.getTxId(), status);
+                }
+                metrics.counter(Metrics.BROADCAST, "status=\"" + sendRawTxStatusString(status) + "\"").inc();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                logger.error("broadcastTx: " + t.getMessage());
+            }
+        }, MoreExecutors.directExecutor());
+        return future;
+    }
+
+
+    /** [event]confirmされていない送信txを再broadcast
+     *
+     */
+    private void rebroadcastUnconfirmed() {
+        if (broadcastQueue == null) {
+            return;
         }
+        for (Transaction tx : broadcastQueue.getUnconfirmed()) {
+            if (txBroadcaster.getStatus(tx.getTxId()) != SENDTX_PENDING) {
+                logger.debug("rebroadcast: {}", tx.getTxId());
+                broadcastTx(tx);
+            }
+        }
+    }
 
-        logger.error("sendRawTx(): fail");
-        return null;
+
+    /** 送信queueの状態からbroadcast済みか判定(mempoolに無い場合はpeerに問い合わせる)
+     *
+     * @param txHash    txid
+     * @return  true:broadcasted
+     * @throws PtarmException   fail
+     */
+    private boolean isBroadcasted(Sha256Hash txHash) throws PtarmException {
+        int state = (broadcastQueue != null) ? broadcastQueue.getState(txHash) : SENDTX_UNKNOWN;
+        if ((state == SENDTX_CONFIRMED) || (state == SENDTX_OK)) {
+            return true;
+        }
+        //mempool check
+        return getPeerMempoolTransaction(txHash) != null;
+    }
+
+
+    /** sendRawTx()/sendRawTxAsync()の結果通知先
+     *
+     * @param callback  callback(null:通知しない)
+     */
+    public void setSendRawTxCallback(SendRawTxCallback callback) {
+        long startNs = System.nanoTime();
+        try {
+            txBroadcaster.setCallback(callback);
+        } finally {
+            metrics.api("setSendRawTxCallback", startNs);
+        }
     }
 
 
@@ -1034,74 +2039,90 @@ public class Ptarmigan {
      * @throws PtarmException   fail
      */
     public boolean checkBroadcast(byte[] peerId, byte[] txid) throws PtarmException {
-        Sha256Hash txHash = Sha256Hash.wrapReversed(txid);
+        long startNs = System.nanoTime();
+        try {
+            Sha256Hash txHash = Sha256Hash.wrapReversed(txid);
 
-        logger.debug("checkBroadcast(): " + txHash.toString());
-        logger.debug("    peerId=" + Hex.toHexString(peerId));
+            logger.debug("checkBroadcast(): {}", txHash);
+            logger.debug("    peerId={}", LogHex.of(peerId));
 
-        if (!mapChannel.containsKey(Hex.toHexString(peerId))) {
-            logger.error("    unknown peer");
-            return false;
-        }
-        if (txCache.containsKey(txHash)) {
-            logger.debug("  broadcasted(cache)");
-            return true;
-        }
+            PtarmiganChannel channel = channels.get(peerId);
+            if (channel == null) {
+                logger.error("    unknown peer");
+                return false;
+            }
+            int state = (broadcastQueue != null) ? broadcastQueue.getState(txHash) : SENDTX_UNKNOWN;
+            if ((state == SENDTX_CONFIRMED) || (state == SENDTX_OK)) {
+                logger.debug("  broadcasted(queue): {}", state);
+                return true;
+            }
+            if (txCache.containsKey(txHash)) {
+                logger.debug("  broadcasted(cache)");
+                return true;
+            }
+            //indexはtxid先頭64bitの一致なので、blockのtxidで確認する
+            TxIndex.Location loc = txIndex.get(txHash);
+            if ((loc != null) && (getTransactionFromIndex(txHash, loc) != null)) {
+                logger.debug("  broadcasted(index)");
+                return true;
+            }
 
-        PtarmiganChannel channel = mapChannel.get(Hex.toHexString(peerId));
-        if (Sha256Hash.ZERO_HASH.equals(channel.getMinedBlockHash())) {
-            logger.error("checkBroadcast(): minedHash=ZERO");
-            return false;
-        }
-        Sha256Hash blockHash = wak.wallet().getLastBlockSeenHash();
-        if (blockHash == null) {
-            return false;
-        }
-        try {
-            while (true) {
-                Block block = getBlock(blockHash);
-                if (block == null) {
-                    logger.error("checkBroadcast(): fail block");
-                    break;
-                }
-                List<Transaction> txs = block.getTransactions();
-                if (txs == null) {
-                    logger.error("checkBroadcast(): fail block txs");
-                    break;
-                }
-                for (Transaction tx : txs) {
-                    if (tx.getTxId().equals(txHash)) {
-                        logger.debug("  broadcasted(BlockCache)");
-                        return true;
+            if (Sha256Hash.ZERO_HASH.equals(channel.getMinedBlockHash())) {
+                logger.error("checkBroadcast(): minedHash=ZERO");
+                return false;
+            }
+            Sha256Hash blockHash = wak.wallet().getLastBlockSeenHash();
+            if (blockHash == null) {
+                return false;
+            }
+            try {
+                while (true) {
+                    Block block = getBlock(blockHash);
+                    if (block == null) {
+                        logger.error("checkBroadcast(): fail block");
+                        break;
+                    }
+                    List<Transaction> txs = block.getTransactions();
+                    if (txs == null) {
+                        logger.error("checkBroadcast(): fail block txs");
+                        break;
+                    }
+                    for (Transaction tx : txs) {
+                        if (tx.getTxId().equals(txHash)) {
+                            logger.debug("  broadcasted(BlockCache)");
+                            return true;
+                        }
+                    }
+                    if (block.getHash().equals(channel.getMinedBlockHash())) {
+                        logger.debug("  not broadcasted(mined block)");
+                        return false;
                     }
-                }
-                if (block.getHash().equals(channel.getMinedBlockHash())) {
-                    logger.debug("  not broadcasted(mined block)");
-                    return false;
-                }
 
-                if (blockHash.equals(creationHash)) {
-                    logger.debug(" stop by creationHash");
-                    break;
-                }
-                if (blockHash.equals(channel.getMinedBlockHash())) {
-                    logger.debug(" stop by minedHash");
-                    break;
+                    if (blockHash.equals(creationHash)) {
+                        logger.debug(" stop by creationHash");
+                        break;
+                    }
+                    if (blockHash.equals(channel.getMinedBlockHash())) {
+                        logger.debug(" stop by minedHash");
+                        break;
+                    }
+                    // ひとつ前のブロック
+                    blockHash = getPrevHash(blockHash, block);
                 }
-                // ひとつ前のブロック
-                blockHash = block.getPrevBlockHash();
+
+            } catch (PtarmException e) {
+                logger.error("checkBroadcast rethrow: " + getStackTrace(e));
+                //throw e;
+            } catch (Exception e) {
+                logger.error("checkBroadcast: " + getStackTrace(e));
             }
 
-        } catch (PtarmException e) {
-            logger.error("checkBroadcast rethrow: " + getStackTrace(e));
-            //throw e;
-        } catch (Exception e) {
-            logger.error("checkBroadcast: " + getStackTrace(e));
+            Transaction tx = getTransaction(txHash, channel.getMinedBlockHash());
+            logger.debug("checkBroadcast:  broadcast(get txs)={}", (tx != null) ? "YES" : "NO");
+            return tx != null;
+        } finally {
+            metrics.api("checkBroadcast", startNs);
         }
-
-        Transaction tx = getTransaction(txHash, channel.getMinedBlockHash());
-        logger.debug("checkBroadcast:  broadcast(get txs)=" + ((tx != null) ? "YES" : "NO"));
-        return tx != null;
     }
 
 
@@ -1115,54 +2136,234 @@ public class Ptarmigan {
      * @return  CHECKUNSPENT_xxx
      */
     public int checkUnspent(byte[] peerId, byte[] txid, int vIndex) {
+        long startNs = System.nanoTime();
+        try {
+            return checkUnspentInternal(peerId, txid, vIndex);
+        } finally {
+            metrics.api("checkUnspent", startNs);
+        }
+    }
+
+
+    /** checkUnspent()の本体(API latencyを記録しない) */
+    private int checkUnspentInternal(byte[] peerId, byte[] txid, int vIndex) {
         int chk_un;
         TransactionOutPoint outPoint = new TransactionOutPoint(params, vIndex, Sha256Hash.wrapReversed(txid));
-        logger.debug("checkUnspent(): outPoint=" + outPoint.toString());
+        logger.debug("checkUnspent(): outPoint={}", outPoint);
         boolean isFundingTx = false;
         PtarmiganChannel channel = null;
 
         if (peerId != null) {
-            logger.debug("    peerId=" + Hex.toHexString(peerId));
-            if (!mapChannel.containsKey(Hex.toHexString(peerId))) {
+            logger.debug("    peerId={}", LogHex.of(peerId));
+            channel = channels.get(peerId);
+            if (channel == null) {
                 logger.debug("    unknown peer");
                 return CHECKUNSPENT_FAIL;
             }
-            channel = mapChannel.get(Hex.toHexString(peerId));
-            if (channel != null) {
-                if (Sha256Hash.ZERO_HASH.equals(channel.getMinedBlockHash())) {
-                    logger.error("checkUnspent(): minedHash=ZERO");
-                    return CHECKUNSPENT_FAIL;
+            ReentrantLock lock = channelLocks.get(peerId);
+            lock.lock();
+            try {
+                if (Sha256Hash.ZERO_HASH.equals(channel.getMinedBlockHash())) {
+                    logger.error("checkUnspent(): minedHash=ZERO");
+                    return CHECKUNSPENT_FAIL;
+                }
+                isFundingTx = channel.isFundingTx(outPoint);
+                chk_un = checkUnspentChannel(channel, outPoint);
+                if (chk_un != CHECKUNSPENT_FAIL) {
+                    logger.debug("checkUnspent(): from channel={}", checkUnspentString(chk_un));
+                    return chk_un;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        logger.debug("  check ALL channels");
+        PtarmiganChannel ch = channels.getByFundingOutpoint(outPoint);
+        if (ch == null) {
+            ch = channels.getByCommitTxid(outPoint.getHash());
+        }
+        if (ch != null) {
+            ReentrantLock lock = channelLocks.get(ch.peerNodeId());
+            lock.lock();
+            try {
+                chk_un = checkUnspentChannel(ch, outPoint);
+            } finally {
+                lock.unlock();
+            }
+            if (chk_un != CHECKUNSPENT_FAIL) {
+                logger.debug("checkUnspent(): from ALL channel={}", checkUnspentString(chk_un));
+                return chk_un;
+            }
+        }
+
+        Sha256Hash[] spentBlock = new Sha256Hash[] { null };
+        SpentIndex.Spent spent = (spentIndex != null) ? getSpent(outPoint) : null;
+        if (spent != null) {
+            logger.debug("checkUnspent(): from spent index: {}", spent);
+            chk_un = CHECKUNSPENT_SPENT;
+            spentBlock[0] = spent.blockHash;
+        } else {
+            // search until wallet creation time
+            //block走査中はlockしない(funding_txの結果は走査後にlockして反映する)
+            logger.debug("  check from Block");
+            chk_un = checkUnspentFromBlock(null, outPoint, null, null, spentBlock, null);
+        }
+        if (isFundingTx) {
+            ReentrantLock lock = channelLocks.get(peerId);
+            lock.lock();
+            try {
+                if (channel.isFundingTx(outPoint)) {
+                    channel.setFundingTxSpentValue(chk_un, spentBlock[0]);
+                    channels.put(channel);
+                }
+            } finally {
+                lock.unlock();
+            }
+            updateBlockCachePin();
+        }
+        return chk_un;
+    }
+
+
+    /////////////////////////////////////////////////////////////////////////
+
+    /** check whether unspent or not(batch)
+     *
+     *  packed:
+     *      peerIds:   [peer node_id(33)] * n   (全て0のentryはpeerId=null扱い)
+     *      outPoints: [txid(32, little endian)][index(4, little endian)] * n
+     *
+     * @param peerIds   packed peer node_id(null可: 全てpeerId=null)
+     * @param outPoints packed outpoints
+     * @return  CHECKUNSPENT_xxx(same order as outPoints)
+     */
+    public int[] checkUnspentBatch(@Nullable byte[] peerIds, byte[] outPoints) {
+        long startNs = System.nanoTime();
+        try {
+            int count = outPoints.length / OUTPOINT_LEN;
+            logger.debug("checkUnspentBatch(): count={}", count);
+            int[] results = new int[count];
+            byte[] txid = new byte[Sha256Hash.LENGTH];
+            for (int lp = 0; lp < count; lp++) {
+                System.arraycopy(outPoints, lp * OUTPOINT_LEN, txid, 0, Sha256Hash.LENGTH);
+                int vIndex = (int)Utils.readUint32(outPoints, lp * OUTPOINT_LEN + Sha256Hash.LENGTH);
+                results[lp] = checkUnspentInternal(unpackPeerId(peerIds, lp), txid, vIndex);
+            }
+            return results;
+        } finally {
+            metrics.api("checkUnspentBatch", startNs);
+        }
+    }
+
+
+    /** get confirmation(batch)
+     *
+     *  packed:
+     *      txids:           [txid(32, little endian)] * n
+     *      witnessPrograms: [witnessProgram(34)] * n
+     *
+     * @param txids             packed txids
+     * @param vIndexes          funding_tx:index, -1:not funding_tx(null可: 全て-1)
+     * @param witnessPrograms   packed witnessProgram(null可: vIndexes=null時)
+     * @param amounts           funding_tx amount(null可: vIndexes=null時)
+     * @return  confirmation(same order as txids, 0:error or fail)
+     * @throws PtarmException 引数の長さ不一致, または全entryで peer not found count > PEER_FAIL_COUNT_MAX
+     */
+    public int[] getTxConfirmationBatch(
+            byte[] txids, @Nullable int[] vIndexes,
+            @Nullable byte[] witnessPrograms, @Nullable long[] amounts) throws PtarmException {
+        long startNs = System.nanoTime();
+        try {
+            int count = txids.length / Sha256Hash.LENGTH;
+            logger.debug("getTxConfirmationBatch(): count={}", count);
+            if ((txids.length % Sha256Hash.LENGTH != 0) ||
+                    ((vIndexes != null) && (vIndexes.length != count)) ||
+                    ((amounts != null) && (amounts.length != count)) ||
+                    ((witnessPrograms != null) && (witnessPrograms.length != count * WITNESSPROGRAM_LEN)) ||
+                    ((vIndexes != null) && ((witnessPrograms == null) || (amounts == null)))) {
+                throw new PtarmException("getTxConfirmationBatch: length mismatch", logger);
+            }
+            int[] results = new int[count];
+            byte[] txid = new byte[Sha256Hash.LENGTH];
+            byte[] witnessProgram = new byte[WITNESSPROGRAM_LEN];
+            PtarmException lastError = null;
+            int errorCount = 0;
+            for (int lp = 0; lp < count; lp++) {
+                System.arraycopy(txids, lp * Sha256Hash.LENGTH, txid, 0, Sha256Hash.LENGTH);
+                int vIndex = (vIndexes != null) ? vIndexes[lp] : -1;
+                long amount = (amounts != null) ? amounts[lp] : 0;
+                if (vIndex != -1) {
+                    System.arraycopy(witnessPrograms, lp * WITNESSPROGRAM_LEN, witnessProgram, 0, WITNESSPROGRAM_LEN);
                 }
-                isFundingTx = channel.isFundingTx(outPoint);
-                chk_un = checkUnspentChannel(channel, outPoint);
-                if (chk_un != CHECKUNSPENT_FAIL) {
-                    logger.debug("checkUnspent(): from channel=" + checkUnspentString(chk_un));
-                    return chk_un;
+                try {
+                    results[lp] = getTxConfirmationInternal(txid, vIndex, witnessProgram, amount);
+                } catch (PtarmException e) {
+                    //このentryだけ失敗扱い
+                    results[lp] = 0;
+                    lastError = e;
+                    errorCount++;
                 }
             }
+            if ((count > 0) && (errorCount == count)) {
+                throw lastError;
+            }
+            return results;
+        } finally {
+            metrics.api("getTxConfirmationBatch", startNs);
         }
+    }
 
-        logger.debug("  check ALL channels");
-        for (PtarmiganChannel ch : mapChannel.values()) {
-            if (ch == null) {
-                continue;
-            }
-            chk_un = checkUnspentChannel(ch, outPoint);
-            if (chk_un != CHECKUNSPENT_FAIL) {
-                logger.debug("checkUnspent(): from ALL channel=" + checkUnspentString(chk_un));
-                return chk_un;
+
+    /** get short_channel_id(batch)
+     *
+     * @param peerIds   packed peer node_id([node_id(33)] * n)
+     * @return  short_channel_id(same order as peerIds, 0:not available)
+     */
+    public long[] getShortChannelIdBatch(byte[] peerIds) {
+        long startNs = System.nanoTime();
+        try {
+            int count = peerIds.length / PEERID_LEN;
+            logger.debug("getShortChannelIdBatch(): count={}", count);
+            long[] results = new long[count];
+            for (int lp = 0; lp < count; lp++) {
+                PtarmiganChannel channel = channels.get(unpackPeerId(peerIds, lp));
+                if (channel == null) {
+                    continue;
+                }
+                ReentrantLock lock = channelLocks.get(channel.peerNodeId());
+                lock.lock();
+                try {
+                    ShortChannelParam param = channel.getShortChannelId();
+                    results[lp] = (param != null) ? param.toShortChannelId() : 0;
+                } finally {
+                    lock.unlock();
+                }
             }
+            return results;
+        } finally {
+            metrics.api("getShortChannelIdBatch", startNs);
         }
+    }
 
-        // search until wallet creation time
-        logger.debug("  check from Block");
-        Sha256Hash[] spentBlock = new Sha256Hash[] { null };
-        chk_un = checkUnspentFromBlock(null, outPoint, null, null, spentBlock, null);
-        if (isFundingTx) {
-            channel.setFundingTxSpentValue(chk_un, spentBlock[0]);
-            mapChannel.put(Hex.toHexString(channel.peerNodeId()), channel);
+
+    /** packed peer node_idから1つ取り出す
+     *
+     * @param peerIds   packed peer node_id(null可)
+     * @param index     index
+     * @return  peer node_id(null or 全て0の場合はnull)
+     */
+    private static byte[] unpackPeerId(@Nullable byte[] peerIds, int index) {
+        if (peerIds == null) {
+            return null;
         }
-        return chk_un;
+        byte[] peerId = Arrays.copyOfRange(peerIds, index * PEERID_LEN, (index + 1) * PEERID_LEN);
+        for (byte b : peerId) {
+            if (b != 0) {
+                return peerId;
+            }
+        }
+        return null;
     }
 
 
@@ -1175,13 +2376,13 @@ public class Ptarmigan {
     private int checkUnspentChannel(PtarmiganChannel channel, TransactionOutPoint outPoint) {
         if ((channel.getFundingOutpoint() != null) && channel.getFundingOutpoint().equals(outPoint)) {
             // funding_tx
-            logger.debug("checkUnspentChannel(): funding unspent(cached)=" + checkUnspentString(channel.getFundingTxUnspent()));
+            logger.debug("checkUnspentChannel(): funding unspent(cached)={}", checkUnspentString(channel.getFundingTxUnspent()));
             return channel.getFundingTxUnspent();
         } else {
             // commit_tx
             PtarmiganChannel.CommitTxid commit_tx = channel.getCommitTxid((int)outPoint.getIndex());
             if ((commit_tx != null) && (commit_tx.txid != null)) {
-                logger.debug("checkUnspentChannel(): commit_tx unspent(cached)=" + checkUnspentString(commit_tx.unspent));
+                logger.debug("checkUnspentChannel(): commit_tx unspent(cached)={}", checkUnspentString(commit_tx.unspent));
                 return commit_tx.unspent;
             }
         }
@@ -1189,7 +2390,8 @@ public class Ptarmigan {
     }
 
 
-    private int checkUnspentFromBlock(
+    //package private: ChainWalkBenchmarkからも呼び出す
+    int checkUnspentFromBlock(
             PtarmiganChannel channel,
             TransactionOutPoint outPoint,
             Sha256Hash blockHash,
@@ -1220,14 +2422,14 @@ public class Ptarmigan {
             if ((channel != null) && (channel.getShortChannelId() != null)) {
                 confHeight = channel.getShortChannelId().height + channel.getConfirmation() - 1;
                 if (confHeight > 0) {
-                    logger.debug("height: short_channel_id=" +
-                            channel.getShortChannelId().height +
-                            ", conf=" + channel.getConfirmation() +
-                            ", confHeight=" + confHeight);
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("height: short_channel_id={}, conf={}, confHeight={}",
+                                channel.getShortChannelId().height, channel.getConfirmation(), confHeight);
+                    }
                     depth = wak.wallet().getLastBlockSeenHeight() - confHeight + OFFSET_CHECK_UNSPENT;
                 }
             }
-            logger.debug("checkUnspentFromBlock: blockHash=" + blockHash.toString());
+            logger.debug("checkUnspentFromBlock: blockHash={}", blockHash);
             loopDepth[0] = depth;
         }
         return checkUnspentFromBlock(channel, outPoint, blockHash, lastBlock, spentBlock, loopDepth, isFundingTx);
@@ -1254,73 +2456,105 @@ public class Ptarmigan {
             Sha256Hash[] spentBlock,
             int[] loopDepth,
             boolean isFundingTx) {
-        logger.debug("checkUnspentFromBlock(): outPoint=" + outPoint.toString());
+        logger.debug("checkUnspentFromBlock(): outPoint={}", outPoint);
         if ((channel != null) && Sha256Hash.ZERO_HASH.equals(channel.getMinedBlockHash())) {
             logger.error("checkUnspentFromBlock(): minedHash=ZERO");
             return CHECKUNSPENT_FAIL;
         }
 
         int depth = loopDepth[0];
-        logger.debug("checkUnspentFromBlock(): currentHeight=" + wak.wallet().getLastBlockSeenHeight());
-        logger.debug("checkUnspentFromBlock(): block=" + blockHash.toString());
-        logger.debug("checkUnspentFromBlock(): depth=" + depth);
-        if ((channel != null) && blockHash.equals(channel.getMinedBlockHash())) {
-            logger.debug("checkUnspentFromBlock(): minedHash=" + channel.getMinedBlockHash());
+        if (logger.isDebugEnabled()) {
+            logger.debug("checkUnspentFromBlock(): currentHeight={}", wak.wallet().getLastBlockSeenHeight());
+            logger.debug("checkUnspentFromBlock(): block={}", blockHash);
+            logger.debug("checkUnspentFromBlock(): depth={}", depth);
+            if ((channel != null) && blockHash.equals(channel.getMinedBlockHash())) {
+                logger.debug("checkUnspentFromBlock(): minedHash={}", channel.getMinedBlockHash());
+            }
+        }
+        if (spentIndex != null) {
+            SpentIndex.Spent spent = getSpent(outPoint);
+            if (spent != null) {
+                logger.debug("checkUnspentFromBlock() ----> SPENT(index): {}", spent);
+                if (spentBlock != null) {
+                    spentBlock[0] = spent.blockHash;
+                }
+                return CHECKUNSPENT_SPENT;
+            }
+        }
+        BlockMatcher<TransactionOutPoint> matcher = new BlockMatcher<>();
+        matcher.addOutPoint(outPoint, outPoint);
+        if ((channel != null) && (channel.getConfirmation() <= 0)) {
+            matcher.addTxid(channel.getFundingOutpoint().getHash(), outPoint);
         }
+        int walkCount = 0;
         try {
             int blockHeight = -1;
             while (true) {
+                walkCount++;
                 if (lastBlock != null) {
                     lastBlock[0] = blockHash;
                     loopDepth[0] = depth;
                 }
-                Block block = getBlock(blockHash);
-                if (block == null) {
-                    logger.error("checkUnspentFromBlock: FAIL block");
-                    return CHECKUNSPENT_FAIL;
-                }
-                if (block.getTransactions() == null) {
-                    logger.error("checkUnspentFromBlock: FAIL block txs");
-                    return CHECKUNSPENT_FAIL;
+                //全inputがindex済みのblockはdownloadしない(mined block検索中は除く)
+                Sha256Hash prevHash = null;
+                boolean searchMined = (channel != null) && (channel.getConfirmation() <= 0);
+                if (!searchMined && (spentIndex != null) && spentIndex.isIndexed(blockHash)) {
+                    prevHash = getPrevHash(blockHash, null);
                 }
                 if (blockHeight == -1) {
-                    blockHeight = getHeightFromBlock(block);
+                    blockHeight = getStoredHeight(blockHash);
+                }
+                Block block = null;
+                if (prevHash == null) {
+                    prefetchBlocks(blockHash, (channel != null) ? channel.getMinedBlockHash() : null);
+                    block = getBlock(blockHash);
+                    if (block == null) {
+                        logger.error("checkUnspentFromBlock: FAIL block");
+                        return CHECKUNSPENT_FAIL;
+                    }
+                    if (block.getTransactions() == null) {
+                        logger.error("checkUnspentFromBlock: FAIL block txs");
+                        return CHECKUNSPENT_FAIL;
+                    }
+                    if (blockHeight == -1) {
+                        blockHeight = getHeightFromBlock(block);
+                    }
+                    prevHash = getPrevHash(blockHash, block);
                 }
+                heightResolver.put(blockHash, blockHeight);
                 saveDownloadLog(STARTUPLOG_BLOCK, "..." + blockHeight);
-                int blockIndex = 0;
                 boolean exitLoop = false;
-                for (Transaction tx : block.getTransactions()) {
-                    if (tx != null) {
-                        if ((channel != null) && (channel.getConfirmation() <= 0)) {
-                            //search mined block
-                            if (tx.getTxId().equals(channel.getFundingOutpoint().getHash())) {
-                                logger.debug("checkUnspentFromBlock() find minedBlock ----> UNSPENT");
-                                channel.setMinedBlockHash(blockHash, blockHeight, blockIndex);
-                                exitLoop = true;
-                                break;
+                if (block != null) {
+                    // [0]:mined tx index, [1]:spent tx index
+                    int[] found = new int[] { -1, -1 };
+                    matcher.scan(block, new BlockMatcher.Listener<TransactionOutPoint>() {
+                        @Override
+                        public void onSpent(TransactionOutPoint value, Transaction tx, int bIndex, TransactionOutPoint pnt) {
+                            if ((found[0] == -1) && (found[1] == -1)) {
+                                found[1] = bIndex;
                             }
                         }
-                        if (tx.getInputs() != null) {
-                            for (TransactionInput vin : tx.getInputs()) {
-                                if (vin == null) {
-                                    continue;
-                                }
-                                TransactionOutPoint pnt = vin.getOutpoint();
-                                if ((pnt == null) || (pnt.getHash().equals(Sha256Hash.ZERO_HASH))) {
-                                    continue;
-                                }
-                                //logger.debug("   input:" + pnt.toString());
-                                if (pnt.equals(outPoint)) {
-                                    logger.debug("checkUnspentFromBlock() ----> SPENT!");
-                                    if (spentBlock != null) {
-                                        spentBlock[0] = blockHash;
-                                    }
-                                    return CHECKUNSPENT_SPENT;
-                                }
+
+                        @Override
+                        public void onTx(TransactionOutPoint value, Transaction tx, int bIndex) {
+                            if ((found[0] == -1) && (found[1] == -1)) {
+                                found[0] = bIndex;
                             }
                         }
+                    });
+                    if (found[1] != -1) {
+                        logger.debug("checkUnspentFromBlock() ----> SPENT!");
+                        if (spentBlock != null) {
+                            spentBlock[0] = blockHash;
+                        }
+                        return CHECKUNSPENT_SPENT;
+                    }
+                    if (found[0] != -1) {
+                        //search mined block
+                        logger.debug("checkUnspentFromBlock() find minedBlock ----> UNSPENT");
+                        channel.setMinedBlockHash(blockHash, blockHeight, found[0]);
+                        exitLoop = true;
                     }
-                    blockIndex++;
                 }
                 if (isFundingTx && (channel != null)) {
                     channel.setLastUnspentHash(blockHash);
@@ -1344,17 +2578,28 @@ public class Ptarmigan {
                     logger.debug(" stop by depth==0");
                     break;
                 }
-                logger.debug("checkUnspentFromBlock() depth=" + depth);
+                if (logger.isDebugEnabled()) {
+                    logger.debug("checkUnspentFromBlock() depth={}", depth);
+                }
+
+                if (blockHeight == 0) {
+                    logger.debug(" stop by genesis");
+                    break;
+                }
 
                 // ひとつ前のブロック
-                blockHash = block.getPrevBlockHash();
-                blockHeight--;
+                blockHash = prevHash;
+                if (blockHeight > 0) {
+                    blockHeight--;
+                }
             }
         } catch (Exception e) {
             //logger.error("checkUnspentFromBlock(): rethrow: " + getStackTrace(e));
             //throw e;
             logger.error("checkUnspentFromBlock(): FAIL: " + getStackTrace(e));
             return CHECKUNSPENT_FAIL;
+        } finally {
+            walkCheckUnspent.record(walkCount);
         }
 
         logger.debug("checkUnspentFromBlock(): UNSPENT");
@@ -1373,6 +2618,17 @@ public class Ptarmigan {
         }
     }
 
+    private String sendRawTxStatusString(int status) {
+        switch (status) {
+            case SENDTX_PENDING: return "pending";
+            case SENDTX_OK: return "ok";
+            case SENDTX_REJECT: return "reject";
+            case SENDTX_FAIL: return "fail";
+            case SENDTX_CONFIRMED: return "confirmed";
+            default: return "unknown";
+        }
+    }
+
 
     /////////////////////////////////////////////////////////////////////////
 
@@ -1381,12 +2637,17 @@ public class Ptarmigan {
      * @return  address
      */
     public String getNewAddress() {
+        long startNs = System.nanoTime();
         try {
-            wak.wallet().currentReceiveKey();
-            return wak.wallet().currentReceiveAddress().toString();
-        } catch (Exception e) {
-            logger.error("getNewAddress: " + getStackTrace(e));
-            return "fail";
+            try {
+                wak.wallet().currentReceiveKey();
+                return wak.wallet().currentReceiveAddress().toString();
+            } catch (Exception e) {
+                logger.error("getNewAddress: " + getStackTrace(e));
+                return "fail";
+            }
+        } finally {
+            metrics.api("getNewAddress", startNs);
         }
     }
 
@@ -1394,23 +2655,31 @@ public class Ptarmigan {
     /////////////////////////////////////////////////////////////////////////
 
     /** feerate per 1000byte
+     *
+     *  backgroundで取得済みの値を返す(networkアクセスしない)。
      *
      * @return  feerate per KB
      */
     public long estimateFee() {
-        long returnFeeKb;
-        FeeRate.JsonInterface jsonInterface;
-        Moshi moshi = new Moshi.Builder().build();
-        jsonInterface = new FeeRate.JsonBlockCypher(params.getPaymentProtocolId());
-        if (jsonInterface.getUrl() == null) {
-            jsonInterface = new FeeRate.JsonConstantFee();
-        }
+        long startNs = System.nanoTime();
         try {
-            returnFeeKb = jsonInterface.getFeeratePerKb(moshi);
-        } catch (Exception e) {
+            return estimateFeeInternal();
+        } finally {
+            metrics.api("estimateFee", startNs);
+        }
+    }
+
+
+    /** estimateFee()の本体(API latencyを記録しない) */
+    private long estimateFeeInternal() {
+        long returnFeeKb;
+        if (feeRateService != null) {
+            returnFeeKb = feeRateService.get(chainView.getTipHeight());
+            logger.debug("feerate={}, age={}", returnFeeKb, feeRateService.getAgeMsec());
+        } else {
             returnFeeKb = Transaction.DEFAULT_TX_FEE.getValue();
+            logger.debug("feerate={}(not started)", returnFeeKb);
         }
-        logger.debug("feerate=" + returnFeeKb);
         return returnFeeKb;
     }
 
@@ -1434,175 +2703,588 @@ public class Ptarmigan {
             byte[] scriptPubKey,
             byte[] blockHashBytes,
             int lastConfirm) {
-        boolean result = false;
-        logger.debug("setChannel() peerId=" + Hex.toHexString(peerId));
+        long startNs = System.nanoTime();
         try {
-            boolean resultResult = true;
-            TransactionOutPoint fundingOutpoint = new TransactionOutPoint(params, vIndex, Sha256Hash.wrapReversed(txid));
-            Sha256Hash blockHash = Sha256Hash.wrapReversed(blockHashBytes);
-            //
-            PtarmiganChannel channel = mapChannel.get(Hex.toHexString(peerId));
-            int prevConfirm;
-            if (channel == null) {
-                logger.debug("    ADD NEW CHANNEL!!");
-                channel = new PtarmiganChannel(peerId, new ShortChannelParam());
-                prevConfirm = 0;
-            } else {
-                logger.debug("    change channel settings: " + channel.getShortChannelId().toString());
-                prevConfirm = channel.getConfirmation();
+            logger.debug("setChannel() peerId={}", LogHex.of(peerId));
+            //block走査中はlockしない(setChannels()と同じ)
+            boolean result = setChannelsInternal(Collections.singletonList(
+                    new SetChannelParam(peerId, shortChannelId, txid, vIndex, scriptPubKey, blockHashBytes, lastConfirm)))[0];
+            logger.debug("setChannel: exit({})", result);
+            return result;
+        } finally {
+            metrics.api("setChannel", startNs);
+        }
+    }
+
+
+    /** add channels information
+     *
+     *  全channelのfunding_txを1回のblock走査でチェックする。
+     *  block走査はlockせずにchannelのsnapshotに対して行い、結果の反映時だけchannelをlockする。
+     *
+     * @param channels channel parameters
+     * @return  result(same order as channels)
+     */
+    public boolean[] setChannels(List<SetChannelParam> channels) {
+        long startNs = System.nanoTime();
+        try {
+            return setChannelsInternal(channels);
+        } finally {
+            metrics.api("setChannels", startNs);
+        }
+    }
+
+
+    /** setChannel(), setChannels()の本体(API latencyを記録しない) */
+    private boolean[] setChannelsInternal(List<SetChannelParam> channels) {
+        logger.debug("setChannels(): count={}", channels.size());
+        boolean[] results = new boolean[channels.size()];
+        List<ChannelSetup> setups = new ArrayList<>();
+        for (int lp = 0; lp < channels.size(); lp++) {
+            ReentrantLock lock = channelLocks.get(channels.get(lp).peerId);
+            lock.lock();
+            try {
+                ChannelSetup setup = setChannelPrepare(channels.get(lp));
+                setup.resultIndex = lp;
+                setups.add(setup);
+            } catch (Exception e) {
+                logger.error("setChannels: " + getStackTrace(e));
+            } finally {
+                lock.unlock();
             }
-            //
-            int minedHeight = 0;
+        }
+
+        checkUnspentFromBlockBatch(setups);
+
+        for (ChannelSetup setup : setups) {
+            ReentrantLock lock = channelLocks.get(setup.peerId);
+            lock.lock();
             try {
-                BlockStore bs = wak.chain().getBlockStore();
-                StoredBlock sb = bs.get(blockHash);
-                if (sb != null) {
-                    minedHeight = sb.getHeight();
-                    logger.debug("setChannel: update minedHeight from BlockStore: " + minedHeight);
+                setChannelApply(setup);
+                setChannelFinish(setup);
+                results[setup.resultIndex] = (setup.unspent == CHECKUNSPENT_UNSPENT) || (setup.unspent == CHECKUNSPENT_SPENT);
+            } catch (Exception e) {
+                logger.error("setChannels: " + getStackTrace(e));
+            } finally {
+                lock.unlock();
+            }
+        }
+        debugShowRegisteredChannel();
+        updateBlockCachePin();
+        logger.debug("setChannels: exit");
+        return results;
+    }
+
+
+    /** setChannel()の途中情報 */
+    private static class ChannelSetup {
+        PtarmiganChannel channel;
+        byte[] peerId;
+        TransactionOutPoint fundingOutpoint;
+        Sha256Hash blockHash;
+        byte[] scriptPubKey;
+        int minedHeight;
+        int unspent = CHECKUNSPENT_UNSPENT;
+        int depth;
+        Sha256Hash startHash;               //unspentチェック開始block
+        int startHeight;
+        int resultIndex;
+        //setChannelPrepare()時点のchannelの値(block走査はこちらを使う)
+        int confirmation;
+        int confHeight;                     //short_channel_id height + confirmation - 1(不明:0)
+        Sha256Hash minedHash;
+        Sha256Hash lastUnspentHash;
+        //block走査の結果(setChannelApply()でchannelに反映)
+        boolean checked;
+        Sha256Hash spentHash;
+        Sha256Hash foundHash;               //走査で見つけたmined block(なし:null)
+        int foundHeight;
+        int foundIndex;
+    }
+
+
+    /** setChannel(): 1. channel初期化
+     *
+     * @param param channel parameter
+     * @return  setup information
+     */
+    private ChannelSetup setChannelPrepare(SetChannelParam param) {
+        ChannelSetup setup = new ChannelSetup();
+        setup.fundingOutpoint = new TransactionOutPoint(params, param.vIndex, Sha256Hash.wrapReversed(param.txid));
+        setup.blockHash = Sha256Hash.wrapReversed(param.blockHash);
+        setup.scriptPubKey = param.scriptPubKey;
+        //
+        PtarmiganChannel channel = channels.get(param.peerId);
+        int prevConfirm;
+        if (channel == null) {
+            logger.debug("    ADD NEW CHANNEL!!");
+            channel = new PtarmiganChannel(param.peerId, new ShortChannelParam());
+            prevConfirm = 0;
+        } else {
+            logger.debug("    change channel settings: {}", channel.getShortChannelId());
+            prevConfirm = channel.getConfirmation();
+        }
+        //
+        int minedHeight = heightResolver.get(setup.blockHash);
+        if (minedHeight > 0) {
+            logger.debug("setChannel: update minedHeight from BlockStore: {}", minedHeight);
+        } else {
+            logger.error("setChannel: fail StoredBlock");
+            minedHeight = 0;
+        }
+        if ( (minedHeight == 0) &&
+                (channel.getShortChannelId() != null) &&
+                (channel.getShortChannelId().height > 0) ) {
+            minedHeight = channel.getShortChannelId().height;
+            logger.debug("setChannel: update minedHeight from short_channel_id: {}", minedHeight);
+        }
+        if (minedHeight == 0) {
+            minedHeight = getHeightFromBlockHash(setup.blockHash);
+            logger.debug("setChannel: update minedHeight from blockHeightFromBlock: {}", minedHeight);
+        }
+
+        logger.debug("  shortChannelId={}", param.shortChannelId);
+        logger.debug("  fundingOutpoint={}", setup.fundingOutpoint);
+        logger.debug("  scriptPubKey={}", LogHex.of(param.scriptPubKey));
+        logger.debug("  prevConfirm={}", prevConfirm);
+        logger.debug("  lastConfirm={}", param.lastConfirm);
+        logger.debug("  minedBlockHash={}", setup.blockHash);
+        logger.debug("  minedHeight={}", minedHeight);
+
+        //shortChannelIdが0以外ならheight, bIndex, vIndexが更新される
+        //channel.initialize(shortChannelId, fundingOutpoint, (txRaw == null));
+        channel.initialize(param.shortChannelId, setup.fundingOutpoint, CHECKUNSPENT_FAIL);
+        channel.setMinedBlockHash(setup.blockHash, minedHeight, -1);
+
+        //check unspent before update confirmation
+        channel.setConfirmation(param.lastConfirm);
+        setup.channel = channel;
+        setup.peerId = channel.peerNodeId();
+        setup.minedHeight = minedHeight;
+        setup.confirmation = channel.getConfirmation();
+        if (channel.getShortChannelId() != null) {
+            setup.confHeight = channel.getShortChannelId().height + channel.getConfirmation() - 1;
+        }
+        setup.minedHash = channel.getMinedBlockHash();
+        setup.lastUnspentHash = channel.getLastUnspentHash();
+        return setup;
+    }
+
+
+    /** setChannels(): block走査の結果をchannelに反映
+     *
+     * @param setup setup information
+     */
+    private void setChannelApply(ChannelSetup setup) {
+        if (!setup.checked) {
+            return;
+        }
+        PtarmiganChannel channel = setup.channel;
+        if (setup.foundHash != null) {
+            channel.setMinedBlockHash(setup.foundHash, setup.foundHeight, setup.foundIndex);
+        }
+        channel.setLastUnspentHash(setup.lastUnspentHash);
+        if ((setup.unspent != CHECKUNSPENT_SPENT) && (channel.getFundingTxUnspent() == CHECKUNSPENT_SPENT)) {
+            //走査中にblockDownloadEvent()でspentになった
+            logger.debug("setChannels: spent while checking: {}", LogHex.of(setup.peerId));
+            setup.unspent = CHECKUNSPENT_SPENT;
+        } else {
+            channel.setFundingTxSpentValue(setup.unspent, setup.spentHash);
+        }
+    }
+
+
+    /** setChannel(): 2. confirmation更新, 登録
+     *
+     * @param setup setup information
+     */
+    private void setChannelFinish(ChannelSetup setup) {
+        PtarmiganChannel channel = setup.channel;
+        int blockHeight = wak.wallet().getLastBlockSeenHeight();
+        logger.debug("  blockCount ={}", blockHeight);
+        if (setup.minedHeight > 0) {
+            logger.debug("setChannel: minedConfirm");
+            channel.setConfirmation(blockHeight - setup.minedHeight + 1);
+        } else {
+            logger.debug("setChannel: confirm not set");
+        }
+        try {
+            SegwitAddress address = SegwitAddress.fromHash(params, setup.scriptPubKey);
+            wak.wallet().addWatchedAddress(address);
+        } catch (Exception e) {
+            logger.error("setChannel 2: " + getStackTrace(e));
+        }
+        logger.debug("setChannel: add channel: {}", LogHex.of(channel.peerNodeId()));
+        channels.put(channel);
+    }
+
+
+    /** 複数channelのunspentチェック
+     *
+     *  最新blockから遡り、各blockを全channelのfunding_tx outpointと1回だけ比較する。
+     *  前回中断したchannelは中断したblock(suspend file, lastUnspentHash)から比較を始め、
+     *  走査は各channelの開始blockのうち最も高いものから始める。
+     *  channelごとの終了条件(minedHash, depth)に達したchannelから外していく。
+     *
+     * @param setups    channels
+     */
+    private void checkUnspentFromBlockBatch(List<ChannelSetup> setups) {
+        BlockMatcher<ChannelSetup> matcher = new BlockMatcher<>();
+        List<ChannelSetup> pending = new ArrayList<>();
+        List<ChannelSetup> active = new ArrayList<>();
+        int tipHeight = wak.wallet().getLastBlockSeenHeight();
+        Sha256Hash tipHash = wak.wallet().getLastBlockSeenHash();
+        for (ChannelSetup setup : setups) {
+            if (Sha256Hash.ZERO_HASH.equals(setup.blockHash)) {
+                logger.debug("setChannels: checkUnspent: SKIP");
+                continue;
+            }
+            setup.checked = true;
+            SpentIndex.Spent spent = getSpent(setup.fundingOutpoint);
+            if (spent != null) {
+                setup.unspent = CHECKUNSPENT_SPENT;
+                setup.spentHash = spent.blockHash;
+                continue;
+            }
+            Sha256Hash[] loadHash = new Sha256Hash[1];
+            int[] loopDepth = new int[] { 0 };
+            loadSuspendBlock(setup.peerId, loadHash, loopDepth);
+            if (loadHash[0] == null) {
+                loadHash[0] = setup.lastUnspentHash;
+                loopDepth[0] = 0;
+            }
+            setup.startHash = tipHash;
+            setup.startHeight = tipHeight;
+            if (loadHash[0] != null) {
+                int height = getStoredHeight(loadHash[0]);
+                if ((height > 0) && (height <= tipHeight)) {
+                    logger.debug("setChannels: resume {}: {}({})", LogHex.of(setup.peerId), loadHash[0], height);
+                    setup.startHash = loadHash[0];
+                    setup.startHeight = height;
                 } else {
-                    logger.error("setChannel: fail StoredBlock");
+                    loopDepth[0] = 0;
                 }
-            } catch (BlockStoreException e) {
-                logger.error("setChannel 1: " + getStackTrace(e));
             }
-            if ( (minedHeight == 0) &&
-                    (channel.getShortChannelId() != null) &&
-                    (channel.getShortChannelId().height > 0) ) {
-                minedHeight = channel.getShortChannelId().height;
-                logger.debug("setChannel: update minedHeight from short_channel_id: " + minedHeight);
+            setup.depth = loopDepth[0];
+            if ((setup.depth == 0) && (setup.confHeight > 0)) {
+                setup.depth = tipHeight - setup.confHeight + OFFSET_CHECK_UNSPENT;
             }
-            if (minedHeight == 0) {
-                minedHeight = getHeightFromBlockHash(blockHash);
-                logger.debug("setChannel: update minedHeight from blockHeightFromBlock: " + minedHeight);
-            }
-            int blockHeight = wak.wallet().getLastBlockSeenHeight();
+            pending.add(setup);
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        //開始blockの高い順に走査へ加える
+        pending.sort((a, b) -> Integer.compare(b.startHeight, a.startHeight));
 
-            logger.debug("  shortChannelId=" + shortChannelId);
-            logger.debug("  fundingOutpoint=" + fundingOutpoint.toString());
-            logger.debug("  scriptPubKey=" + Hex.toHexString(scriptPubKey));
-            logger.debug("  prevConfirm=" + prevConfirm);
-            logger.debug("  lastConfirm=" + lastConfirm);
-            logger.debug("  minedBlockHash=" + blockHash.toString());
-            logger.debug("  minedHeight=" + minedHeight);
-            logger.debug("  blockCount =" + blockHeight);
-
-            //shortChannelIdが0以外ならheight, bIndex, vIndexが更新される
-            //channel.initialize(shortChannelId, fundingOutpoint, (txRaw == null));
-            channel.initialize(shortChannelId, fundingOutpoint, CHECKUNSPENT_FAIL);
-            channel.setMinedBlockHash(blockHash, minedHeight, -1);
-
-            //check unspent before update confirmation
-            channel.setConfirmation(lastConfirm);
-            if (!Sha256Hash.ZERO_HASH.equals(blockHash)) {
-                Sha256Hash[] loadHash = new Sha256Hash[1];
-                Sha256Hash[] lastBlock = new Sha256Hash[1];
-                Sha256Hash[] spentBlock = new Sha256Hash[1];
-                int[] loopDepth = new int[] { 0 };
-                loadSuspendBlock(peerId, loadHash, loopDepth);
-                int chk_un = checkUnspentFromBlock(channel, fundingOutpoint, loadHash[0], lastBlock, spentBlock, loopDepth);
-                logger.debug("setChannel: checkUnspent: " + chk_un);
-                channel.setFundingTxSpentValue(chk_un, spentBlock[0]);
-                if ((chk_un != CHECKUNSPENT_UNSPENT) && (chk_un != CHECKUNSPENT_SPENT)) {
-                    resultResult = false;
-                    saveSuspendBlock(peerId, lastBlock[0], loopDepth[0]);
+        Sha256Hash blockHash = pending.get(0).startHash;
+        int blockHeight = pending.get(0).startHeight;
+        try {
+            while (!active.isEmpty() || !pending.isEmpty()) {
+                if (blockHash == null) {
+                    throw new PtarmException("setChannels: no block hash", logger);
+                }
+                while (!pending.isEmpty() && (pending.get(0).startHeight >= blockHeight)) {
+                    ChannelSetup setup = pending.remove(0);
+                    matcher.addOutPoint(setup.fundingOutpoint, setup);
+                    if (setup.confirmation <= 0) {
+                        matcher.addTxid(setup.fundingOutpoint.getHash(), setup);
+                    }
+                    active.add(setup);
+                }
+                prefetchBlocks(blockHash, null);
+                Block block = getBlock(blockHash);
+                if ((block == null) || (block.getTransactions() == null)) {
+                    throw new PtarmException("setChannels: FAIL block", logger);
+                }
+                saveDownloadLog(STARTUPLOG_BLOCK, "..." + blockHeight);
+                final Sha256Hash scanHash = blockHash;
+                final int scanHeight = blockHeight;
+                matcher.scan(block, new BlockMatcher.Listener<ChannelSetup>() {
+                    @Override
+                    public void onSpent(ChannelSetup spent, Transaction tx, int bIndex, TransactionOutPoint outPoint) {
+                        logger.debug("setChannels: SPENT: {}", LogHex.of(spent.peerId));
+                        matcher.removeOutPoint(outPoint);
+                        spent.unspent = CHECKUNSPENT_SPENT;
+                        spent.spentHash = scanHash;
+                    }
+
+                    @Override
+                    public void onTx(ChannelSetup mined, Transaction tx, int bIndex) {
+                        logger.debug("setChannels: find minedBlock: {}", LogHex.of(mined.peerId));
+                        matcher.removeTxid(tx.getTxId());
+                        mined.foundHash = scanHash;
+                        mined.foundHeight = scanHeight;
+                        mined.foundIndex = bIndex;
+                        mined.minedHash = scanHash;
+                        mined.depth = 1;
+                    }
+                });
+
+                //終了したchannelを外す
+                Iterator<ChannelSetup> it = active.iterator();
+                while (it.hasNext()) {
+                    ChannelSetup setup = it.next();
+                    if (setup.unspent == CHECKUNSPENT_SPENT) {
+                        it.remove();
+                        continue;
+                    }
+                    setup.lastUnspentHash = blockHash;
+                    setup.depth--;
+                    if (blockHash.equals(setup.minedHash) ||
+                            blockHash.equals(creationHash) ||
+                            (setup.depth == 0) || (blockHeight == 0)) {
+                        setup.lastUnspentHash = null;
+                        setup.unspent = CHECKUNSPENT_UNSPENT;
+                        matcher.removeOutPoint(setup.fundingOutpoint);
+                        matcher.removeTxid(setup.fundingOutpoint.getHash());
+                        it.remove();
+                    }
+                }
+
+                // ひとつ前のブロック
+                heightResolver.put(blockHash, blockHeight);
+                blockHash = getPrevHash(blockHash, block);
+                blockHeight--;
+            }
+        } catch (Exception e) {
+            logger.error("setChannels: FAIL: " + getStackTrace(e));
+            for (ChannelSetup setup : active) {
+                setup.unspent = CHECKUNSPENT_FAIL;
+                if (blockHash != null) {
+                    saveSuspendBlock(setup.peerId, blockHash, setup.depth);
                 }
-            } else {
-                logger.debug("setChannel: checkUnspent: SKIP");
             }
+            //開始blockまで届かなかったchannelは前回の中断位置のまま
+            for (ChannelSetup setup : pending) {
+                setup.unspent = CHECKUNSPENT_FAIL;
+            }
+        }
+    }
+
 
-            if (minedHeight > 0) {
-                logger.debug("setChannel: minedConfirm");
-                channel.setConfirmation(blockHeight - minedHeight + 1);
+    private void loadSuspendBlock(byte[] peerId, Sha256Hash[] lastBlock, int[] loopDepth) {
+        try {
+            String fname = "./" + PREFIX_LASTBLOCK + Hex.toHexString(peerId) + ".txt";
+            FileReader fileReader = new FileReader(fname);
+            BufferedReader bufferedReader = new BufferedReader(fileReader);
+            String cHash = bufferedReader.readLine();
+            if (cHash.length() == Sha256Hash.LENGTH * 2) {
+                lastBlock[0] = Sha256Hash.wrap(Hex.decode(cHash));
+                logger.debug("load: {}", lastBlock[0]);
+            } else {
+                logger.debug("fail block");
+            }
+            String cDepth = bufferedReader.readLine();
+            if (cDepth.length() > 0) {
+                loopDepth[0] = Integer.parseInt(cDepth);
+                logger.debug("depth: {}", loopDepth[0]);
             } else {
-                logger.debug("setChannel: confirm not set");
+                logger.debug("fail depth");
+            }
+        } catch (Exception e) {
+            getStackTrace(e);
+        }
+    }
+
+    private void saveSuspendBlock(byte[] peerId, Sha256Hash lastBlock, int depth) {
+        try {
+            String fname = "./" + PREFIX_LASTBLOCK + Hex.toHexString(peerId) + ".txt";
+            FileWriter fileWriter = new FileWriter(fname, false);
+            fileWriter.write(lastBlock.toString() + "\n");
+            fileWriter.write(Integer.toString(depth) + "\n");
+            fileWriter.close();
+            logger.debug("save: {}", fname);
+            logger.debug("    hash={}, depth={}", lastBlock, depth);
+        } catch (IOException e) {
+            logger.error("FileWriter: "+ getStackTrace(e));
+        }
+    }
+
+
+    public void removeSuspendBlock() {
+        long startNs = System.nanoTime();
+        try {
+            for (PtarmiganChannel ch : channels.values()) {
+                if (ch == null) {
+                    continue;
+                }
+                try {
+                    String fname = "./" + PREFIX_LASTBLOCK + Hex.toHexString(ch.peerNodeId()) + ".txt";
+                    Files.delete(Paths.get(fname));
+                    logger.debug("remove: {}", fname);
+                } catch (Exception e) {
+                    //
+                }
             }
+        } finally {
+            metrics.api("removeSuspendBlock", startNs);
+        }
+    }
+
+
+    /////////////////////////////////////////////////////////////////////////
+
+    /** チャネル情報削除
+     *
+     * @param peerId    peer node_id
+     */
+    public void delChannel(byte[] peerId) {
+        long startNs = System.nanoTime();
+        try {
+            PtarmiganChannel channel;
+            ReentrantLock lock = channelLocks.get(peerId);
+            lock.lock();
             try {
-                SegwitAddress address = SegwitAddress.fromHash(params, scriptPubKey);
-                wak.wallet().addWatchedAddress(address);
-            } catch (Exception e) {
-                logger.error("setChannel 2: " + getStackTrace(e));
+                channel = channels.remove(peerId);
+            } finally {
+                lock.unlock();
             }
-            logger.debug("setChannel: add channel: " + Hex.toHexString(peerId));
+            if (channel != null) {
+                updateBlockCachePin();
+                logger.debug("delete channel: {}", LogHex.of(peerId));
+            } else {
+                logger.debug("no such channel: {}", LogHex.of(peerId));
+            }
+        } finally {
+            metrics.api("delChannel", startNs);
+        }
+    }
+
+
+    /////////////////////////////////////////////////////////////////////////
+
+    /** event通知先の登録
+     *
+     * @param listener  listener
+     */
+    public void addEventListener(PtarmEventListener listener) {
+        long startNs = System.nanoTime();
+        try {
+            eventQueue.addListener(listener);
+        } finally {
+            metrics.api("addEventListener", startNs);
+        }
+    }
+
+
+    public void removeEventListener(PtarmEventListener listener) {
+        long startNs = System.nanoTime();
+        try {
+            eventQueue.removeListener(listener);
+        } finally {
+            metrics.api("removeEventListener", startNs);
+        }
+    }
 
-            debugShowRegisteredChannel();
-            mapChannel.put(Hex.toHexString(channel.peerNodeId()), channel);
-            result = resultResult;
-        } catch (Exception e) {
-            logger.error("setChannel: " + getStackTrace(e));
+
+    /** eventの取り出し
+     *
+     *  listenerを登録しない場合は、これを呼んでqueueからまとめて取り出す。
+     *
+     * @param max           最大数
+     * @param timeoutMsec   eventが無い場合の待ち時間(0:待たない)
+     * @return  events(無い場合は空配列)
+     */
+    public PtarmEvent[] pollEvents(int max, long timeoutMsec) {
+        long startNs = System.nanoTime();
+        try {
+            List<PtarmEvent> events = eventQueue.poll(max, timeoutMsec);
+            return events.toArray(new PtarmEvent[0]);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new PtarmEvent[0];
+        } finally {
+            metrics.api("pollEvents", startNs);
         }
-        logger.debug("setChannel: exit(" + result + ")");
-        return result;
     }
 
 
-    private void loadSuspendBlock(byte[] peerId, Sha256Hash[] lastBlock, int[] loopDepth) {
+    /** queueが溢れて捨てたevent数(起動からの累計)
+     *
+     *  EVENT_FUNDING_SPENT, EVENT_COMMIT_SPENT, EVENT_REORGは捨てない。
+     *  前回から増えていた場合は、getTxConfirmation()やcheckUnspent()で状態を取り直すこと。
+     *
+     * @return  drop count
+     */
+    public long getEventDropCount() {
+        long startNs = System.nanoTime();
         try {
-            String fname = "./" + PREFIX_LASTBLOCK + Hex.toHexString(peerId) + ".txt";
-            FileReader fileReader = new FileReader(fname);
-            BufferedReader bufferedReader = new BufferedReader(fileReader);
-            String cHash = bufferedReader.readLine();
-            if (cHash.length() == Sha256Hash.LENGTH * 2) {
-                lastBlock[0] = Sha256Hash.wrap(Hex.decode(cHash));
-                logger.debug("load: " + lastBlock[0].toString());
-            } else {
-                logger.debug("fail block");
-            }
-            String cDepth = bufferedReader.readLine();
-            if (cDepth.length() > 0) {
-                loopDepth[0] = Integer.parseInt(cDepth);
-                logger.debug("depth: " + loopDepth[0]);
-            } else {
-                logger.debug("fail depth");
-            }
-        } catch (Exception e) {
-            getStackTrace(e);
+            return eventQueue.getDropCount();
+        } finally {
+            metrics.api("getEventDropCount", startNs);
         }
     }
 
-    private void saveSuspendBlock(byte[] peerId, Sha256Hash lastBlock, int depth) {
+
+    /////////////////////////////////////////////////////////////////////////
+
+    /** metrics snapshot
+     *
+     *  API latency(usec), block取得元, peer取得latency/size, walk depth, broadcast結果, feerate取得latency。
+     *  同じ内容を ./logs/ptarm_metrics.prom にも定期出力する。
+     *
+     * @return  Prometheus text exposition
+     */
+    public String getMetrics() {
+        long startNs = System.nanoTime();
         try {
-            String fname = "./" + PREFIX_LASTBLOCK + Hex.toHexString(peerId) + ".txt";
-            FileWriter fileWriter = new FileWriter(fname, false);
-            fileWriter.write(lastBlock.toString() + "\n");
-            fileWriter.write(Integer.toString(depth) + "\n");
-            fileWriter.close();
-            logger.debug("save: " + fname);
-            logger.debug("    hash=" + lastBlock.toString() + ", depth=" + depth);
-        } catch (IOException e) {
-            logger.error("FileWriter: "+ getStackTrace(e));
+            return metrics.toText();
+        } finally {
+            metrics.api("getMetrics", startNs);
         }
     }
 
 
-    public void removeSuspendBlock() {
-        for (PtarmiganChannel ch : mapChannel.values()) {
-            if (ch == null) {
-                continue;
+    /** block download進捗
+     *
+     *  spv_start_staged()の後、state が SYNC_DONE になるまでheaderとblockのdownloadが続く。
+     *  spv_start()の場合は戻った時点で SYNC_DONE(失敗時はSYNC_FAIL)。
+     *
+     * @return  progress
+     */
+    public SyncProgress getSyncProgress() {
+        long startNs = System.nanoTime();
+        try {
+            SyncProgress progress = new SyncProgress();
+            progress.state = syncState;
+            if (syncState != SYNC_NONE) {
+                progress.elapsed = System.currentTimeMillis() - syncStartMsec;
             }
             try {
-                String fname = "./" + PREFIX_LASTBLOCK + Hex.toHexString(ch.peerNodeId()) + ".txt";
-                Files.delete(Paths.get(fname));
-                logger.debug("remove: " + fname);
+                if ((wak != null) && wak.isRunning()) {
+                    progress.height = wak.chain().getBestChainHeight();
+                    progress.peerHeight = Math.max(wak.peerGroup().getMostCommonChainHeight(), 0);
+                    progress.peers = wak.peerGroup().numConnectedPeers();
+                }
             } catch (Exception e) {
-                //
+                logger.error("getSyncProgress: " + getStackTrace(e));
             }
+            logger.debug("getSyncProgress(): {}", progress);
+            return progress;
+        } finally {
+            metrics.api("getSyncProgress", startNs);
         }
     }
 
 
-    /////////////////////////////////////////////////////////////////////////
-
-    /** チャネル情報削除
+    /** API latency snapshot
      *
-     * @param peerId    peer node_id
+     * @param method    public method name(例: "checkUnspent")
+     * @return  [count, sum, max, p50, p90, p99](usec)。未呼び出しの場合はnull
      */
-    public void delChannel(byte[] peerId) {
-        PtarmiganChannel channel = mapChannel.get(Hex.toHexString(peerId));
-        if (channel != null) {
-            mapChannel.remove(Hex.toHexString(peerId));
-            logger.debug("delete channel: " + Hex.toHexString(peerId));
-        } else {
-            logger.debug("no such channel: " + Hex.toHexString(peerId));
+    public long[] getApiLatency(String method) {
+        long startNs = System.nanoTime();
+        try {
+            Metrics.Histogram h = metrics.getApi(method);
+            if (h == null) {
+                return null;
+            }
+            return new long[] {
+                    h.getCount(), h.getSum(), h.getMax(),
+                    h.getQuantile(0.5), h.getQuantile(0.9), h.getQuantile(0.99) };
+        } finally {
+            metrics.api("getApiLatency", startNs);
         }
     }
 
@@ -1617,10 +3299,10 @@ public class Ptarmigan {
 //     * @param txHash
 //     */
 //    public void setCommitTxid(byte[] peerId, int index, int commitNum, Sha256Hash txHash) {
-//        PtarmiganChannel channel = mapChannel.get(Hex.toHexString(peerId));
+//        PtarmiganChannel channel = channels.get(peerId);
 //        if (channel != null) {
 //            channel.setCommitTxid(index, commitNum, txHash);
-//            mapChannel.put(Hex.toHexString(channel.peerNodeId()), channel);
+//            channels.put(channel);
 //        }
 //    }
 
@@ -1632,11 +3314,18 @@ public class Ptarmigan {
      * @return  balance(satoshis)
      */
     public long getBalance() {
-        logger.debug("getBalance(): available=" + wak.wallet().getBalance(Wallet.BalanceType.AVAILABLE).getValue());
-        logger.debug("             +spendable=" + wak.wallet().getBalance(Wallet.BalanceType.AVAILABLE_SPENDABLE).getValue());
-        logger.debug("              estimated=" + wak.wallet().getBalance(Wallet.BalanceType.ESTIMATED).getValue());
-        logger.debug("             +spendable=" + wak.wallet().getBalance(Wallet.BalanceType.ESTIMATED_SPENDABLE).getValue());
-        return wak.wallet().getBalance(Wallet.BalanceType.AVAILABLE_SPENDABLE).getValue();
+        long startNs = System.nanoTime();
+        try {
+            if (logger.isDebugEnabled()) {
+                logger.debug("getBalance(): available={}", wak.wallet().getBalance(Wallet.BalanceType.AVAILABLE).getValue());
+                logger.debug("             +spendable={}", wak.wallet().getBalance(Wallet.BalanceType.AVAILABLE_SPENDABLE).getValue());
+                logger.debug("              estimated={}", wak.wallet().getBalance(Wallet.BalanceType.ESTIMATED).getValue());
+                logger.debug("             +spendable={}", wak.wallet().getBalance(Wallet.BalanceType.ESTIMATED_SPENDABLE).getValue());
+            }
+            return wak.wallet().getBalance(Wallet.BalanceType.AVAILABLE_SPENDABLE).getValue();
+        } finally {
+            metrics.api("getBalance", startNs);
+        }
     }
 
 
@@ -1649,32 +3338,41 @@ public class Ptarmigan {
      * @throws PtarmException   fail
      */
     public byte[] emptyWallet(String sendAddress) throws PtarmException {
-        logger.debug("emptyWallet(): sendAddress=" + sendAddress);
-        Transaction tx = null;
+        long startNs = System.nanoTime();
         try {
-            Address address = Address.fromString(params, sendAddress);
-            SendRequest sendRequest = SendRequest.emptyWallet(address);
-            sendRequest.feePerKb = Coin.valueOf(estimateFee());
-            wak.wallet().completeTx(sendRequest);
-            tx = sendRequest.tx;
-            Transaction txl = wak.peerGroup().broadcastTransaction(tx).future().get(TIMEOUT_SENDTX, TimeUnit.MILLISECONDS);
-            logger.debug("emptyWallet(): txid=" + txl.getTxId().toString());
-            return txl.getTxId().getReversedBytes();
-        } catch (TimeoutException e) {
-            if (tx != null) {
-                Transaction txl = getPeerMempoolTransaction(tx.getTxId());
-                if (txl != null) {
-                    logger.debug("emptyWallet(): mempool txid=" + txl.getTxId().toString());
-                    return txl.getTxId().getReversedBytes();
+            logger.debug("emptyWallet(): sendAddress={}", sendAddress);
+            Transaction tx = null;
+            try {
+                Address address = Address.fromString(params, sendAddress);
+                SendRequest sendRequest = SendRequest.emptyWallet(address);
+                sendRequest.feePerKb = Coin.valueOf(estimateFeeInternal());
+                wak.wallet().completeTx(sendRequest);
+                tx = sendRequest.tx;
+                int status = broadcastTx(tx).get(
+                        RETRY_SENDRAWTX * (TIMEOUT_SENDTX + TIMEOUT_REJECT), TimeUnit.MILLISECONDS);
+                if (status == SENDTX_OK) {
+                    logger.debug("emptyWallet(): txid={}", tx.getTxId());
+                    return tx.getTxId().getReversedBytes();
                 }
+                if ((status != SENDTX_REJECT) && isBroadcasted(tx.getTxId())) {
+                    logger.debug("emptyWallet(): broadcasted txid={}", tx.getTxId());
+                    return tx.getTxId().getReversedBytes();
+                }
+            } catch (TimeoutException e) {
+                if ((tx != null) && isBroadcasted(tx.getTxId())) {
+                    logger.debug("emptyWallet(): broadcasted txid={}", tx.getTxId());
+                    return tx.getTxId().getReversedBytes();
+                }
+            } catch (Wallet.CouldNotAdjustDownwards e) {
+                logger.warn("not enough amount");
+            } catch (Exception e) {
+                logger.error("setChannel 1: " + getStackTrace(e));
             }
-        } catch (Wallet.CouldNotAdjustDownwards e) {
-            logger.warn("not enough amount");
-        } catch (Exception e) {
-            logger.error("setChannel 1: " + getStackTrace(e));
+            logger.error("emptyWallet(): fail");
+            return null;
+        } finally {
+            metrics.api("emptyWallet", startNs);
         }
-        logger.error("emptyWallet(): fail");
-        return null;
     }
 
 
@@ -1682,23 +3380,68 @@ public class Ptarmigan {
     // Private
     //-------------------------------------------------------------------------
 
+    /** ByteBufferの残りを読み込む(bitcoinjのparserはbyte[]のみ対応のため)
+     *
+     * @param buf   buffer(positionは変更しない)
+     * @return  bytes
+     */
+    private static byte[] readBytes(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.remaining()];
+        buf.duplicate().get(bytes);
+        return bytes;
+    }
+
+
+    private static Sha256Hash readHash(ByteBuffer buf) {
+        byte[] bytes = new byte[Sha256Hash.LENGTH];
+        buf.duplicate().get(bytes);
+        return Sha256Hash.wrapReversed(bytes);
+    }
+
+
+    /** [length(4, little endian)][transaction]を書き込む
+     *
+     * @param tx    transaction
+     * @param buf   (output)buffer
+     * @return  false:buffer overflow(positionは変更しない)
+     */
+    private static boolean writeTransaction(Transaction tx, ByteBuffer buf) {
+        int start = buf.position();
+        ByteOrder order = buf.order();
+        try {
+            buf.position(start + 4);
+            tx.bitcoinSerialize(new ByteBufferOutputStream(buf));
+            buf.order(ByteOrder.LITTLE_ENDIAN).putInt(start, buf.position() - start - 4);
+            return true;
+        } catch (Exception e) {
+            buf.position(start);
+            return false;
+        } finally {
+            buf.order(order);
+        }
+    }
+
+
     /** get Peer
+     *
+     *  PeerScoreで最も応答の速いhealthyなpeerを選ぶ。
      *
      * @return  peer
      * @throws PtarmException   fail
      */
     private Peer getPeer() throws PtarmException {
         try {
-            //Peer peer = wak.peerGroup().getDownloadPeer();
-            Peer peer = wak.peerGroup().getConnectedPeers().get(connectedPeerIndex);
+            List<Peer> peers = wak.peerGroup().getConnectedPeers();
+            if (peers.isEmpty()) {
+                throw new PtarmException("getPeer: no connected peers", logger);
+            }
+            Peer peer = peerScore.select(peers, null);
             if (peer != null) {
-                logger.debug("getPeer()=" + connectedPeerIndex);
-                peerFailCount = 0;
+                logger.debug("getPeer()={}", peer.getAddress());
+                peerFailCount.set(0);
             } else {
-                setInvalidPeer(connectedPeerIndex);
                 failPeer();
             }
-            nextPeer();
             return peer;
         } catch (PtarmException e) {
             logger.error("getPeer(): rethrow");
@@ -1711,45 +3454,19 @@ public class Ptarmigan {
 
 
     private void failPeer() throws PtarmException {
-        peerFailCount++;
-        logger.error("  getPeer(count=" + peerFailCount + ") - peer not found");
-        if (peerFailCount > MAX_PEER_FAIL) {
+        int count = peerFailCount.incrementAndGet();
+        logger.error("  getPeer(count=" + count + ") - peer not found");
+        if (count > MAX_PEER_FAIL) {
             throw new PtarmException("getPeer: too many fail peer", logger);
         }
     }
 
 
-    private void setInvalidPeer(int peerIndex) {
-        peerInvalid[peerIndex] = true;
-        logger.error("setInvalidPeer(): " + peerIndex);
-    }
-
-
-    private void nextPeer() throws PtarmException {
-        if (wak.peerGroup().numConnectedPeers() == 0) {
-            throw new PtarmException("getPeer: no connected peers", logger);
-        }
-        int nowIndex = connectedPeerIndex;
-        while (true) {
-            connectedPeerIndex++;
-            if (connectedPeerIndex >= wak.peerGroup().numConnectedPeers()) {
-                connectedPeerIndex = 0;
-            }
-            if (!peerInvalid[connectedPeerIndex]) {
-                break;
-            }
-            if (connectedPeerIndex == nowIndex) {
-                throw new PtarmException("getPeer: all invalid peer", logger);
-            }
-        }
-    }
-
-
-    private void debugPeerInfo(int peerIndex) {
+    private void debugPeerInfo(Peer peer) {
         try {
-            Peer peer = wak.peerGroup().getConnectedPeers().get(peerIndex);
-            logger.debug("peer[" + peerIndex + "] info: " + peer.toString());
-            logger.debug("lastPing=" + peer.getLastPingTime());
+            logger.debug("peer info: {}", peer);
+            logger.debug("lastPing={}", peer.getLastPingTime());
+            logger.debug("score: {}", peerScore.get(peer));
         } catch (Exception e) {
             //
         }
@@ -1765,20 +3482,32 @@ public class Ptarmigan {
      * @throws PtarmException   fail
      */
     private Block getBlock(Sha256Hash blockHash) throws PtarmException {
-        logger.debug("getBlock():" + blockHash);
+        logger.debug("getBlock():{}", blockHash);
         if (Sha256Hash.ZERO_HASH.equals(blockHash)) {
             logger.error("  getBlock(NG) - zero");
             return null;
         }
-        if (blockCache.containsKey(blockHash)) {
-            logger.debug("  getBlock(OK) - blockCache: " + blockHash.toString());
-            return blockCache.get(blockHash);
+        Block cached = blockCache.get(blockHash);
+        if (cached != null) {
+            logger.debug("  getBlock(OK) - blockCache: {}", blockHash);
+            blockFromCache.inc();
+            return cached;
+        }
+        cached = (blockFile != null) ? blockFile.get(blockHash) : null;
+        if (cached != null) {
+            logger.debug("  getBlock(OK) - blockFile: {}", blockHash);
+            blockFromFile.inc();
+            blockCache.put(blockHash, cached);
+            txIndex.addBlock(cached, getStoredHeight(blockHash));
+            return cached;
         } else {
             Block block = getBlockFromPeer(blockHash);
             if (block != null) {
-                logger.debug("  getBlock(OK) : " + blockHash.toString());
+                logger.debug("  getBlock(OK) : {}", blockHash);
+                blockFromPeer.inc();
             } else {
                 logger.error("  getBlock(NG) - null");
+                blockFromNone.inc();
             }
             return block;
         }
@@ -1794,30 +3523,26 @@ public class Ptarmigan {
     private Block getBlockFromPeer(Sha256Hash blockHash) throws PtarmException {
         Block block = null;
         for (int lp = 0; lp < RETRY_GETBLOCK; lp++) {
-            Peer peer = getPeer();
-            if (peer == null) {
+            if (wak.peerGroup().numConnectedPeers() == 0) {
+                failPeer();
                 logger.error("  getBlockFromPeer() - peer not found");
                 return null;
             }
             try {
-                block = peer.getBlock(blockHash).get(TIMEOUT_GETBLOCK, TimeUnit.MILLISECONDS);
-                //block = peer.getBlock(blockHash).get();
+                block = blockFetcher.get(blockHash, TIMEOUT_GETBLOCK);
                 if (block != null) {
-                    logger.debug("  getBlockFromPeer() " + blockHash.toString());
-                    blockCache.put(blockHash, block);
-                    downloadFailCount = 0;
+                    logger.debug("  getBlockFromPeer() {}", blockHash);
+                    downloadFailCount.set(0);
                 }
                 break;
             } catch (Exception e) {
-                downloadFailCount++;
-                logger.error("getBlockFromPeer(count=" + downloadFailCount + ")");
-                if (downloadFailCount >= MAX_DOWNLOAD_FAIL) {
+                int count = downloadFailCount.incrementAndGet();
+                logger.error("getBlockFromPeer(count=" + count + ")");
+                if (count >= MAX_DOWNLOAD_FAIL) {
                     throw new PtarmException("getBlockFromPeer: stop SPV: too many fail download", logger);
                 }
                 if (e instanceof TimeoutException) {
                     logger.error("  getBlockFromPeer(): Timeout==> retry");
-                    setInvalidPeer(connectedPeerIndex);
-                    debugPeerInfo(connectedPeerIndex);
                 } else {
                     break;
                 }
@@ -1827,31 +3552,229 @@ public class Ptarmigan {
     }
 
 
+    /** [event]peerから取得したblockをcache, fileに保存
+     *
+     *  BlockFetcherの応答callback(bitcoinjのnetwork thread)から呼ばれるため、
+     *  file書込み, index追加はblockStoreExecutorで行う。
+     *
+     * @param block     block
+     */
+    private void storeFetchedBlock(Block block) {
+        Sha256Hash blockHash = block.getHash();
+        //走査中のthreadがすぐ使えるようcacheには先に入れる
+        blockCache.put(blockHash, block);
+        ExecutorService executor = blockStoreExecutor;
+        if (executor == null) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                if (blockFile != null) {
+                    blockFile.put(block);
+                }
+                int height = getStoredHeight(blockHash);
+                if ((height > 0) && !chainView.isActive(blockHash, height)) {
+                    //保存待ちの間にreorgで外れた
+                    logger.debug("storeFetchedBlock: stale block: {}", blockHash);
+                    return;
+                }
+                indexBlock(block, height);
+            });
+        } catch (RejectedExecutionException e) {
+            logger.debug("storeFetchedBlock: closed");
+        }
+    }
+
+
+    /** 遡るblockを先行してpeerに要求する
+     *
+     *  active chain(ChainView, 範囲外はheader store)から前のblock hashを取得し、cacheにないものを要求する。
+     *
+     * @param blockHash     次に取得するblock hash
+     * @param limitHash     これ以上遡らないblock hash(null可)
+     */
+    private void prefetchBlocks(Sha256Hash blockHash, @Nullable Sha256Hash limitHash) {
+        if ((wak == null) || (blockHash == null)) {
+            return;
+        }
+        List<Sha256Hash> hashes = new ArrayList<>();
+        try {
+            Sha256Hash hash = blockHash;
+            for (int lp = 0; (hash != null) && (lp < PREFETCH_DEPTH); lp++) {
+                if (!blockCache.contains(hash) &&
+                        ((blockFile == null) || !blockFile.contains(hash)) &&
+                        !blockFetcher.isInflight(hash)) {
+                    hashes.add(hash);
+                }
+                if (hash.equals(limitHash) || hash.equals(creationHash)) {
+                    break;
+                }
+                hash = getPrevHash(hash, null);
+            }
+        } catch (Exception e) {
+            logger.error("prefetchBlocks(): " + e.getMessage());
+        }
+        if (!hashes.isEmpty()) {
+            logger.debug("prefetchBlocks(): {}", hashes.size());
+            blockFetcher.prefetch(hashes);
+        }
+    }
+
+
+    /** get header from local block store
+     *
+     * @param blockHash block hash
+     * @return  stored block or null
+     */
+    private StoredBlock getStoredBlock(Sha256Hash blockHash) {
+        try {
+            return wak.chain().getBlockStore().get(blockHash);
+        } catch (Exception e) {
+            logger.error("getStoredBlock(): " + e.getMessage());
+            return null;
+        }
+    }
+
+
+    /** get height from local block store
+     *
+     * @param blockHash block hash
+     * @return  height or -1(not found)
+     */
+    private int getStoredHeight(Sha256Hash blockHash) {
+        int height = chainView.getHeight(blockHash);
+        return (height != ChainView.UNKNOWN) ? height : heightResolver.get(blockHash);
+    }
+
+
+    /** 1つ前のblock hash
+     *
+     *  active chainはChainViewのheightで辿る(blockのdownload不要)。
+     *  ChainViewの範囲外はblock header(blockがなければheader store)から取得する。
+     *
+     * @param blockHash block hash
+     * @param block     blockHashのblock(null可)
+     * @return  prev block hash or null(not found)
+     */
+    private Sha256Hash getPrevHash(Sha256Hash blockHash, @Nullable Block block) {
+        Sha256Hash prevHash = chainView.getPrevHash(blockHash);
+        if (prevHash != null) {
+            return prevHash;
+        }
+        if (block != null) {
+            return block.getPrevBlockHash();
+        }
+        StoredBlock sb = getStoredBlock(blockHash);
+        return (sb != null) ? sb.getHeader().getPrevBlockHash() : null;
+    }
+
+
+    /** spent index参照
+     *
+     *  reorgでactive chainから外れたblockのentryは使わず、同じoutpointの古いentryを見る。
+     *
+     * @param outPoint  outpoint
+     * @return  spent info or null(not indexed)
+     */
+    private SpentIndex.Spent getSpent(TransactionOutPoint outPoint) {
+        if (spentIndex == null) {
+            return null;
+        }
+        for (SpentIndex.Spent spent : spentIndex.get(outPoint)) {
+            int height = (spent.height > 0) ? spent.height : heightResolver.get(spent.blockHash);
+            if ((height > 0) && !chainView.isActive(spent.blockHash, height)) {
+                logger.debug("getSpent(): stale block: {}", spent);
+                continue;
+            }
+            return spent;
+        }
+        return null;
+    }
+
+
+    /** get block hash at height from local block store
+     *
+     * @param height    block height
+     * @return  block hash or null(not found)
+     */
+    private Sha256Hash getStoredHashAtHeight(int height) {
+        Sha256Hash hash = chainView.getHash(height);
+        if (hash != null) {
+            return hash;
+        }
+        try {
+            BlockStore bs = wak.chain().getBlockStore();
+            StoredBlock sb = bs.getChainHead();
+            while ((sb != null) && (sb.getHeight() > height)) {
+                sb = sb.getPrev(bs);
+            }
+            if ((sb != null) && (sb.getHeight() == height)) {
+                return sb.getHeader().getHash();
+            }
+        } catch (Exception e) {
+            logger.error("getStoredHashAtHeight(): " + e.getMessage());
+        }
+        return null;
+    }
+
+
+    /** channelが参照しているblockをblock cacheから破棄しないようにする
+     *
+     */
+    private void updateBlockCachePin() {
+        Set<Sha256Hash> pin = new HashSet<>();
+        for (PtarmiganChannel ch : channels.values()) {
+            if (ch == null) {
+                continue;
+            }
+            if ((ch.getMinedBlockHash() != null) && !Sha256Hash.ZERO_HASH.equals(ch.getMinedBlockHash())) {
+                pin.add(ch.getMinedBlockHash());
+            }
+            if ((ch.getFundingTxSpentBlockHash() != null) && !Sha256Hash.ZERO_HASH.equals(ch.getFundingTxSpentBlockHash())) {
+                pin.add(ch.getFundingTxSpentBlockHash());
+            }
+            if (ch.getLastUnspentHash() != null) {
+                pin.add(ch.getLastUnspentHash());
+            }
+        }
+        blockCache.setPinned(pin);
+        logger.debug("updateBlockCachePin(): {}", blockCache);
+    }
+
 
     /** blockheight from blockhash
+     *
+     *  header store, hash→height cacheになければblockをdownloadする。
      *
      * @param blockHash target block hashge
      * @return  (>0)height, (==0)error
      */
     private int getHeightFromBlockHash(Sha256Hash blockHash) {
-        logger.debug("getHeightFromBlockHash(): blockHash=" + blockHash.toString());
-        try {
-            Block block = getBlock(blockHash);
+        logger.debug("getHeightFromBlockHash(): blockHash={}", blockHash);
+        int height = heightResolver.resolve(blockHash, hash -> {
+            Block block = getBlock(hash);
             if (block != null) {
-                return getHeightFromBlock(block);
+                return getHeightFromBlockCoinbase(block);
             } else {
                 logger.error("getHeightFromBlock(): block==null");
                 return 0;
             }
-        } catch (Exception e) {
-            logger.error("getHeightFromBlock(): exception: " + getStackTrace(e));
-            return 0;
-        }
+        });
+        return (height > 0) ? height : 0;
     }
     private int getHeightFromBlock(Block block) {
+        int height = getStoredHeight(block.getHash());
+        if (height > 0) {
+            return height;
+        }
+        height = getHeightFromBlockCoinbase(block);
+        heightResolver.put(block.getHash(), height);
+        return height;
+    }
+    private int getHeightFromBlockCoinbase(Block block) {
         long height = 0;
         int depth = 0;
-        String blockHashString = block.getHashAsString();
+        Sha256Hash startHash = block.getHash();
         Sha256Hash blockHash = null;
 
         try {
@@ -1874,10 +3797,17 @@ public class Ptarmigan {
                     logger.error("getHeightFromBlock: fail too many depth");
                     return 0;
                 }
-                logger.debug("getHeightFromBlock() depth=" + depth);
+                if (logger.isDebugEnabled()) {
+                    logger.debug("getHeightFromBlock() depth={}", depth);
+                }
 
                 // ひとつ前のブロック
-                blockHash = block.getPrevBlockHash();
+                blockHash = getPrevHash(block.getHash(), block);
+                int knownHeight = getStoredHeight(blockHash);
+                if (knownHeight > 0) {
+                    height = knownHeight;
+                    break;
+                }
                 block = getBlock(blockHash);
             }
         } catch (Exception e) {
@@ -1885,7 +3815,9 @@ public class Ptarmigan {
         }
 
         height += depth;
-        logger.debug("getHeightFromBlock(): height=" + height + ", blockHash=" + blockHashString);
+        if (logger.isDebugEnabled()) {
+            logger.debug("getHeightFromBlock(): height={}, blockHash={}", height, startHash);
+        }
         return (int)height;
     }
 
@@ -1896,16 +3828,18 @@ public class Ptarmigan {
             List<Transaction> txs = block.getTransactions();
             if ((txs != null) && txs.size() > 0 && (txs.get(0).getInputs().size() > 0)) {
                 byte[] scriptSigBytes = txs.get(0).getInput(0).getScriptBytes();
-                logger.debug("COINBASE_scriptBytes=" + Hex.toHexString(scriptSigBytes));
+                if (logger.isDebugEnabled()) {
+                    logger.debug("COINBASE_scriptBytes={}", LogHex.of(scriptSigBytes));
+                }
                 if (scriptSigBytes.length >= 4) {
-                    if (scriptSigBytes[0] == 0x03) {
-                        height = ((scriptSigBytes[3] & 0xff) << 16) | ((scriptSigBytes[2] & 0xff) << 8) | (scriptSigBytes[1] & 0xff);
-                    } else if (params.getPaymentProtocolId().equals(NetworkParameters.PAYMENT_PROTOCOL_ID_REGTEST) && (scriptSigBytes[0] == 0x02)) {
-                        height = ((scriptSigBytes[2] & 0xff) << 8) | (scriptSigBytes[1] & 0xff);
-                    } else {
+                    height = parseCoinbaseHeight(scriptSigBytes,
+                            params.getPaymentProtocolId().equals(NetworkParameters.PAYMENT_PROTOCOL_ID_REGTEST));
+                    if (height == 0) {
                         logger.error("COINBASE_height length mismatch");
                     }
-                    logger.debug("COINBASE_height=" + height);
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("COINBASE_height={}", height);
+                    }
                     block.verify((int) height, EnumSet.of(Block.VerifyFlag.HEIGHT_IN_COINBASE));
                     logger.debug("getHeightFromCoinbase(): verified");
                 } else {
@@ -1920,6 +3854,25 @@ public class Ptarmigan {
     }
 
 
+    /** coinbase scriptSigからblock heightを取得(BIP34)
+     *
+     * @param scriptSigBytes    coinbase scriptSig
+     * @param regtest           true:2byteのheightも許可する
+     * @return  height(取得できない場合は0)
+     */
+    static long parseCoinbaseHeight(byte[] scriptSigBytes, boolean regtest) {
+        if (scriptSigBytes.length < 4) {
+            return 0;
+        }
+        if (scriptSigBytes[0] == 0x03) {
+            return ((scriptSigBytes[3] & 0xff) << 16) | ((scriptSigBytes[2] & 0xff) << 8) | (scriptSigBytes[1] & 0xff);
+        } else if (regtest && (scriptSigBytes[0] == 0x02)) {
+            return ((scriptSigBytes[2] & 0xff) << 8) | (scriptSigBytes[1] & 0xff);
+        }
+        return 0;
+    }
+
+
     /////////////////////////////////////////////////////////////////////////
 
     /** get transaction from cache or peer
@@ -1931,16 +3884,25 @@ public class Ptarmigan {
      */
     private Transaction getTransaction(Sha256Hash txHash, Sha256Hash minedHash) throws PtarmException {
         // Tx Cache
-        logger.debug("getTransaction(): " + txHash);
+        logger.debug("getTransaction(): {}", txHash);
         if (txCache.containsKey(txHash)) {
             logger.debug("   from cache");
             return txCache.get(txHash);
         }
+        // Index
+        TxIndex.Location loc = txIndex.get(txHash);
+        if (loc != null) {
+            Transaction tx = getTransactionFromIndex(txHash, loc);
+            if (tx != null) {
+                logger.debug("   from index");
+                return tx;
+            }
+        }
         // Block
         Sha256Hash blockHash = wak.wallet().getLastBlockSeenHash();
         long loopCount = Long.MAX_VALUE;
         while (true) {
-            Block block = getBlockFromPeer(blockHash);
+            Block block = getBlock(blockHash);
             if (block == null) {
                 logger.error("getTransaction(): fail get block");
                 return null;
@@ -1951,12 +3913,12 @@ public class Ptarmigan {
                 // 探索
                 Optional<Transaction> otx = txs.stream().filter(tx -> tx.getTxId().equals(txHash)).findFirst();
                 if (otx.isPresent()) {
-                    logger.debug("  getTransaction(): " + otx.toString());
+                    logger.debug("  getTransaction(): {}", otx);
                     return otx.get();
                 }
             }
             // ひとつ前のブロック
-            blockHash = block.getPrevBlockHash();
+            blockHash = getPrevHash(blockHash, block);
             //
             if (blockHash.equals(minedHash) || (blockHash.equals(creationHash))) {
                 logger.debug("getTransaction(): block limit reach");
@@ -1972,6 +3934,37 @@ public class Ptarmigan {
     }
 
 
+    /** get transaction from txid index location
+     *
+     * @param txHash    txid
+     * @param loc       location
+     * @return  transaction or null
+     * @throws PtarmException   fail
+     */
+    private Transaction getTransactionFromIndex(Sha256Hash txHash, TxIndex.Location loc) throws PtarmException {
+        Sha256Hash blockHash = getStoredHashAtHeight(loc.height);
+        if (blockHash == null) {
+            return null;
+        }
+        Block block = getBlock(blockHash);
+        if ((block == null) || (block.getTransactions() == null)) {
+            return null;
+        }
+        List<Transaction> txs = block.getTransactions();
+        if ((loc.bIndex >= 0) && (loc.bIndex < txs.size()) && txs.get(loc.bIndex).getTxId().equals(txHash)) {
+            return txs.get(loc.bIndex);
+        }
+        for (Transaction tx : txs) {
+            if (tx.getTxId().equals(txHash)) {
+                return tx;
+            }
+        }
+        //txid prefix collision or stale location
+        logger.debug("getTransactionFromIndex(): not found: {}", txHash);
+        return null;
+    }
+
+
     /** MempoolからTx取得
      *
      * @param txHash    txid
@@ -1979,14 +3972,24 @@ public class Ptarmigan {
      * @throws PtarmException   fail
      */
     private Transaction getPeerMempoolTransaction(Sha256Hash txHash) throws PtarmException {
-        logger.debug("getPeerMempoolTransaction(): " + txHash);
+        logger.debug("getPeerMempoolTransaction(): {}", txHash);
         Peer peer = getPeer();
         try {
             if (peer == null) {
                 logger.error("  getPeerMempoolTransaction() - peer not found");
                 return null;
             }
-            return peer.getPeerMempoolTransaction(txHash).get(TIMEOUT_GETBLOCK, TimeUnit.MILLISECONDS);
+            long start = System.currentTimeMillis();
+            try {
+                Transaction tx = peer.getPeerMempoolTransaction(txHash).get(TIMEOUT_GETBLOCK, TimeUnit.MILLISECONDS);
+                //見つからない場合もpeerは応答している
+                peerScore.onSuccess(peer, System.currentTimeMillis() - start, (tx != null) ? tx.getMessageSize() : 0);
+                return tx;
+            } catch (TimeoutException | ExecutionException e) {
+                peerScore.onFailure(peer, System.currentTimeMillis() - start);
+                debugPeerInfo(peer);
+                throw e;
+            }
         } catch (Exception e) {
             logger.error("getPeerMempoolTransaction(): " + getStackTrace(e));
         }
@@ -2002,19 +4005,7 @@ public class Ptarmigan {
      * @return  channel
      */
     private PtarmiganChannel getChannelFromFundingTx(Sha256Hash txHash) {
-        PtarmiganChannel matchChannel = null;
-        try {
-            for (PtarmiganChannel ch : mapChannel.values()) {
-                if ((ch.getFundingOutpoint() != null) &&
-                        ch.getFundingOutpoint().getHash().equals(txHash)) {
-                    matchChannel = ch;
-                    break;
-                }
-            }
-        } catch (Exception e) {
-            logger.error("getChannel(): " + getStackTrace(e));
-        }
-        return matchChannel;
+        return channels.getByFundingTxid(txHash);
     }
 
 
@@ -2043,8 +4034,8 @@ public class Ptarmigan {
      */
     private void debugShowRegisteredChannel() {
         logger.debug("===== debugShowRegisteredChannel =====");
-        for (PtarmiganChannel ch : mapChannel.values()) {
-            logger.debug("    * " + Hex.toHexString(ch.peerNodeId()));
+        for (PtarmiganChannel ch : channels.values()) {
+            logger.debug("    * {}", LogHex.of(ch.peerNodeId()));
             //TransactionOutPoint fundingOutpoint = ch.getFundingOutpoint();
             //logger.debug("       fund:" + ((fundingOutpoint != null) ? fundingOutpoint.toString() : "no-fundtx") + ":" + ch.getShortChannelId().vIndex);
         }
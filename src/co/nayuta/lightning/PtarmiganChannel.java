@@ -2,11 +2,11 @@ package co.nayuta.lightning;
 
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.TransactionOutPoint;
-import org.bouncycastle.util.encoders.Hex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.util.Set;
 
 public class PtarmiganChannel {
     //
@@ -14,6 +14,7 @@ public class PtarmiganChannel {
         int commitNum = 0;
         Sha256Hash txid = null;
         int unspent = Ptarmigan.CHECKUNSPENT_FAIL;
+        Sha256Hash spentHash = null;    //SPENTにしたblock(ZERO:未confirm, null:SPENTではない)
     }
     //
     private byte[] peerNodeId;
@@ -25,14 +26,17 @@ public class PtarmiganChannel {
     private TransactionOutPoint fundingOutpoint;
     private Sha256Hash minedHash = Sha256Hash.ZERO_HASH;
     private Sha256Hash spentHash = null;
+    private Sha256Hash monitorHash = null;     //block監視で状態が最新になっているblock(null:未確認)
     private Logger logger;
     //
     PtarmiganChannel(byte[] peerNodeId, ShortChannelParam shortChannelId) {
         logger = LoggerFactory.getLogger(this.getClass());
 
-        logger.debug("PtarmiganChannel ctor");
-        logger.debug("  peerNodeId:" + Hex.toHexString(peerNodeId));
-        logger.debug("  shortChannelId: " + ((shortChannelId != null) ? shortChannelId: "null"));
+        if (logger.isDebugEnabled()) {
+            logger.debug("PtarmiganChannel ctor");
+            logger.debug("  peerNodeId:{}", LogHex.of(peerNodeId));
+            logger.debug("  shortChannelId: {}", shortChannelId);
+        }
         this.peerNodeId = peerNodeId;
         this.shortChannelId = shortChannelId;
         for (int i = 0; i < commitTxids.length; i++) {
@@ -52,10 +56,12 @@ public class PtarmiganChannel {
             this.shortChannelId.vIndex = (int)fundingOutpoint.getIndex();
         }
 
-        logger.debug("initialized(node=" + Hex.toHexString(this.peerNodeId) + "):");
-        logger.debug("  shortChannelId=" + this.shortChannelId);
-        logger.debug("  fundingOutpoint=" + ((fundingOutpoint != null) ? fundingOutpoint.toString() : "null"));
-        logger.debug("  confirmation=" + this.confirmation);
+        if (logger.isDebugEnabled()) {
+            logger.debug("initialized(node={}):", LogHex.of(this.peerNodeId));
+            logger.debug("  shortChannelId={}", this.shortChannelId);
+            logger.debug("  fundingOutpoint={}", fundingOutpoint);
+            logger.debug("  confirmation={}", this.confirmation);
+        }
     }
     //
     ShortChannelParam getShortChannelId() {
@@ -83,10 +89,12 @@ public class PtarmiganChannel {
     }
     //
     void setFundingTxSpentValue(int checkUnspent, Sha256Hash spentHash) {
-        logger.debug("setFundingTxSpent(node=" + Hex.toHexString(this.peerNodeId) + ")=" + checkUnspent);
+        if (logger.isDebugEnabled()) {
+            logger.debug("setFundingTxSpent(node={})={}", LogHex.of(this.peerNodeId), checkUnspent);
+        }
         this.fundingTxUnspent = checkUnspent;
         if (spentHash != null) {
-            logger.debug("  spentHash=" + spentHash.toString());
+            logger.debug("  spentHash={}", spentHash);
             this.spentHash = spentHash;
         }
     }
@@ -99,13 +107,17 @@ public class PtarmiganChannel {
     }
     //
     void setLastUnspentHash(@Nullable Sha256Hash failHash) {
-        logger.debug("setLastUnspentHash(node=" + Hex.toHexString(this.peerNodeId) + ")=" + ((failHash != null) ? failHash.toString() : "null"));
+        if (logger.isDebugEnabled()) {
+            logger.debug("setLastUnspentHash(node={})={}", LogHex.of(this.peerNodeId), failHash);
+        }
         this.lastUnspentHash = failHash;
     }
     //
     void setConfirmation(int conf) {
         this.confirmation = conf;
-        logger.debug("setConfirmation=" + this.confirmation + "(node=" + Hex.toHexString(this.peerNodeId) + ")");
+        if (logger.isDebugEnabled()) {
+            logger.debug("setConfirmation={}(node={})", this.confirmation, LogHex.of(this.peerNodeId));
+        }
     }
     int getConfirmation() {
         return this.confirmation;
@@ -113,33 +125,100 @@ public class PtarmiganChannel {
     //
     void setMinedBlockHash(Sha256Hash hash, int height, int bIndex) {
         if ((hash != null) && !hash.equals(Sha256Hash.ZERO_HASH)) {
-            logger.debug("setMinedBlockHash():  minedHash update: before=" + this.minedHash.toString());
+            logger.debug("setMinedBlockHash():  minedHash update: before={}", this.minedHash);
             this.minedHash = hash;
         }
         if (height > 0) {
-            logger.debug("setMinedBlockHash():  height update: before=" + this.shortChannelId.height);
+            if (logger.isDebugEnabled()) {
+                logger.debug("setMinedBlockHash():  height update: before={}", this.shortChannelId.height);
+            }
             this.shortChannelId.height = height;
         }
         if ((this.shortChannelId.bIndex <= 0) && (bIndex >= 0)) {
-            logger.debug("setMinedBlockHash():  bindex update: before=" + this.shortChannelId.bIndex);
+            if (logger.isDebugEnabled()) {
+                logger.debug("setMinedBlockHash():  bindex update: before={}", this.shortChannelId.bIndex);
+            }
             this.shortChannelId.bIndex = bIndex;
         }
-        logger.debug("setMinedBlockHash(node=" + Hex.toHexString(this.peerNodeId) + "):");
-        logger.debug("  minedHash=" + this.minedHash.toString());
-        logger.debug("  height=" + this.shortChannelId.height);
-        logger.debug("  bindex=" + this.shortChannelId.bIndex);
+        if (logger.isDebugEnabled()) {
+            logger.debug("setMinedBlockHash(node={}):", LogHex.of(this.peerNodeId));
+            logger.debug("  minedHash={}", this.minedHash);
+            logger.debug("  height={}", this.shortChannelId.height);
+            logger.debug("  bindex={}", this.shortChannelId.bIndex);
+        }
     }
     //
     Sha256Hash getMinedBlockHash() {
         return this.minedHash;
     }
     //
+    void setMonitorHash(@Nullable Sha256Hash hash) {
+        this.monitorHash = hash;
+    }
+    Sha256Hash getMonitorHash() {
+        return this.monitorHash;
+    }
+    //
+    /** reorgでactive chainから外れたblockを参照している値を破棄する
+     *
+     *  minedHashが外れた場合は setChannel(lastConfirm=0) と同じ状態にし、分岐点から探し直す。
+     *
+     * @param removed   外れたblock hash
+     * @param forkHash  分岐点のblock hash
+     * @return  true:変更あり
+     */
+    boolean invalidate(Set<Sha256Hash> removed, Sha256Hash forkHash) {
+        boolean changed = false;
+        if (removed.contains(this.minedHash)) {
+            logger.debug("invalidate(node={}): minedHash={}", LogHex.of(this.peerNodeId), this.minedHash);
+            this.minedHash = forkHash;
+            this.shortChannelId.height = -1;
+            this.shortChannelId.bIndex = -1;
+            this.confirmation = 0;
+            changed = true;
+        }
+        if ((this.spentHash != null) && removed.contains(this.spentHash)) {
+            logger.debug("invalidate(node={}): spentHash={}", LogHex.of(this.peerNodeId), this.spentHash);
+            this.spentHash = null;
+            this.fundingTxUnspent = Ptarmigan.CHECKUNSPENT_FAIL;
+            changed = true;
+        }
+        for (int i = 0; i < commitTxids.length; i++) {
+            CommitTxid commit = commitTxids[i];
+            if ((commit.spentHash != null) && removed.contains(commit.spentHash)) {
+                logger.debug("invalidate(node={}): commit_tx[{}] spentHash={}", LogHex.of(this.peerNodeId), i, commit.spentHash);
+                commit.spentHash = null;
+                commit.unspent = Ptarmigan.CHECKUNSPENT_FAIL;
+                changed = true;
+            }
+        }
+        if ((this.lastUnspentHash != null) && removed.contains(this.lastUnspentHash)) {
+            this.lastUnspentHash = null;
+        }
+        if ((this.monitorHash != null) && removed.contains(this.monitorHash)) {
+            this.monitorHash = null;
+        }
+        return changed;
+    }
+    //
     void setCommitTxid(int index, int commitNum, Sha256Hash txid) {
         commitTxids[index].commitNum = commitNum;
         commitTxids[index].txid = txid;
-        logger.debug("setCommitTxid[" + commitNum + "]=" + txid.toString() + "(node=" + Hex.toHexString(this.peerNodeId) + ")");
+        if (logger.isDebugEnabled()) {
+            logger.debug("setCommitTxid[{}]={}(node={})", commitNum, txid, LogHex.of(this.peerNodeId));
+        }
     }
 
+    /** commit_txをSPENTにする
+     *
+     * @param index     COMMITTXID_xxx
+     * @param blockHash commit_txを含むblock(未confirm:ZERO)
+     */
+    void setCommitTxSpent(int index, Sha256Hash blockHash) {
+        commitTxids[index].unspent = Ptarmigan.CHECKUNSPENT_SPENT;
+        commitTxids[index].spentHash = blockHash;
+    }
+    //
     CommitTxid getCommitTxid(int index) {
         return commitTxids[index];
     }
@@ -0,0 +1,10 @@
+package co.nayuta.lightning;
+
+public interface SendRawTxCallback {
+    /** broadcast結果通知
+     *
+     * @param txid      txid(little endian)
+     * @param status    Ptarmigan.SENDTX_xxx
+     */
+    void onResult(byte[] txid, int status);
+}
@@ -0,0 +1,28 @@
+package co.nayuta.lightning;
+
+public class SetChannelParam {
+    byte[] peerId;
+    long shortChannelId;
+    byte[] txid;
+    int vIndex;
+    byte[] scriptPubKey;
+    byte[] blockHash;       //(lastConfirm=0)establish starting block hash / (lastConfirm>0)mined block hash
+    int lastConfirm;
+    //
+    //
+    public SetChannelParam(
+            byte[] peerId,
+            long shortChannelId,
+            byte[] txid, int vIndex,
+            byte[] scriptPubKey,
+            byte[] blockHash,
+            int lastConfirm) {
+        this.peerId = peerId;
+        this.shortChannelId = shortChannelId;
+        this.txid = txid;
+        this.vIndex = vIndex;
+        this.scriptPubKey = scriptPubKey;
+        this.blockHash = blockHash;
+        this.lastConfirm = lastConfirm;
+    }
+}
@@ -27,6 +27,13 @@ public class ShortChannelParam {
         }
     }
     //
+    long toShortChannelId() {
+        if (!isAvailable()) {
+            return 0;
+        }
+        return ((long)height << 40) | ((long)bIndex << 16) | (vIndex & 0xffff);
+    }
+    //
     boolean isAvailable() {
         return (this.height > 0) && (this.bIndex > 0) && (this.vIndex >= 0);
     }
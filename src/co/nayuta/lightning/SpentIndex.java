@@ -0,0 +1,357 @@
+package co.nayuta.lightning;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+/** spent outpoint index
+ *
+ *  outpoint → (spending txid, block hash, height)
+ *  fileにappendし、memory上はoutpointのfingerprint → file offsetのみ持つ。
+ *  同じfingerprintのrecord(collision, reorgで別blockに入り直したtx)は全て残し、新しい順にたどる。
+ *  fileが maxBytes/2 を超えると ".old" にrotateし、旧".old"は削除する
+ *  (2世代合計で maxBytes 程度に収まる)。blockのrecordは1世代にまとめて書くので、
+ *  isIndexed()がtrueのblockは、そのblockのspentが全てget()で取得できる。
+ *
+ *  record:
+ *      'S' [outpoint txid(32)][outpoint index(4)][spending txid(32)][block hash(32)][height(4)]
+ *      'B' [block hash(32)][height(4)]     全inputをindex済みのblock
+ */
+class SpentIndex {
+    private static final byte REC_SPENT = 'S';
+    private static final byte REC_BLOCK = 'B';
+    private static final int SPENT_LEN = Sha256Hash.LENGTH + 4 + Sha256Hash.LENGTH + Sha256Hash.LENGTH + 4;
+    private static final int BLOCK_LEN = Sha256Hash.LENGTH + 4;
+    private static final long NOT_FOUND = -1;
+    private static final String SUFFIX_OLD = ".old";
+    //
+    private final File file;
+    private final long maxBytes;
+    private Segment current;
+    private Segment previous;                   //rotate済み(なし:null)
+    private final Logger logger;
+    //
+    static class Spent {
+        final Sha256Hash txid;
+        final Sha256Hash blockHash;
+        final int height;
+        //
+        Spent(Sha256Hash txid, Sha256Hash blockHash, int height) {
+            this.txid = txid;
+            this.blockHash = blockHash;
+            this.height = height;
+        }
+        //
+        @Override
+        public String toString() {
+            return "txid=" + txid + ", block=" + blockHash + ", height=" + height;
+        }
+    }
+    //
+    //
+    /** 1 file分のrecordとindex */
+    private class Segment {
+        final File file;
+        final RandomAccessFile raf;
+        final FileChannel channel;
+        final LongHashTable table = new LongHashTable(1024);       //fingerprint → 最新recordのoffset
+        final LongHashTable links = new LongHashTable(16);         //offset → 同じfingerprintの1つ前のoffset
+        final HashSet<Sha256Hash> indexedBlocks = new HashSet<>();
+        long fileSize;
+        //
+        Segment(File file) throws IOException {
+            this.file = file;
+            load();
+            this.raf = new RandomAccessFile(file, "rw");
+            this.channel = raf.getChannel();
+            if (channel.size() != fileSize) {
+                logger.warn("SpentIndex: truncate " + channel.size() + " -> " + fileSize);
+                channel.truncate(fileSize);
+            }
+        }
+        //
+        private void load() throws IOException {
+            fileSize = 0;
+            if (!file.exists()) {
+                return;
+            }
+            byte[] spent = new byte[SPENT_LEN];
+            byte[] blk = new byte[BLOCK_LEN];
+            try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                while (true) {
+                    byte type = dis.readByte();
+                    if (type == REC_SPENT) {
+                        dis.readFully(spent);
+                        ByteBuffer buf = ByteBuffer.wrap(spent);
+                        link(fingerprint(spent, buf.getInt(Sha256Hash.LENGTH) & 0xffffffffL), fileSize + 1);
+                        fileSize += 1 + SPENT_LEN;
+                    } else if (type == REC_BLOCK) {
+                        dis.readFully(blk);
+                        indexedBlocks.add(Sha256Hash.wrap(Arrays.copyOf(blk, Sha256Hash.LENGTH)));
+                        fileSize += 1 + BLOCK_LEN;
+                    } else {
+                        logger.error("SpentIndex: bad record at " + fileSize);
+                        break;
+                    }
+                }
+            } catch (EOFException e) {
+                //end of file(書きかけrecordは捨てる)
+            }
+        }
+        //
+        void link(long print, long pos) {
+            long prev = table.get(print, NOT_FOUND);
+            if (prev != NOT_FOUND) {
+                links.put(pos, prev);
+            }
+            table.put(print, pos);
+        }
+        //
+        long append(ByteBuffer buf) {
+            long pos = fileSize;
+            try {
+                while (buf.hasRemaining()) {
+                    channel.write(buf, pos + buf.position());
+                }
+                fileSize += buf.limit();
+                return pos;
+            } catch (IOException e) {
+                logger.error("SpentIndex append: " + e.getMessage());
+                return NOT_FOUND;
+            }
+        }
+        //
+        /** outPointのrecordを新しい順に追加 */
+        void collect(TransactionOutPoint outPoint, List<Spent> result) throws IOException {
+            long pos = table.get(fingerprint(outPoint), NOT_FOUND);
+            ByteBuffer buf = ByteBuffer.allocate(SPENT_LEN);
+            byte[] rec = buf.array();
+            while (pos != NOT_FOUND) {
+                buf.clear();
+                while (buf.hasRemaining()) {
+                    if (channel.read(buf, pos + buf.position()) < 0) {
+                        throw new EOFException();
+                    }
+                }
+                if (Arrays.equals(Arrays.copyOfRange(rec, 0, Sha256Hash.LENGTH), outPoint.getHash().getBytes()) &&
+                        ((buf.getInt(Sha256Hash.LENGTH) & 0xffffffffL) == outPoint.getIndex())) {
+                    int offset = Sha256Hash.LENGTH + 4;
+                    Sha256Hash txid = Sha256Hash.wrap(Arrays.copyOfRange(rec, offset, offset + Sha256Hash.LENGTH));
+                    offset += Sha256Hash.LENGTH;
+                    Sha256Hash blockHash = Sha256Hash.wrap(Arrays.copyOfRange(rec, offset, offset + Sha256Hash.LENGTH));
+                    offset += Sha256Hash.LENGTH;
+                    result.add(new Spent(txid, blockHash, buf.getInt(offset)));
+                }
+                //不一致はfingerprint collision
+                pos = links.get(pos, NOT_FOUND);
+            }
+        }
+        //
+        void close() throws IOException {
+            channel.force(false);
+            raf.close();
+        }
+    }
+    //
+    //
+    /**
+     * @param file      index file
+     * @param maxBytes  2世代合計の上限(byte)
+     */
+    SpentIndex(File file, long maxBytes) throws IOException {
+        this.logger = LoggerFactory.getLogger(this.getClass());
+        this.file = file;
+        this.maxBytes = maxBytes;
+        File old = new File(file.getPath() + SUFFIX_OLD);
+        if (old.exists()) {
+            previous = new Segment(old);
+        }
+        current = new Segment(file);
+        logger.info("SpentIndex: {}, outpoints={}, blocks={}, max={}",
+                file.getPath(), current.table.size() + ((previous != null) ? previous.table.size() : 0),
+                current.indexedBlocks.size() + ((previous != null) ? previous.indexedBlocks.size() : 0), maxBytes);
+    }
+    //
+    private static long fingerprint(byte[] txid, long index) {
+        long h = 0;
+        for (int i = 0; i < 8; i++) {
+            h = (h << 8) | (txid[i] & 0xff);
+        }
+        return h ^ (index * 0xc2b2ae3d27d4eb4fL);
+    }
+    //
+    private static long fingerprint(TransactionOutPoint outPoint) {
+        return fingerprint(outPoint.getHash().getBytes(), outPoint.getIndex());
+    }
+    //
+    /** 全inputをindexに追加する
+     *
+     * @param block     block(with transactions)
+     * @param height    block height(不明な場合は-1)
+     */
+    synchronized void addBlock(Block block, int height) {
+        Sha256Hash blockHash = block.getHash();
+        if (isIndexed(blockHash) || (block.getTransactions() == null)) {
+            return;
+        }
+        //spentと'B'を同じ世代に書く
+        prepare(countInputs(block.getTransactions()) * (1 + SPENT_LEN) + 1 + BLOCK_LEN);
+        if (!appendTransactions(blockHash, height, block.getTransactions())) {
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(1 + BLOCK_LEN);
+        buf.put(REC_BLOCK);
+        buf.put(blockHash.getBytes());
+        buf.putInt(height);
+        buf.flip();
+        if (current.append(buf) != NOT_FOUND) {
+            current.indexedBlocks.add(blockHash);
+        }
+    }
+    //
+    /** 一部のtransactionだけindexに追加する(filtered block用)
+     *
+     * @param blockHash block hash
+     * @param height    block height
+     * @param txs       transactions
+     */
+    synchronized void addTransactions(Sha256Hash blockHash, int height, List<Transaction> txs) {
+        prepare(countInputs(txs) * (1 + SPENT_LEN));
+        appendTransactions(blockHash, height, txs);
+    }
+    //
+    private static int countInputs(List<Transaction> txs) {
+        int count = 0;
+        for (Transaction tx : txs) {
+            if (tx.isCoinBase()) {
+                continue;
+            }
+            count += tx.getInputs().size();
+        }
+        return count;
+    }
+    //
+    /** lengthを書くとcurrentが上限を超える場合はrotateする */
+    private void prepare(long length) {
+        if ((current.fileSize > 0) && (current.fileSize + length > maxBytes / 2)) {
+            try {
+                rotate();
+            } catch (IOException e) {
+                logger.error("SpentIndex rotate: " + e.getMessage());
+            }
+        }
+    }
+    //
+    /** @return false:書き込み失敗 */
+    private boolean appendTransactions(Sha256Hash blockHash, int height, List<Transaction> txs) {
+        int count = countInputs(txs);
+        if (count == 0) {
+            return true;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(count * (1 + SPENT_LEN));
+        long[] prints = new long[count];
+        int lp = 0;
+        for (Transaction tx : txs) {
+            if (tx.isCoinBase()) {
+                continue;
+            }
+            byte[] spendTxid = tx.getTxId().getBytes();
+            for (TransactionInput vin : tx.getInputs()) {
+                TransactionOutPoint pnt = vin.getOutpoint();
+                buf.put(REC_SPENT);
+                buf.put(pnt.getHash().getBytes());
+                buf.putInt((int)pnt.getIndex());
+                buf.put(spendTxid);
+                buf.put(blockHash.getBytes());
+                buf.putInt(height);
+                prints[lp++] = fingerprint(pnt);
+            }
+        }
+        buf.flip();
+        long pos = current.append(buf);
+        if (pos == NOT_FOUND) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            current.link(prints[i], pos + (long)i * (1 + SPENT_LEN) + 1);
+        }
+        return true;
+    }
+    //
+    /** current → ".old"(旧".old"は削除) */
+    private void rotate() throws IOException {
+        File old = new File(file.getPath() + SUFFIX_OLD);
+        if (previous != null) {
+            previous.close();
+            previous = null;
+        }
+        current.close();
+        if ((old.exists() && !old.delete()) || !file.renameTo(old)) {
+            current = new Segment(file);
+            throw new IOException("rotate fail: " + file.getPath());
+        }
+        previous = new Segment(old);
+        current = new Segment(file);
+        logger.info("SpentIndex: rotate: old outpoints={}, blocks={}, size={}",
+                previous.table.size(), previous.indexedBlocks.size(), previous.fileSize);
+    }
+    //
+    /** spent情報取得
+     *
+     *  同じoutpointのrecordが複数ある場合(reorg)は全て返す。active chainかどうかは呼出し元で判定する。
+     *
+     * @param outPoint  outpoint
+     * @return  spent info(新しい順, not indexed:empty)
+     */
+    synchronized List<Spent> get(TransactionOutPoint outPoint) {
+        List<Spent> result = new ArrayList<>();
+        try {
+            current.collect(outPoint, result);
+            if (previous != null) {
+                previous.collect(outPoint, result);
+            }
+        } catch (IOException e) {
+            logger.error("SpentIndex get: " + e.getMessage());
+        }
+        return result;
+    }
+    //
+    /** blockの全inputがindex済みか
+     *
+     * @param blockHash block hash
+     * @return  true:indexed
+     */
+    synchronized boolean isIndexed(Sha256Hash blockHash) {
+        return current.indexedBlocks.contains(blockHash) ||
+                ((previous != null) && previous.indexedBlocks.contains(blockHash));
+    }
+    //
+    synchronized void close() {
+        try {
+            current.close();
+            if (previous != null) {
+                previous.close();
+            }
+        } catch (IOException e) {
+            logger.error("SpentIndex close: " + e.getMessage());
+        }
+    }
+}
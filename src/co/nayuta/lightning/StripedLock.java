@@ -0,0 +1,31 @@
+package co.nayuta.lightning;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** striped lock
+ *
+ *  keyのhashで固定数のlockに振り分ける。
+ *  別keyが同じlockになることがあるため、複数keyのlockを同時に取らないこと。
+ */
+class StripedLock {
+    private final ReentrantLock[] locks;
+    //
+    //
+    StripedLock(int stripes) {
+        int size = Integer.highestOneBit(Math.max(stripes, 1) * 2 - 1);
+        locks = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+    //
+    private int index(int hash) {
+        hash ^= (hash >>> 16);
+        return hash & (locks.length - 1);
+    }
+    //
+    ReentrantLock get(byte[] key) {
+        return locks[index(Arrays.hashCode(key))];
+    }
+}
@@ -0,0 +1,19 @@
+package co.nayuta.lightning;
+
+public class SyncProgress {
+    int state;              //Ptarmigan.SYNC_xxx
+    int height;             //local chain height(未起動:-1)
+    int peerHeight;         //peerのchain height(不明:0)
+    int peers;              //接続peer数
+    long elapsed;           //spv_start()からの経過時間(msec)
+    //
+    //
+    SyncProgress() {
+        this.height = -1;
+    }
+    //
+    @Override
+    public String toString() {
+        return String.format("state:%d, height:%d/%d, peers:%d, elapsed:%d", state, height, peerHeight, peers, elapsed);
+    }
+}
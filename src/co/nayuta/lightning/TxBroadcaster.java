@@ -0,0 +1,200 @@
+package co.nayuta.lightning;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/** transaction broadcast(非同期)
+ *
+ *  要求ごとにfutureを返し、呼び出し元threadは待たない。
+ *  複数txは並列にpeerへ通知され、RejectMessageはmapSendTxでtxidと対応付ける。
+ *  broadcast成功後、TIMEOUT_REJECT内にrejectが来なければSENDTX_OKとする。
+ */
+class TxBroadcaster {
+    private static final int MAX_RESULTS = 1000;
+    //
+    private final Sender sender;
+    private final int maxRetry;
+    private final long timeoutSend;         //msec
+    private final long timeoutReject;       //msec
+    private final ConcurrentHashMap<Sha256Hash, Request> mapSendTx = new ConcurrentHashMap<>();
+    private final LinkedHashMap<Sha256Hash, Integer> results;
+    private final ScheduledExecutorService scheduler;
+    private volatile SendRawTxCallback callback;
+    private final Logger logger;
+    //
+    interface Sender {
+        /** peerへtxを通知
+         *
+         * @param tx    transaction
+         * @return  peerに受け付けられたら完了するfuture
+         */
+        ListenableFuture<Transaction> send(Transaction tx);
+    }
+    //
+    private static class Request {
+        final Transaction tx;
+        final SettableFuture<Integer> future = SettableFuture.create();
+        volatile int attempt = 0;
+
+        Request(Transaction tx) {
+            this.tx = tx;
+        }
+    }
+    //
+    //
+    TxBroadcaster(Sender sender, int maxRetry, long timeoutSend, long timeoutReject) {
+        this.logger = LoggerFactory.getLogger(this.getClass());
+        this.sender = sender;
+        this.maxRetry = maxRetry;
+        this.timeoutSend = timeoutSend;
+        this.timeoutReject = timeoutReject;
+        this.results = new LinkedHashMap<Sha256Hash, Integer>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Integer> eldest) {
+                return size() > MAX_RESULTS;
+            }
+        };
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread th = new Thread(r, "ptarm-broadcast");
+            th.setDaemon(true);
+            return th;
+        });
+    }
+    //
+    void setCallback(SendRawTxCallback callback) {
+        this.callback = callback;
+    }
+    //
+    /** broadcast開始
+     *
+     *  同じtxidが処理中の場合は、そのfutureを返す。
+     *
+     * @param tx    transaction
+     * @return  SENDTX_OK / SENDTX_REJECT / SENDTX_FAIL
+     */
+    ListenableFuture<Integer> broadcast(Transaction tx) {
+        Request req = new Request(tx);
+        Request prev = mapSendTx.putIfAbsent(tx.getTxId(), req);
+        if (prev != null) {
+            return prev.future;
+        }
+        synchronized (results) {
+            results.remove(tx.getTxId());
+        }
+        send(req);
+        return req.future;
+    }
+    //
+    private void send(Request req) {
+        int attempt = ++req.attempt;
+        logger.debug("TxBroadcaster: send({}): {}", attempt, req.tx.getTxId());
+        ListenableFuture<Transaction> future;
+        try {
+            future = sender.send(req.tx);
+        } catch (Exception e) {
+            retry(req, e.getMessage());
+            return;
+        }
+        scheduler.schedule(() -> {
+            if ((req.attempt == attempt) && !future.isDone()) {
+                retry(req, "timeout");
+            }
+        }, timeoutSend, TimeUnit.MILLISECONDS);
+        Futures.addCallback(future, new FutureCallback<Transaction>() {
+            @Override
+            public void onSuccess(Transaction result) {
+                //先に送ったものが遅れて成功した場合も成功とする
+                //reject待ち
+                scheduler.schedule(() -> finish(req, Ptarmigan.SENDTX_OK), timeoutReject, TimeUnit.MILLISECONDS);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if (req.attempt == attempt) {
+                    retry(req, t.getMessage());
+                }
+            }
+        }, MoreExecutors.directExecutor());
+    }
+    //
+    private void retry(Request req, String reason) {
+        if (req.future.isDone()) {
+            return;
+        }
+        logger.error("TxBroadcaster: fail retry=" + req.attempt + ": " + req.tx.getTxId() + ": " + reason);
+        if (req.attempt >= maxRetry) {
+            finish(req, Ptarmigan.SENDTX_FAIL);
+        } else {
+            scheduler.execute(() -> send(req));
+        }
+    }
+    //
+    /** [event]RejectMessage受信
+     *
+     * @param txid      rejected txid
+     * @param reason    reason
+     * @return  true:broadcast中のtx
+     */
+    boolean onReject(Sha256Hash txid, String reason) {
+        Request req = mapSendTx.get(txid);
+        if (req == null) {
+            return false;
+        }
+        logger.error("TxBroadcaster: reject " + txid + ": " + reason);
+        finish(req, Ptarmigan.SENDTX_REJECT);
+        return true;
+    }
+    //
+    private void finish(Request req, int status) {
+        if (!req.future.set(status)) {
+            return;
+        }
+        Sha256Hash txid = req.tx.getTxId();
+        synchronized (results) {
+            results.put(txid, status);
+        }
+        mapSendTx.remove(txid, req);
+        logger.debug("TxBroadcaster: finish {}: {}", txid, status);
+        SendRawTxCallback cb = callback;
+        if (cb != null) {
+            try {
+                cb.onResult(txid.getReversedBytes(), status);
+            } catch (Exception e) {
+                logger.error("TxBroadcaster: callback: " + e.getMessage());
+            }
+        }
+    }
+    //
+    /** 処理状態
+     *
+     * @param txid  txid
+     * @return  SENDTX_xxx
+     */
+    int getStatus(Sha256Hash txid) {
+        if (mapSendTx.containsKey(txid)) {
+            return Ptarmigan.SENDTX_PENDING;
+        }
+        synchronized (results) {
+            Integer status = results.get(txid);
+            return (status != null) ? status : Ptarmigan.SENDTX_UNKNOWN;
+        }
+    }
+    //
+    void stop() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,165 @@
+package co.nayuta.lightning;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** txid → block location index
+ *
+ *  txidの先頭64bit → (height << 32 | block index)
+ *  block indexが不明な場合(filtered block)はBINDEX_UNKNOWN。
+ *  entry数がmaxEntriesを超えたら、低いheightのtxから3/4まで減らす。
+ */
+class TxIndex {
+    static final int BINDEX_UNKNOWN = -1;
+    private static final long NOT_FOUND = -1;
+    //
+    private final LongHashTable table;
+    private final int maxEntries;
+    private final TreeMap<Integer, Integer> heights = new TreeMap<>();     //height → entry数
+    //
+    static class Location {
+        final int height;
+        final int bIndex;
+        //
+        Location(int height, int bIndex) {
+            this.height = height;
+            this.bIndex = bIndex;
+        }
+        //
+        @Override
+        public String toString() {
+            return "height=" + height + ", bIndex=" + bIndex;
+        }
+    }
+    //
+    //
+    TxIndex(int initialCapacity, int maxEntries) {
+        this.table = new LongHashTable(initialCapacity);
+        this.maxEntries = maxEntries;
+    }
+    //
+    private static long prefix(Sha256Hash txid) {
+        byte[] b = txid.getBytes();
+        long h = 0;
+        for (int i = 0; i < 8; i++) {
+            h = (h << 8) | (b[i] & 0xff);
+        }
+        return h;
+    }
+    //
+    /** blockの全txを追加
+     *
+     * @param block     block(with transactions)
+     * @param height    block height
+     */
+    synchronized void addBlock(Block block, int height) {
+        if ((height <= 0) || (block.getTransactions() == null)) {
+            return;
+        }
+        int bIndex = 0;
+        for (Transaction tx : block.getTransactions()) {
+            put(prefix(tx.getTxId()), height, bIndex);
+            bIndex++;
+        }
+        evict();
+    }
+    //
+    /** block内位置が不明なtxを追加(filtered block用)
+     *
+     * @param txids     txid
+     * @param height    block height
+     */
+    synchronized void addTxids(Collection<Sha256Hash> txids, int height) {
+        if (height <= 0) {
+            return;
+        }
+        for (Sha256Hash txid : txids) {
+            long key = prefix(txid);
+            if (table.get(key, NOT_FOUND) == NOT_FOUND) {
+                put(key, height, BINDEX_UNKNOWN);
+            }
+        }
+        evict();
+    }
+    //
+    private void put(long key, int height, int bIndex) {
+        long old = table.get(key, NOT_FOUND);
+        if (old != NOT_FOUND) {
+            decrement((int)(old >>> 32));
+        }
+        table.put(key, ((long)height << 32) | (bIndex & 0xffffffffL));
+        heights.merge(height, 1, Integer::sum);
+    }
+    //
+    private void decrement(int height) {
+        heights.computeIfPresent(height, (h, count) -> (count > 1) ? count - 1 : null);
+    }
+    //
+    /** 上限を超えていたら低いheightから削除する(removeIf()は全体を作り直すため、まとめて減らす) */
+    private void evict() {
+        if (table.size() <= maxEntries) {
+            return;
+        }
+        int target = maxEntries / 4 * 3;
+        int remain = table.size();
+        int keepHeight = 0;
+        for (Map.Entry<Integer, Integer> entry : heights.entrySet()) {
+            if (remain <= target) {
+                break;
+            }
+            remain -= entry.getValue();
+            keepHeight = entry.getKey() + 1;
+        }
+        removeBelow(keepHeight);
+    }
+    //
+    /** get location
+     *
+     * @param txid  txid
+     * @return  location or null
+     */
+    synchronized Location get(Sha256Hash txid) {
+        long v = table.get(prefix(txid), NOT_FOUND);
+        if (v == NOT_FOUND) {
+            return null;
+        }
+        return new Location((int)(v >>> 32), (int)v);
+    }
+    //
+    synchronized void remove(Sha256Hash txid) {
+        long key = prefix(txid);
+        long old = table.get(key, NOT_FOUND);
+        if ((old != NOT_FOUND) && table.remove(key)) {
+            decrement((int)(old >>> 32));
+        }
+    }
+    //
+    /** heightより上のblockにあるtxを削除(reorg)
+     *
+     * @param height    残す最も高いblock height
+     * @return  削除数
+     */
+    synchronized int removeAbove(int height) {
+        heights.tailMap(height, false).clear();
+        return table.removeIf(v -> (int)(v >>> 32) > height);
+    }
+    //
+    /** heightより下のblockにあるtxを削除
+     *
+     * @param height    残す最も低いblock height
+     * @return  削除数
+     */
+    synchronized int removeBelow(int height) {
+        heights.headMap(height, false).clear();
+        return table.removeIf(v -> (int)(v >>> 32) < height);
+    }
+    //
+    synchronized int size() {
+        return table.size();
+    }
+}